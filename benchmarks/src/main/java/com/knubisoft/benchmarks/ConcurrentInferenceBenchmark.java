@@ -0,0 +1,50 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.ReplicaPool;
+import com.knubisoft.utils.ImageProcessorUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of predictions from several threads sharing one CNN, which spreads them over its {@link ReplicaPool replicas}.
+ * Compare the score with {@link InferenceBenchmark#predict() the single threaded one}, e.g.
+ * <code>-t 1 -t 4 -p replicas=1,4</code>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentInferenceBenchmark {
+    private static final String IMAGE_PATH = "src/test/resources/7.png";
+
+    @Param({"1", "4"})
+    private int replicas;
+    private ConvolutionalNeuralNetwork network;
+    private LabeledImage image;
+
+    @Setup
+    public void setUp() throws IOException {
+        network = new ConvolutionalNeuralNetwork(replicas);
+        network.init();
+        image = new LabeledImage(ImageProcessorUtil.preprocess(ImageIO.read(new File(IMAGE_PATH))));
+    }
+
+    @TearDown
+    public void tearDown() {
+        network.close();
+    }
+
+    @Benchmark
+    public int predict() {
+        return network.predict(image);
+    }
+}
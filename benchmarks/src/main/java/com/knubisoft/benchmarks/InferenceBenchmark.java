@@ -0,0 +1,70 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.JavaInferenceEngine;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.utils.ImageProcessorUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of single image and batched predictions
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InferenceBenchmark {
+    private static final String IMAGE_PATH = "src/test/resources/7.png";
+    private static final String MODEL_PATH = "resources/model.bin";
+    private static final int BATCH_SIZE = 32;
+
+    private ConvolutionalNeuralNetwork network;
+    private JavaInferenceEngine engine;
+    private LabeledImage image;
+    private float[] pixels;
+    private List<LabeledImage> batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        network = new ConvolutionalNeuralNetwork();
+        network.init();
+        engine = JavaInferenceEngine.load(new File(MODEL_PATH));
+        float[] vector = ImageProcessorUtil.preprocess(ImageIO.read(new File(IMAGE_PATH)));
+        image = new LabeledImage(vector);
+        pixels = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            pixels[i] = (float) vector[i];
+        }
+        batch = Collections.nCopies(BATCH_SIZE, image);
+    }
+
+    @TearDown
+    public void tearDown() {
+        network.close();
+    }
+
+    @Benchmark
+    public int predict() {
+        return network.predict(image);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int[] predictBatch() {
+        return network.predictBatch(batch);
+    }
+
+    @Benchmark
+    public int javaEnginePredict() {
+        return engine.predict(pixels);
+    }
+}
@@ -0,0 +1,53 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.utils.ImageProcessorUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link InferenceMetrics}: a measured empty stage and the fused preprocessing (three measured stages)
+ * with measuring disabled and enabled
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+    private static final String IMAGE_PATH = "src/test/resources/7.png";
+
+    @Param({"false", "true"})
+    private boolean enabled;
+    private BufferedImage image;
+    private final float[] pixels = new float[28 * 28];
+
+    @Setup
+    public void setUp() throws IOException {
+        image = ImageIO.read(new File(IMAGE_PATH));
+        InferenceMetrics.setEnabled(enabled);
+    }
+
+    @TearDown
+    public void tearDown() {
+        InferenceMetrics.setEnabled(false);
+        InferenceMetrics.reset();
+    }
+
+    @Benchmark
+    public void emptyStage() {
+        InferenceMetrics.stop(InferenceMetrics.Stage.TO_INPUT, InferenceMetrics.start(InferenceMetrics.Stage.TO_INPUT));
+    }
+
+    @Benchmark
+    public float[] fusedPipeline() {
+        ImageProcessorUtil.preprocess(image, pixels);
+        return pixels;
+    }
+}
@@ -0,0 +1,56 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.cnn.CompactModelFormat;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.ModelVersion;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of model loading: {@link ConvolutionalNeuralNetwork#init()} and both model formats separately
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelLoadBenchmark {
+    private static final File MODEL_FILE = new File("resources/model.bin");
+
+    private File compactFile;
+    private MultiLayerConfiguration conf;
+
+    @Setup
+    public void setUp() throws IOException {
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(MODEL_FILE);
+        conf = network.getLayerWiseConfigurations();
+        compactFile = File.createTempFile("model", ".cnn");
+        compactFile.deleteOnExit();
+        CompactModelFormat.write(network, compactFile);
+    }
+
+    @Benchmark
+    public ModelVersion init() {
+        try (ConvolutionalNeuralNetwork network = new ConvolutionalNeuralNetwork()) {
+            network.init();
+            return network.getModelVersion();
+        }
+    }
+
+    @Benchmark
+    public MultiLayerNetwork restoreSerialized() throws IOException {
+        return ModelSerializer.restoreMultiLayerNetwork(MODEL_FILE);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork readCompact() throws IOException {
+        return CompactModelFormat.read(compactFile, conf);
+    }
+}
@@ -0,0 +1,100 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.cnn.ModelInput;
+import com.knubisoft.utils.ImageProcessorUtil;
+import com.knubisoft.utils.MnistNormalizer;
+import com.knubisoft.utils.StrokeRasterizer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link ImageProcessorUtil} steps applied to a drawn digit. <i>servedImage</i> and <i>servedDrawing</i>
+ * measure the paths the server and the UI take from an image or strokes to the model input,
+ * <i>pipeline</i> is the former path which scaled the whole canvas to 28x28
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PreprocessingBenchmark {
+    private static final String IMAGE_PATH = "src/test/resources/7.png";
+
+    private Image toolkitImage;
+    private BufferedImage image;
+    private BufferedImage scaled;
+    private final float[] pixels = new float[28 * 28];
+    private final float[] rasterized = new float[28 * 28];
+    private final float[] input = new float[28 * 28];
+    private final float[] normalized = new float[28 * 28];
+    private final StrokeRasterizer rasterizer = new StrokeRasterizer(28, 8);
+    private final List<StrokeRasterizer.Stroke> strokes = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        toolkitImage = new ImageIcon(IMAGE_PATH).getImage();
+        image = ImageIO.read(new File(IMAGE_PATH));
+        scaled = ImageProcessorUtil.toBufferedImage(ImageProcessorUtil.scale(image));
+        // a "7" of about a hundred mouse drag points on a 600x520 canvas
+        StrokeRasterizer.Stroke stroke = new StrokeRasterizer.Stroke();
+        for (int i = 0; i <= 60; i++) {
+            stroke.add(180 + i * 4, 110);
+        }
+        for (int i = 1; i <= 40; i++) {
+            stroke.add(420 - i * 3, 110 + i * 8);
+        }
+        strokes.add(stroke);
+    }
+
+    @Benchmark
+    public BufferedImage toBufferedImage() {
+        return ImageProcessorUtil.toBufferedImage(toolkitImage);
+    }
+
+    @Benchmark
+    public Image scale() {
+        return ImageProcessorUtil.scale(image);
+    }
+
+    @Benchmark
+    public float[] toVector() {
+        return ImageProcessorUtil.toVector(scaled);
+    }
+
+    @Benchmark
+    public float[] pipeline() {
+        Image scaledImage = ImageProcessorUtil.scale(ImageProcessorUtil.toBufferedImage(image));
+        return ImageProcessorUtil.toVector(ImageProcessorUtil.toBufferedImage(scaledImage));
+    }
+
+    @Benchmark
+    public float[] servedImage() {
+        ImageProcessorUtil.preprocess(image, pixels);
+        ModelInput.prepare(pixels, input, 0);
+        return input;
+    }
+
+    @Benchmark
+    public float[] servedDrawing() {
+        rasterizer.rasterize(strokes, 10, rasterized);
+        ModelInput.prepare(rasterized, input, 0);
+        return input;
+    }
+
+    @Benchmark
+    public float[] mnistNormalize() {
+        MnistNormalizer.normalize(image, normalized);
+        return normalized;
+    }
+
+}
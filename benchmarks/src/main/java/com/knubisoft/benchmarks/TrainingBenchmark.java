@@ -0,0 +1,70 @@
+package com.knubisoft.benchmarks;
+
+import com.knubisoft.utils.DigitAugmenter;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of one training iteration of the CNN on a fixed synthetic batch and of the augmentation of the same batch
+ * on one producer thread, which has to stay well below the iteration time to keep training speed
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TrainingBenchmark {
+    private static final int SEED = 123;
+    private static final int CLASSES = 10;
+
+    @Param({"16"})
+    private int batchSize;
+
+    private MultiLayerNetwork network;
+    private DataSet batch;
+    private float[] pixels;
+    private float[] augmented;
+    private SplittableRandom random;
+
+    @Setup
+    public void setUp() throws IOException {
+        MultiLayerNetwork trained = ModelSerializer.restoreMultiLayerNetwork(new File("resources/model.bin"));
+        network = new MultiLayerNetwork(trained.getLayerWiseConfigurations().clone());
+        network.init();
+
+        Nd4j.getRandom().setSeed(SEED);
+        INDArray features = Nd4j.rand(batchSize, 28 * 28);
+        INDArray labels = Nd4j.zeros(batchSize, CLASSES);
+        for (int i = 0; i < batchSize; i++) {
+            labels.putScalar(i, i % CLASSES, 1);
+        }
+        batch = new DataSet(features, labels);
+        pixels = features.dup('c').data().asFloat();
+        augmented = new float[pixels.length];
+        random = new SplittableRandom(SEED);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork fitIteration() {
+        network.fit(batch);
+        return network;
+    }
+
+    @Benchmark
+    public float[] augmentBatch() {
+        for (int offset = 0; offset < pixels.length; offset += 28 * 28) {
+            DigitAugmenter.augment(pixels, offset, augmented, offset, random);
+        }
+        return augmented;
+    }
+}
@@ -1,19 +1,110 @@
 package com.knubisoft;
 
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.FeedbackStore;
+import com.knubisoft.cnn.FineTuningOptions;
+import com.knubisoft.cnn.PredictionCache;
+import com.knubisoft.cnn.PruningOptions;
+import com.knubisoft.cnn.SearchOptions;
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.scoring.BulkScorer;
+import com.knubisoft.server.InferenceServer;
 import com.knubisoft.ui.ProgressBar;
 import com.knubisoft.ui.UI;
 import freemarker.log.Logger;
+import lombok.SneakyThrows;
 
 import javax.swing.*;
+import java.nio.file.Path;
 import java.util.concurrent.Executors;
 
 public class Main {
 
     private final static Logger LOG = Logger.getLogger(Main.class.getName());
-    private static final JFrame mainFrame = new JFrame();
+    private static final String HEADLESS_FLAG = "--headless";
+    private static final String EXPORT_MODEL_FLAG = "--export-model";
+    private static final String QUANTIZE_FLAG = "--quantize";
+    private static final String SCORE_FLAG = "--score";
+    private static final String SEARCH_FLAG = "--search";
+    private static final String PRUNE_FLAG = "--prune";
+    private static final String FINE_TUNE_FLAG = "--fine-tune";
+    private static final String ND4J_ENGINE = "nd4j";
+    private static final String JAVA_ENGINE = "java";
+    private static final String INT8_ENGINE = "int8";
+    private static final String DEFAULT_SCORES_FILE = "scores.csv";
+    private static final int SCORING_BATCH_SIZE = 64;
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_IN_FLIGHT_REQUESTS = 256;
+    private static final int DEFAULT_PREDICTION_CACHE_SIZE = 10_000;
 
+    /**
+     * Starts Swing UI or, with <code>--headless [port] [cache size] [engine]</code> arguments, the HTTP inference server
+     * (cache size 0 disables the prediction cache, engine <code>java</code> serves the model with the plain Java forward pass
+     * and <code>int8</code> serves the quantized model instead of the default <code>nd4j</code> one).
+     * <code>--export-model</code> converts the saved model to the compact format and exits,
+     * <code>--quantize [mnist dir]</code> writes int8 version of the saved model and prints its comparison with the float one,
+     * <code>--score &lt;images dir or list file&gt; [csv file]</code> writes predictions of all images to a CSV file,
+     * <code>--search [trials] [mnist dir]</code> searches for hyperparameters of a faster or smaller model,
+     * <code>--prune [target latency, us] [mnist dir]</code> prunes the saved model and saves the pruned one in its place,
+     * <code>--fine-tune [mnist dir]</code> fine-tunes the saved model on drawings confirmed or corrected in the UI
+     *
+     * @param args command line arguments
+     */
     public static void main(String[] args) {
         LOG.info("Application running");
+        InferenceMetrics.registerMBean();
+        if (args.length > 0 && HEADLESS_FLAG.equals(args[0])) {
+            runHeadless(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT,
+                    args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PREDICTION_CACHE_SIZE,
+                    args.length > 3 ? args[3] : ND4J_ENGINE);
+        } else if (args.length > 0 && EXPORT_MODEL_FLAG.equals(args[0])) {
+            try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork()) {
+                convolutionalNeuralNetwork.init();
+                convolutionalNeuralNetwork.exportCompact();
+            }
+        } else if (args.length > 0 && QUANTIZE_FLAG.equals(args[0])) {
+            try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork()) {
+                convolutionalNeuralNetwork.init();
+                convolutionalNeuralNetwork.quantize(args.length > 1 ? Path.of(args[1]) : null);
+            }
+        } else if (args.length > 1 && SCORE_FLAG.equals(args[0])) {
+            score(Path.of(args[1]), Path.of(args.length > 2 ? args[2] : DEFAULT_SCORES_FILE));
+        } else if (args.length > 0 && SEARCH_FLAG.equals(args[0])) {
+            SearchOptions.SearchOptionsBuilder options = SearchOptions.builder();
+            if (args.length > 1) {
+                options.trials(Integer.parseInt(args[1]));
+            }
+            if (args.length > 2) {
+                options.mnistDir(Path.of(args[2]));
+            }
+            try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork()) {
+                convolutionalNeuralNetwork.search(options.build());
+            }
+        } else if (args.length > 0 && PRUNE_FLAG.equals(args[0])) {
+            PruningOptions.PruningOptionsBuilder options = PruningOptions.builder();
+            if (args.length > 1) {
+                options.targetMicros(Double.parseDouble(args[1]));
+            }
+            if (args.length > 2) {
+                options.mnistDir(Path.of(args[2]));
+            }
+            try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork()) {
+                convolutionalNeuralNetwork.init();
+                convolutionalNeuralNetwork.prune(options.build());
+            }
+        } else if (args.length > 0 && FINE_TUNE_FLAG.equals(args[0])) {
+            FineTuningOptions.FineTuningOptionsBuilder options = FineTuningOptions.builder();
+            if (args.length > 1) {
+                options.mnistDir(Path.of(args[1]));
+            }
+            fineTune(options.build());
+        } else {
+            runUI();
+        }
+    }
+
+    private static void runUI() {
+        JFrame mainFrame = new JFrame();
         ProgressBar progressBar = new ProgressBar(mainFrame, true);
         progressBar.showProgressBar("Collecting data... This may take several seconds!");
         UI ui = new UI();
@@ -26,4 +117,45 @@ public class Main {
             }
         });
     }
+
+    @SneakyThrows
+    private static void runHeadless(int port, int cacheSize, String engine) {
+        ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork();
+        if (JAVA_ENGINE.equals(engine)) {
+            convolutionalNeuralNetwork.initJava();
+        } else if (INT8_ENGINE.equals(engine)) {
+            convolutionalNeuralNetwork.initQuantized();
+        } else if (ND4J_ENGINE.equals(engine)) {
+            convolutionalNeuralNetwork.init();
+        } else {
+            throw new IllegalArgumentException("Unknown engine " + engine + ", expected " + ND4J_ENGINE + ", " + JAVA_ENGINE + " or " + INT8_ENGINE);
+        }
+        PredictionCache cache = cacheSize > 0 ? convolutionalNeuralNetwork.enablePredictionCache(cacheSize) : null;
+        InferenceServer server = new InferenceServer(convolutionalNeuralNetwork, port, MAX_IN_FLIGHT_REQUESTS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            convolutionalNeuralNetwork.close();
+            if (cache != null) {
+                LOG.info(cache.toString());
+            }
+        }));
+        server.start();
+    }
+
+    @SneakyThrows
+    private static void fineTune(FineTuningOptions options) {
+        try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork();
+             FeedbackStore store = FeedbackStore.open(FeedbackStore.DEFAULT_DIR)) {
+            convolutionalNeuralNetwork.init();
+            convolutionalNeuralNetwork.fineTune(store, options);
+        }
+    }
+
+    @SneakyThrows
+    private static void score(Path input, Path csv) {
+        try (ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork()) {
+            convolutionalNeuralNetwork.init();
+            new BulkScorer(convolutionalNeuralNetwork, Runtime.getRuntime().availableProcessors(), SCORING_BATCH_SIZE).score(input, csv);
+        }
+    }
 }
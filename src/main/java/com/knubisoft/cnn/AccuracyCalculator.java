@@ -16,7 +16,7 @@ public class AccuracyCalculator implements ScoreCalculator<MultiLayerNetwork> {
     /**
      * Calculates accuracy of the passed model
      * @param network MultiLayerNetwork to evaluate
-     * @return accuracy of the model
+     * @return error rate (1 - accuracy) of the model
      */
     @Override
     public double calculateScore(MultiLayerNetwork network) {
@@ -26,8 +26,11 @@ public class AccuracyCalculator implements ScoreCalculator<MultiLayerNetwork> {
         return 1 - evaluation.accuracy();
     }
 
+    /**
+     * @return true, since the score is an error rate
+     */
     @Override
     public boolean minimizeScore() {
-        return false;
+        return true;
     }
 }
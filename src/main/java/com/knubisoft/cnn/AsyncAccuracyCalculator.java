@@ -0,0 +1,289 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import lombok.Getter;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Score calculator which does not stall training while the model is evaluated.
+ * <p>
+ * After every epoch a copy of the network is evaluated on a background thread while the next epoch trains.
+ * Intermediate epochs are evaluated on a fixed stratified subsample of the test data (the same share of every digit),
+ * at the end the best candidate and the final model are evaluated on the whole test data and the better of them wins.
+ * <p>
+ * The score of an epoch is not known when the trainer asks for it, so the trainer gets the score of the latest epoch
+ * whose evaluation has completed (the first epoch waits for its own). It is a real score, so score based termination
+ * conditions work with it, but it may lag behind by an epoch or more and the trainer's own choice of the best model
+ * is not used. Instead the best model is chosen here from the scores of the epochs they belong to and is stored with
+ * the saver returned by {@link AsyncAccuracyCalculator#modelSaver()}, whose {@link EarlyStoppingModelSaver#getBestModel()}
+ * waits for evaluations still in progress. Score is 1 - accuracy, so the lower score is the better one.
+ */
+public class AsyncAccuracyCalculator implements ScoreCalculator<MultiLayerNetwork>, AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(AsyncAccuracyCalculator.class.getName());
+
+    private final DataSet testData;
+    private final DataSet sample;
+    private final int batchSize;
+    private final EarlyStoppingModelSaver<MultiLayerNetwork> saver;
+    private final Consumer<Result> resultListener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "async-evaluation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Future<?>> pending = new ArrayList<>();
+    private int submittedEpochs;
+    private MultiLayerNetwork bestCandidate;
+    private MultiLayerNetwork lastCandidate;
+    private double bestSampleScore = Double.MAX_VALUE;
+    private int bestSampleEpoch = -1;
+    private int lastEpoch = -1;
+    private double lastSampleScore = Double.NaN;
+    private MultiLayerNetwork bestModel;
+    /**
+     * Epoch of the best model (starting from 0) after {@link EarlyStoppingModelSaver#getBestModel()} has been called
+     */
+    @Getter
+    private int bestEpoch = -1;
+    /**
+     * Score of the best model on the whole test data after {@link EarlyStoppingModelSaver#getBestModel()} has been called
+     */
+    @Getter
+    private double bestScore = Double.NaN;
+
+    /**
+     * Result of an evaluation
+     *
+     * @param epoch   evaluated epoch, starting from 0
+     * @param score   1 - accuracy
+     * @param samples number of evaluated samples
+     * @param nanos   evaluation time
+     */
+    public record Result(int epoch, double score, int samples, long nanos) {
+    }
+
+    /**
+     * Reads the whole test data into memory and picks the stratified subsample from it
+     *
+     * @param testIterator   iterator over test data
+     * @param sampleSize     number of samples to evaluate intermediate epochs on, the whole test data is used if it is smaller
+     * @param batchSize      number of samples in an evaluation batch
+     * @param seed           seed of the subsample selection
+     * @param saver          saver to store the best model with
+     * @param resultListener receives results of all evaluations, it is called from the evaluation thread
+     */
+    public AsyncAccuracyCalculator(DataSetIterator testIterator, int sampleSize, int batchSize, long seed,
+                                   EarlyStoppingModelSaver<MultiLayerNetwork> saver, Consumer<Result> resultListener) {
+        List<DataSet> batches = new ArrayList<>();
+        testIterator.reset();
+        while (testIterator.hasNext()) {
+            DataSet batch = testIterator.next();
+            batches.add(new DataSet(batch.getFeatures().dup(), batch.getLabels().dup()));
+        }
+        testIterator.reset();
+        this.testData = DataSet.merge(batches);
+        this.sample = stratifiedSample(testData, sampleSize, new Random(seed));
+        this.batchSize = batchSize;
+        this.saver = saver;
+        this.resultListener = resultListener;
+        LOG.info("Intermediate epochs are evaluated on " + sample.numExamples() + " of " + testData.numExamples() + " test samples");
+    }
+
+    /**
+     * Copies the network and schedules its evaluation on the subsample. Only the first call waits for the evaluation
+     *
+     * @param network MultiLayerNetwork to evaluate
+     * @return score of the latest epoch evaluated so far on the subsample, which may be an earlier one
+     */
+    @Override
+    public double calculateScore(MultiLayerNetwork network) {
+        int epoch = submittedEpochs++;
+        MultiLayerNetwork snapshot = network.clone();
+        Future<?> evaluation;
+        synchronized (this) {
+            evaluation = executor.submit(() -> evaluateSample(epoch, snapshot));
+            pending.add(evaluation);
+        }
+        if (epoch == 0) {
+            try {
+                evaluation.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for evaluation", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Evaluation failed", e.getCause());
+            }
+        }
+        synchronized (this) {
+            return lastSampleScore;
+        }
+    }
+
+    @Override
+    public boolean minimizeScore() {
+        return true;
+    }
+
+    /**
+     * Returns saver which stores the best model chosen by real scores instead of the one chosen by the trainer
+     *
+     * @return EarlyStoppingModelSaver to use in the early stopping configuration together with this calculator
+     */
+    public EarlyStoppingModelSaver<MultiLayerNetwork> modelSaver() {
+        return new EarlyStoppingModelSaver<>() {
+            @Override
+            public void saveBestModel(MultiLayerNetwork network, double score) throws IOException {
+                // The trainer only falls back to its own model when the best one cannot be found
+                if (!hasCandidate()) {
+                    saver.saveBestModel(network, score);
+                }
+            }
+
+            @Override
+            public void saveLatestModel(MultiLayerNetwork network, double score) throws IOException {
+                saver.saveLatestModel(network, score);
+            }
+
+            @Override
+            public MultiLayerNetwork getBestModel() throws IOException {
+                return finish();
+            }
+
+            @Override
+            public MultiLayerNetwork getLatestModel() throws IOException {
+                return saver.getLatestModel();
+            }
+        };
+    }
+
+    /**
+     * Stops the evaluation thread
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits for pending evaluations, evaluates the best candidate and the final model on the whole test data
+     * and saves the better of them
+     */
+    private MultiLayerNetwork finish() throws IOException {
+        if (bestModel != null) {
+            return bestModel;
+        }
+        List<Future<?>> evaluations;
+        synchronized (this) {
+            evaluations = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Future<?> future : evaluations) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for evaluation", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Evaluation failed", e.getCause());
+            }
+        }
+        if (!hasCandidate()) {
+            throw new IOException("No model has been evaluated");
+        }
+
+        bestModel = bestCandidate;
+        bestEpoch = bestSampleEpoch;
+        bestScore = evaluateFull(bestSampleEpoch, bestCandidate);
+        if (lastCandidate != bestCandidate) {
+            double lastScore = evaluateFull(lastEpoch, lastCandidate);
+            if (lastScore < bestScore) {
+                bestModel = lastCandidate;
+                bestEpoch = lastEpoch;
+                bestScore = lastScore;
+            }
+        }
+        saver.saveBestModel(bestModel, bestScore);
+        LOG.info("Best model: epoch " + bestEpoch + ", score " + bestScore);
+        return bestModel;
+    }
+
+    private synchronized boolean hasCandidate() {
+        return bestCandidate != null;
+    }
+
+    private void evaluateSample(int epoch, MultiLayerNetwork snapshot) {
+        double score = evaluate(epoch, snapshot, sample).score();
+        synchronized (this) {
+            if (score < bestSampleScore || bestCandidate == null) {
+                bestSampleScore = score;
+                bestSampleEpoch = epoch;
+                bestCandidate = snapshot;
+            }
+            if (epoch > lastEpoch) {
+                lastEpoch = epoch;
+                lastCandidate = snapshot;
+                lastSampleScore = score;
+            }
+        }
+    }
+
+    private double evaluateFull(int epoch, MultiLayerNetwork network) {
+        return evaluate(epoch, network, testData).score();
+    }
+
+    private Result evaluate(int epoch, MultiLayerNetwork network, DataSet data) {
+        long start = System.nanoTime();
+        Evaluation evaluation = network.evaluate(new ListDataSetIterator<>(data.asList(), batchSize));
+        Result result = new Result(epoch, 1 - evaluation.accuracy(), data.numExamples(), System.nanoTime() - start);
+        if (data == testData) {
+            LOG.info(evaluation.stats());
+        }
+        LOG.info("Epoch " + epoch + " accuracy on " + result.samples() + " samples: " + evaluation.accuracy());
+        resultListener.accept(result);
+        return result;
+    }
+
+    /**
+     * Picks the same share of samples of every class in a random order
+     */
+    private static DataSet stratifiedSample(DataSet data, int sampleSize, Random random) {
+        int total = data.numExamples();
+        if (sampleSize >= total) {
+            return data;
+        }
+        int[] classes = data.getLabels().argMax(1).toIntVector();
+        List<List<Integer>> byClass = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            while (byClass.size() <= classes[i]) {
+                byClass.add(new ArrayList<>());
+            }
+            byClass.get(classes[i]).add(i);
+        }
+        List<Integer> picked = new ArrayList<>();
+        for (List<Integer> indexes : byClass) {
+            Collections.shuffle(indexes, random);
+            picked.addAll(indexes.subList(0, (int) Math.round((double) indexes.size() * sampleSize / total)));
+        }
+        Collections.sort(picked);
+        int[] rows = picked.stream().mapToInt(Integer::intValue).toArray();
+        return new DataSet(Nd4j.pullRows(data.getFeatures(), 1, rows), Nd4j.pullRows(data.getLabels(), 1, rows));
+    }
+}
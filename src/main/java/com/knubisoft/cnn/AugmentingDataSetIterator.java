@@ -0,0 +1,237 @@
+package com.knubisoft.cnn;
+
+import com.knubisoft.utils.DigitAugmenter;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataSetIterator which distorts batches of another iterator on the fly with {@link DigitAugmenter},
+ * so training sees a new variant of every digit each epoch without storing augmented data.
+ * <p>
+ * Up to <i>prefetch</i> batches are read ahead from the source and augmented by a pool of producer threads while
+ * the trainer works on the current batch. Batches are returned in the source order and the distortions of a batch
+ * depend only on the seed, the epoch (number of {@link AugmentingDataSetIterator#reset()} calls) and the batch index,
+ * so a training with the same seed sees the same data regardless of the number of threads.
+ * <p>
+ * Pixels of the source batch are copied before the next one is read, so sources which reuse their arrays
+ * (see {@link IdxDataSetIterator#setReuseArrays(boolean)}) can be wrapped. Labels are passed through unchanged.
+ */
+public class AugmentingDataSetIterator implements DataSetIterator, AutoCloseable {
+    private static final int PIXELS = 28 * 28;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final DataSetIterator source;
+    private final int prefetch;
+    private final long seed;
+    private final ExecutorService producers;
+    private final Deque<Future<DataSet>> pending = new ArrayDeque<>();
+    private DataSetPreProcessor preProcessor;
+    private DataSet remainder;
+    private int epoch;
+    private int batches;
+
+    /**
+     * Creates iterator, producer threads are started lazily
+     *
+     * @param source   iterator of <i>28x28</i> images to augment
+     * @param threads  number of producer threads
+     * @param prefetch max number of batches read ahead
+     * @param seed     seed of the distortions
+     */
+    public AugmentingDataSetIterator(DataSetIterator source, int threads, int prefetch, long seed) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch must be positive: " + prefetch);
+        }
+        this.source = source;
+        this.prefetch = prefetch;
+        this.seed = seed;
+        AtomicInteger counter = new AtomicInteger();
+        this.producers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "augmentation-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remainder != null || !pending.isEmpty() || source.hasNext();
+    }
+
+    @Override
+    public DataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DataSet dataSet = nextAugmented();
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    /**
+     * Assembles the next <i>num</i> augmented examples (fewer at the end of the epoch) from consecutive batches.
+     * Examples of a batch left after them are returned first by the following call of either next method,
+     * so distortions do not depend on how the examples are requested
+     *
+     * @param num number of examples
+     * @return DataSet with the next augmented examples
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num < 1) {
+            throw new IllegalArgumentException("Number of examples must be positive: " + num);
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<DataSet> parts = new ArrayList<>();
+        for (int count = 0; count < num && hasNext(); ) {
+            DataSet batch = nextAugmented();
+            int size = batch.numExamples();
+            if (size > num - count) {
+                remainder = range(batch, num - count, size);
+                batch = range(batch, 0, num - count);
+            }
+            parts.add(batch);
+            count += batch.numExamples();
+        }
+        DataSet dataSet = parts.size() == 1 ? parts.get(0) : DataSet.merge(parts);
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    private DataSet nextAugmented() {
+        if (remainder != null) {
+            DataSet dataSet = remainder;
+            remainder = null;
+            return dataSet;
+        }
+        fill();
+        Future<DataSet> next = pending.poll();
+        fill();
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a batch", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Augmentation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Drops batches read ahead and starts the next epoch with new distortions
+     */
+    @Override
+    public void reset() {
+        pending.forEach(future -> future.cancel(true));
+        pending.clear();
+        remainder = null;
+        source.reset();
+        epoch++;
+        batches = 0;
+    }
+
+    /**
+     * Stops producer threads and closes the source
+     */
+    @Override
+    public void close() throws Exception {
+        producers.shutdownNow();
+        if (source instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    @Override
+    public int inputColumns() {
+        return source.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return source.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return source.resetSupported();
+    }
+
+    /**
+     * Batches are already prefetched by the iterator, so wrapping it into an async iterator is not needed
+     */
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return source.batch();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return source.getLabels();
+    }
+
+    private static DataSet range(DataSet batch, int from, int to) {
+        return new DataSet(batch.getFeatures().get(NDArrayIndex.interval(from, to), NDArrayIndex.all()),
+                batch.getLabels().get(NDArrayIndex.interval(from, to), NDArrayIndex.all()));
+    }
+
+    private void fill() {
+        while (pending.size() < prefetch && source.hasNext()) {
+            DataSet batch = source.next();
+            INDArray features = batch.getFeatures();
+            long[] shape = features.shape();
+            if (features.length() != shape[0] * PIXELS) {
+                throw new IllegalArgumentException("Expected 28x28 images, got features of shape " + features.shapeInfoToString());
+            }
+            float[] pixels = features.castTo(DataType.FLOAT).dup('c').data().asFloat();
+            INDArray labels = batch.getLabels().dup();
+            SplittableRandom random = new SplittableRandom((seed * MIX + epoch) * MIX + batches++);
+            pending.add(producers.submit(() -> augment(pixels, shape, labels, random)));
+        }
+    }
+
+    private static DataSet augment(float[] pixels, long[] shape, INDArray labels, SplittableRandom random) {
+        float[] augmented = new float[pixels.length];
+        for (int offset = 0; offset < pixels.length; offset += PIXELS) {
+            DigitAugmenter.augment(pixels, offset, augmented, offset, random);
+        }
+        return new DataSet(Nd4j.create(augmented, shape, 'c'), labels);
+    }
+}
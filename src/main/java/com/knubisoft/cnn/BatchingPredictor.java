@@ -0,0 +1,182 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers concurrent single image predictions into batches and runs them
+ * with one {@link ConvolutionalNeuralNetwork#predictBatchProbabilities(List) forward pass}.
+ * <p>
+ * A batch is sent to the network as soon as it contains <i>maxBatchSize</i> images
+ * or when <i>maxWait</i> elapsed since the first image of the batch was submitted.
+ * <p>
+ * After {@link BatchingPredictor#close()} images submitted before are still predicted, new ones are rejected.
+ */
+public class BatchingPredictor implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(BatchingPredictor.class.getName());
+    private static final PendingPrediction STOP = new PendingPrediction(null, null);
+    private static final int PIXELS = 28 * 28;
+    private final ConvolutionalNeuralNetwork network;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<PendingPrediction> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private boolean closed;
+
+    /**
+     * Creates predictor and starts background thread which forms and runs batches
+     *
+     * @param network      trained CNN used for predictions
+     * @param maxBatchSize max number of images in one forward pass
+     * @param maxWait      max time to wait for other images after the first image of the batch was submitted
+     * @param unit         time unit of <i>maxWait</i>
+     */
+    public BatchingPredictor(ConvolutionalNeuralNetwork network, int maxBatchSize, long maxWait, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+        }
+        this.network = network;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        worker = new Thread(this::processBatches, "batching-predictor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues image for prediction
+     *
+     * @param img LabeledImage to predict class of
+     * @return future completed with the predicted class index once the batch containing the image is processed
+     */
+    public CompletableFuture<Integer> submit(LabeledImage img) {
+        return submitForProbabilities(img).thenApply(BatchingPredictor::argMax);
+    }
+
+    /**
+     * Queues image for computing probabilities of every class
+     *
+     * @param img LabeledImage to compute class probabilities of
+     * @return future completed with class probabilities once the batch containing the image is processed,
+     * an image of another size than 28x28 fails only its own future instead of the whole batch
+     */
+    public CompletableFuture<double[]> submitForProbabilities(LabeledImage img) {
+        if (img.pixels().length != PIXELS) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Expected " + PIXELS + " pixels, got " + img.pixels().length));
+        }
+        CompletableFuture<double[]> result = new CompletableFuture<>();
+        // checked and queued under the lock of close(), so no image is queued after the queue has been drained
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Predictor is closed"));
+            }
+            queue.add(new PendingPrediction(img, result));
+        }
+        return result;
+    }
+
+    /**
+     * Finds index of the most probable class
+     *
+     * @param probabilities class probabilities
+     * @return index of the max value
+     */
+    public static int argMax(double[] probabilities) {
+        int best = 0;
+        for (int i = 1; i < probabilities.length; i++) {
+            if (probabilities[i] > probabilities[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stops background thread once the predictions submitted before are done
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingPrediction> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        rest.stream().
+                filter(p -> p != STOP).
+                forEach(p -> p.result().completeExceptionally(new RejectedExecutionException("Predictor is closed")));
+    }
+
+    private void processBatches() {
+        List<PendingPrediction> batch = new ArrayList<>(maxBatchSize);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                stopped = collectBatch(batch);
+            } catch (InterruptedException e) {
+                batch.forEach(p -> p.result().completeExceptionally(new RejectedExecutionException("Predictor is closed")));
+                return;
+            }
+            if (!batch.isEmpty()) {
+                runBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @return whether the predictor has been closed, the collected batch still has to be run then
+     */
+    private boolean collectBatch(List<PendingPrediction> batch) throws InterruptedException {
+        PendingPrediction first = queue.take();
+        if (first == STOP) {
+            return true;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            PendingPrediction next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return false;
+            }
+            if (next == STOP) {
+                return true;
+            }
+            batch.add(next);
+        }
+        return false;
+    }
+
+    private void runBatch(List<PendingPrediction> batch) {
+        try {
+            double[][] predicted = network.predictBatchProbabilities(batch.stream().map(PendingPrediction::image).toList());
+            for (int i = 0; i < predicted.length; i++) {
+                batch.get(i).result().complete(predicted[i]);
+            }
+        } catch (Throwable e) {
+            // an Error fails only this batch, the worker keeps serving the following ones
+            LOG.error("Batch prediction failed", e);
+            batch.forEach(p -> p.result().completeExceptionally(e));
+        }
+    }
+
+    private record PendingPrediction(LabeledImage image, CompletableFuture<double[]> result) {
+    }
+}
@@ -0,0 +1,239 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import lombok.Getter;
+import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Early stopping model saver which does not pause training while models are written.
+ * <p>
+ * Passed network is copied on the calling thread and the copy is serialized with {@link ModelSerializer}
+ * (a deflated zip with parameters and updater state) on a background writer thread. Every file is written
+ * to a temporary file first and then renamed, so a crash never leaves a broken checkpoint behind.
+ * <p>
+ * The directory keeps the latest checkpoint (<i>latest-&lt;completed epochs&gt;.zip</i>) to resume training from
+ * and the best {@link CheckpointSaver#keepBest} checkpoints (<i>best-&lt;score&gt;-&lt;timestamp&gt;.zip</i>),
+ * worse ones are pruned. Lower score is the better one.
+ */
+public class CheckpointSaver implements EarlyStoppingModelSaver<MultiLayerNetwork>, AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(CheckpointSaver.class.getName());
+    private static final String LATEST_PREFIX = "latest-";
+    private static final String BEST_PREFIX = "best-";
+    private static final String EXTENSION = ".zip";
+
+    private final Path dir;
+    private final int keepBest;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> lastWrite;
+    private MultiLayerNetwork bestModel;
+    private MultiLayerNetwork latestModel;
+    /**
+     * Number of completed epochs stored in the latest checkpoint, including epochs trained before resuming
+     */
+    @Getter
+    private int latestEpoch;
+
+    /**
+     * Creates saver over passed directory
+     *
+     * @param dir      directory to keep checkpoints in
+     * @param keepBest number of the best checkpoints to keep
+     * @param resume   whether to continue with existing checkpoints, otherwise they are deleted
+     * @throws IOException if the directory cannot be read or cleaned
+     */
+    public CheckpointSaver(Path dir, int keepBest, boolean resume) throws IOException {
+        this.dir = dir;
+        this.keepBest = keepBest;
+        Files.createDirectories(dir);
+        if (resume) {
+            latestEpoch = latestFile().map(CheckpointSaver::epochOf).orElse(0);
+        } else {
+            clear();
+        }
+    }
+
+    /**
+     * Deletes all checkpoints to start training from scratch
+     *
+     * @throws IOException if checkpoints cannot be deleted
+     */
+    public synchronized void clear() throws IOException {
+        flush();
+        for (Path file : list(LATEST_PREFIX)) {
+            Files.delete(file);
+        }
+        for (Path file : list(BEST_PREFIX)) {
+            Files.delete(file);
+        }
+        latestEpoch = 0;
+        bestModel = null;
+        latestModel = null;
+    }
+
+    @Override
+    public synchronized void saveBestModel(MultiLayerNetwork network, double score) {
+        bestModel = network.clone();
+        MultiLayerNetwork copy = bestModel;
+        String name = String.format(Locale.ROOT, "%s%.6f-%d%s", BEST_PREFIX, score, System.currentTimeMillis(), EXTENSION);
+        submit(() -> {
+            write(copy, dir.resolve(name));
+            List<Path> best = list(BEST_PREFIX);
+            best.sort(Comparator.comparingDouble(CheckpointSaver::scoreOf));
+            for (Path file : best.subList(Math.min(keepBest, best.size()), best.size())) {
+                Files.delete(file);
+            }
+        });
+    }
+
+    /**
+     * Saves checkpoint of a completed epoch, the previous latest checkpoint is deleted once it is written
+     */
+    @Override
+    public synchronized void saveLatestModel(MultiLayerNetwork network, double score) {
+        latestModel = network.clone();
+        MultiLayerNetwork copy = latestModel;
+        Path file = dir.resolve(LATEST_PREFIX + ++latestEpoch + EXTENSION);
+        submit(() -> {
+            write(copy, file);
+            for (Path previous : list(LATEST_PREFIX)) {
+                if (!previous.equals(file)) {
+                    Files.delete(previous);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized MultiLayerNetwork getBestModel() throws IOException {
+        if (bestModel == null) {
+            flush();
+            bestModel = read(list(BEST_PREFIX).stream().min(Comparator.comparingDouble(CheckpointSaver::scoreOf)));
+        }
+        return bestModel;
+    }
+
+    @Override
+    public synchronized MultiLayerNetwork getLatestModel() throws IOException {
+        if (latestModel == null) {
+            flush();
+            latestModel = read(latestFile());
+        }
+        return latestModel;
+    }
+
+    /**
+     * @return whether there is a checkpoint to resume training from
+     */
+    public boolean hasLatest() {
+        return latestEpoch > 0;
+    }
+
+    /**
+     * Waits until all submitted checkpoints are written
+     *
+     * @throws IOException if writing of a checkpoint failed
+     */
+    public synchronized void flush() throws IOException {
+        if (lastWrite == null) {
+            return;
+        }
+        try {
+            lastWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Checkpoint has not been written", e.getCause());
+        }
+    }
+
+    /**
+     * Writes pending checkpoints and stops the writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        writer.shutdown();
+    }
+
+    /**
+     * Schedules writing task, the single writer thread runs tasks in the order they are submitted
+     */
+    private void submit(IORunnable task) {
+        lastWrite = writer.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (IOException e) {
+                LOG.error("Failed to write checkpoint", e);
+                throw e;
+            }
+            LOG.debug("Checkpoint written in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            return null;
+        });
+    }
+
+    private static void write(MultiLayerNetwork network, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ModelSerializer.writeModel(network, tmp.toFile(), true);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MultiLayerNetwork read(Optional<Path> file) throws IOException {
+        if (file.isEmpty()) {
+            throw new IOException("No checkpoint found");
+        }
+        LOG.info("Loading checkpoint " + file.get());
+        return ModelSerializer.restoreMultiLayerNetwork(file.get().toFile(), true);
+    }
+
+    private Optional<Path> latestFile() throws IOException {
+        return list(LATEST_PREFIX).stream().max(Comparator.comparingInt(CheckpointSaver::epochOf));
+    }
+
+    private List<Path> list(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(prefix) && name.endsWith(EXTENSION);
+            }).collect(Collectors.toList());
+        }
+    }
+
+    private static int epochOf(Path latest) {
+        String name = latest.getFileName().toString();
+        return Integer.parseInt(name.substring(LATEST_PREFIX.length(), name.length() - EXTENSION.length()));
+    }
+
+    private static double scoreOf(Path best) {
+        String name = best.getFileName().toString();
+        return Double.parseDouble(name.substring(BEST_PREFIX.length(), name.lastIndexOf('-')));
+    }
+
+    @FunctionalInterface
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,260 @@
+package com.knubisoft.cnn;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary model format which keeps only network parameters (no configuration JSON and no updater state).
+ * <p>
+ * Layout (all numbers are little-endian):
+ * <ol>
+ *     <li><i>int</i> magic <code>DRCM</code>, <i>int</i> format version</li>
+ *     <li><i>long</i> size and <i>long</i> modification time of the model file the parameters were exported from,
+ *     <i>-1</i> if unknown (absent in version 1 files)</li>
+ *     <li><i>int</i> number of parameter arrays, then for each of them:
+ *     <i>short</i> name length, UTF-8 name (e.g. <code>0_W</code>), <i>byte</i> rank, <i>int</i> dimensions</li>
+ *     <li><i>long</i> total number of parameters followed by float32 values of every parameter array
+ *     in the header order, each of them in row major (<i>c</i>) order</li>
+ * </ol>
+ * Reading maps the file into memory and fills parameters of the network straight from the mapped buffer.
+ * Since the file is self-describing, it can be read without ND4J as well (see {@link JavaInferenceEngine#loadCompact(File)}).
+ * The recorded source tells whether the file is still {@link CompactModelFormat#isExportOf(File, File) an export of} the model file.
+ */
+public class CompactModelFormat {
+    private static final int MAGIC = 0x4D435244;
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_SOURCE = 1;
+    private static final long UNKNOWN = -1;
+
+    /**
+     * Writes parameters of passed network without a source model file. The file is replaced atomically
+     *
+     * @param network network to export
+     * @param file    destination file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(MultiLayerNetwork network, File file) throws IOException {
+        write(network, file, null);
+    }
+
+    /**
+     * Writes parameters of passed network and records size and modification time of the model file
+     * they were exported from. The file is replaced atomically
+     *
+     * @param network network to export
+     * @param file    destination file
+     * @param source  model file holding the same network or <i>null</i> if there is none
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(MultiLayerNetwork network, File file, File source) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<String, INDArray> table = network.paramTable();
+        boolean known = source != null && source.exists();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize(network)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).
+                    putLong(known ? source.length() : UNKNOWN).
+                    putLong(known ? source.lastModified() : UNKNOWN).
+                    putInt(table.size());
+            for (Map.Entry<String, INDArray> entry : table.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                header.putShort((short) name.length).put(name).put((byte) entry.getValue().rank());
+                for (long dim : entry.getValue().shape()) {
+                    header.putInt((int) dim);
+                }
+            }
+            header.putLong(network.numParams());
+            out.write(header.array());
+
+            ByteBuffer values = ByteBuffer.allocate(Float.BYTES * (int) network.numParams()).order(ByteOrder.LITTLE_ENDIAN);
+            for (INDArray param : table.values()) {
+                values.asFloatBuffer().put(param.castTo(DataType.FLOAT).dup('c').reshape(param.length()).toFloatVector());
+                values.position(values.position() + Float.BYTES * (int) param.length());
+            }
+            out.write(values.array());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the file into memory and creates network with passed configuration and mapped parameters.
+     * The network is initialized with a parameter array of the length stored in the file, so its weights are not
+     * randomly initialized before they are overwritten, and every parameter view is filled straight from the mapped values
+     *
+     * @param file compact model file
+     * @param conf configuration of the exported network
+     * @return initialized network
+     * @throws IOException if the file cannot be read or does not match passed configuration
+     */
+    public static MultiLayerNetwork read(File file, MultiLayerConfiguration conf) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, long[]> shapes = readHeader(mapped, file);
+            long length = mapped.getLong();
+            long expected = shapes.values().stream().mapToLong(shape -> Arrays.stream(shape).reduce(1, (a, b) -> a * b)).sum();
+            if (length != expected || mapped.remaining() != length * Float.BYTES) {
+                throw new IOException(file + " is truncated or corrupted");
+            }
+
+            MultiLayerNetwork network = new MultiLayerNetwork(conf);
+            try {
+                network.init(Nd4j.create(conf.getDataType(), 1, length), false);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Number of parameters in " + file + " does not match model", e);
+            }
+            validate(network, shapes, file);
+            for (Map.Entry<String, INDArray> entry : network.paramTable().entrySet()) {
+                INDArray param = entry.getValue();
+                ByteBuffer values = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+                param.assign(toArray(values, (int) param.length()).reshape('c', param.shape()));
+                mapped.position(mapped.position() + Float.BYTES * (int) param.length());
+            }
+            return network;
+        }
+    }
+
+    /**
+     * Reads only the header of the file
+     *
+     * @param file compact model file
+     * @return shapes of parameter arrays by their names in the order of the network parameters
+     * @throws IOException if the file cannot be read or it is not a compact model file
+     */
+    public static Map<String, long[]> readShapes(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readHeader(mapped.order(ByteOrder.LITTLE_ENDIAN), file);
+        }
+    }
+
+    /**
+     * Reads all parameter arrays as plain float arrays without creating a network (and without ND4J)
+     *
+     * @param file compact model file
+     * @return row major values of parameter arrays by their names in the order of the network parameters
+     * @throws IOException if the file cannot be read or it is not a compact model file
+     */
+    public static Map<String, float[]> readValues(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, long[]> shapes = readHeader(mapped, file);
+            mapped.getLong();
+            Map<String, float[]> values = new LinkedHashMap<>();
+            for (Map.Entry<String, long[]> entry : shapes.entrySet()) {
+                float[] array = new float[(int) Arrays.stream(entry.getValue()).reduce(1, (a, b) -> a * b)];
+                mapped.asFloatBuffer().get(array);
+                mapped.position(mapped.position() + Float.BYTES * array.length);
+                values.put(entry.getKey(), array);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Tells whether the compact file has been exported from the current content of the model file,
+     * it is recorded by {@link CompactModelFormat#write(MultiLayerNetwork, File, File)} as size and modification time
+     *
+     * @param file   compact model file
+     * @param source model file
+     * @return false if the model file has been replaced since the export or the source is unknown
+     * @throws IOException if the file cannot be read or it is not a compact model file
+     */
+    public static boolean isExportOf(File file, File source) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long[] stamp = readSource(mapped.order(ByteOrder.LITTLE_ENDIAN), file);
+            return stamp[0] != UNKNOWN && stamp[0] == source.length() && stamp[1] == source.lastModified();
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated or corrupted", e);
+        }
+    }
+
+    /**
+     * @return size and modification time of the source model file, <i>-1</i> if unknown
+     */
+    private static long[] readSource(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a compact model file");
+        }
+        int version = buffer.getInt();
+        if (version == VERSION_WITHOUT_SOURCE) {
+            return new long[]{UNKNOWN, UNKNOWN};
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported compact model version " + version + " in " + file);
+        }
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    private static Map<String, long[]> readHeader(ByteBuffer buffer, File file) throws IOException {
+        readSource(buffer, file);
+        int count = buffer.getInt();
+        Map<String, long[]> shapes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            long[] shape = new long[buffer.get()];
+            for (int d = 0; d < shape.length; d++) {
+                shape[d] = buffer.getInt();
+            }
+            shapes.put(new String(name, StandardCharsets.UTF_8), shape);
+        }
+        return shapes;
+    }
+
+    /**
+     * Creates array from mapped values. On little-endian platforms
+     * the mapped bytes are bulk copied by ND4J as is, otherwise values are decoded one by one
+     */
+    private static INDArray toArray(ByteBuffer values, int length) {
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            return Nd4j.create(Nd4j.createBuffer(values, DataType.FLOAT, length), 1, length);
+        }
+        float[] params = new float[length];
+        values.asFloatBuffer().get(params);
+        return Nd4j.create(params, new long[]{1, length}, DataType.FLOAT);
+    }
+
+    private static void validate(MultiLayerNetwork network, Map<String, long[]> shapes, File file) throws IOException {
+        Map<String, INDArray> table = network.paramTable();
+        if (!table.keySet().equals(shapes.keySet())) {
+            throw new IOException("Parameters " + shapes.keySet() + " in " + file + " do not match model " + table.keySet());
+        }
+        for (Map.Entry<String, INDArray> entry : table.entrySet()) {
+            if (!Arrays.equals(entry.getValue().shape(), shapes.get(entry.getKey()))) {
+                throw new IOException("Shape of " + entry.getKey() + " in " + file + " is " + Arrays.toString(shapes.get(entry.getKey()))
+                        + ", but model expects " + Arrays.toString(entry.getValue().shape()));
+            }
+        }
+    }
+
+    private static int headerSize(MultiLayerNetwork network) {
+        int size = 3 * Integer.BYTES + 3 * Long.BYTES;
+        for (Map.Entry<String, INDArray> entry : network.paramTable().entrySet()) {
+            size += Short.BYTES + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 1 + Integer.BYTES * entry.getValue().rank();
+        }
+        return size;
+    }
+}
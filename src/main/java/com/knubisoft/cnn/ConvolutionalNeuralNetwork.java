@@ -1,14 +1,18 @@
 package com.knubisoft.cnn;
 
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
 import freemarker.log.Logger;
 import lombok.SneakyThrows;
 import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
 import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
 import org.deeplearning4j.earlystopping.EarlyStoppingResult;
-import org.deeplearning4j.earlystopping.saver.LocalFileModelSaver;
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
 import org.deeplearning4j.earlystopping.termination.MaxEpochsTerminationCondition;
 import org.deeplearning4j.earlystopping.termination.MaxTimeIterationTerminationCondition;
 import org.deeplearning4j.earlystopping.trainer.EarlyStoppingTrainer;
+import org.deeplearning4j.earlystopping.trainer.IEarlyStoppingTrainer;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
@@ -17,26 +21,48 @@ import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.*;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.parallelism.EarlyStoppingParallelTrainer;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Nesterovs;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
-public class ConvolutionalNeuralNetwork {
+public class ConvolutionalNeuralNetwork implements AutoCloseable {
     private final static Logger LOG = Logger.getLogger(ConvolutionalNeuralNetwork.class.getName());
     private static final String MODEL_PATH = "resources/model.bin";
+    private static final String COMPACT_MODEL_PATH = "resources/model.cnn";
+    private static final String QUANTIZED_MODEL_PATH = "resources/model.q8";
     private static final String OUT_DIR = "resources";
-    private static final double LEARNING_RATE = 0.01;
-    private static final int BATCH_SIZE = 16;
+    private static final String METRICS_FILE = "training-metrics.jsonl";
+    private static final String CHECKPOINT_DIR = "checkpoints";
+    private static final int KEEP_BEST_CHECKPOINTS = 3;
+    private static final int BATCH_SIZE = Hyperparameters.DEFAULT.batchSize();
     private static final int MAX_WAIT_AMOUNT = 15;
+    private static final int AVERAGING_FREQUENCY = 5;
+    private static final int PREFETCH_BUFFER = 4;
+    private static final int AUGMENTATION_THREADS = 2;
     private static final int EPOCHS = 10;
+    private static final int CALIBRATION_SIZE = 500;
+    private static final int QUANTIZATION_TEST_SIZE = 10_000;
     private static final int HEIGHT = 28;
     private static final int WIDTH = 28;
     private static final int DEPTH = 1;
@@ -44,17 +70,307 @@ public class ConvolutionalNeuralNetwork {
     private static final int OUT = 10;
     private static final int INP_CHANNELS = 1;
 
-    private MultiLayerNetwork trainedModel;
+    private final int inferenceThreads;
+    private final DataType dataType;
+    private volatile PredictionCache predictionCache;
+    private volatile ReplicaPool replicas;
+    private volatile ThreadLocal<InferenceEngine> engines;
+    private volatile ModelRegistry registry;
+    private volatile boolean closed;
+
+    /**
+     * Creates CNN without a model which runs up to one prediction per CPU core at the same time,
+     * call {@link ConvolutionalNeuralNetwork#init()} to load the saved model
+     */
+    public ConvolutionalNeuralNetwork() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates CNN without a model which computes in float32, call {@link ConvolutionalNeuralNetwork#init()} to load the saved model
+     *
+     * @param inferenceThreads number of {@link ReplicaPool model replicas} serving concurrent predictions
+     */
+    public ConvolutionalNeuralNetwork(int inferenceThreads) {
+        this(inferenceThreads, DataType.FLOAT);
+    }
+
+    /**
+     * Creates CNN without a model, call {@link ConvolutionalNeuralNetwork#init()} to load the saved model
+     *
+     * @param inferenceThreads number of {@link ReplicaPool model replicas} serving concurrent predictions
+     * @param dataType         data type of trained networks, loaded models are converted to it.
+     *                         Images are passed as float32 and cast only if it is another type
+     */
+    public ConvolutionalNeuralNetwork(int inferenceThreads, DataType dataType) {
+        this.inferenceThreads = inferenceThreads;
+        this.dataType = dataType;
+    }
+
+    /**
+     * Creates the registry and its warm-up input on the first use of an ND4J model, so a CNN
+     * {@link ConvolutionalNeuralNetwork#serve(InferenceEngine) served by an engine} never loads the native ND4J backend
+     */
+    private ModelRegistry registry() {
+        ModelRegistry created = registry;
+        if (created != null) {
+            return created;
+        }
+        synchronized (this) {
+            if (registry == null) {
+                if (closed) {
+                    throw new IllegalStateException("CNN is closed");
+                }
+                INDArray warmUpInput = Nd4j.zeros(1, HEIGHT * WIDTH * DEPTH);
+                ModelRegistry newRegistry = new ModelRegistry(warmUpInput);
+                newRegistry.addListener(version -> replaceReplicas(version, warmUpInput));
+                registry = newRegistry;
+            }
+            return registry;
+        }
+    }
+
+    private void replaceReplicas(ModelVersion version, INDArray warmUpInput) {
+        // replicas are replaced before the cache is cleared, see computeProbabilities
+        ReplicaPool previous;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            previous = replicas;
+            replicas = new ReplicaPool(version.network(), inferenceThreads, warmUpInput);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        PredictionCache cache = predictionCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Stops the {@link ReplicaPool replica threads} once the predictions in flight are done and the model loader thread,
+     * the CNN cannot predict afterwards
+     */
+    @Override
+    public void close() {
+        ReplicaPool pool;
+        ModelRegistry created;
+        synchronized (this) {
+            closed = true;
+            pool = replicas;
+            replicas = null;
+            created = registry;
+        }
+        if (created != null) {
+            created.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
 
     /**
      * Initiate a convolutional neural network model
-     * (loads data if model has been already trained and saved to file and this file exists)
+     * (loads data if model has been already trained and saved to file and this file exists).
+     * The {@link CompactModelFormat compact model} is preferred when it has been
+     * {@link CompactModelFormat#isExportOf(File, File) exported from} the model saved with {@link ModelSerializer}.
+     * Loading time is logged and the version is labeled with the file actually read.
      */
     @SneakyThrows
     public void init() {
+        if (registry().current() != null) {
+            return;
+        }
+        File source = modelSource();
+        if (source.exists()) {
+            registry().promote(loadModel(source), source.getName());
+        }
+    }
+
+    /**
+     * Loads the saved model in background and promotes it once it is warmed up, predictions keep using the active model
+     * until then
+     *
+     * @return future completed with the promoted version
+     * @throws IllegalStateException if predictions are {@link ConvolutionalNeuralNetwork#serve(InferenceEngine) served by an engine}
+     */
+    public CompletableFuture<ModelVersion> reloadModel() {
+        checkNotServingEngine();
+        File source = modelSource();
+        return registry().loadAsync(() -> loadModel(source), source.getName());
+    }
+
+    /**
+     * Returns to the model which was active before the last promotion
+     *
+     * @return the active version after rollback
+     * @throws IllegalStateException if there is no previous version or predictions are
+     *                               {@link ConvolutionalNeuralNetwork#serve(InferenceEngine) served by an engine}
+     */
+    public ModelVersion rollbackModel() {
+        checkNotServingEngine();
+        return registry().rollback();
+    }
+
+    /**
+     * @return version of the model serving predictions or <i>null</i> if no model has been loaded or trained
+     */
+    public ModelVersion getModelVersion() {
+        ModelRegistry created = registry;
+        return created == null ? null : created.current();
+    }
+
+    /**
+     * @param source {@link ConvolutionalNeuralNetwork#modelSource() model file} to read
+     */
+    private MultiLayerNetwork loadModel(File source) throws IOException {
+        long start = System.nanoTime();
+        if (source.equals(new File(COMPACT_MODEL_PATH))) {
+            // widths are taken from the file, since a pruned model is narrower than the default one
+            Hyperparameters hyperparameters = Hyperparameters.DEFAULT.withWidthsOf(CompactModelFormat.readShapes(source));
+            MultiLayerNetwork network = CompactModelFormat.read(source, buildCNNConf(hyperparameters, dataType));
+            LOG.info("Compact model loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            return network;
+        }
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(source);
+        if (network.params().dataType() != dataType) {
+            network = network.convertDataType(dataType);
+        }
+        LOG.info("Serialized model loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return network;
+    }
+
+    /**
+     * @return the compact model if there is no serialized model or the compact one has been exported from its current
+     * content, the serialized model otherwise. The returned file does not exist when no model has been saved
+     */
+    private static File modelSource() {
         File modelFile = new File(MODEL_PATH);
-        if (trainedModel == null && modelFile.exists()) {
-            trainedModel = ModelSerializer.restoreMultiLayerNetwork(modelFile);
+        File compactFile = new File(COMPACT_MODEL_PATH);
+        if (!compactFile.exists()) {
+            return modelFile;
+        }
+        if (!modelFile.exists()) {
+            return compactFile;
+        }
+        try {
+            return CompactModelFormat.isExportOf(compactFile, modelFile) ? compactFile : modelFile;
+        } catch (IOException e) {
+            LOG.warn("Cannot read " + compactFile + ", " + modelFile + " is used instead: " + e.getMessage());
+            return modelFile;
+        }
+    }
+
+    /**
+     * @return network of the active version
+     * @throws IllegalStateException if there is no model yet
+     */
+    private MultiLayerNetwork model() {
+        ModelVersion version = getModelVersion();
+        if (version == null) {
+            throw new IllegalStateException("Model has not been trained yet");
+        }
+        return version.network();
+    }
+
+    /**
+     * Exports parameters of the trained model to {@link ConvolutionalNeuralNetwork#COMPACT_MODEL_PATH <i>COMPACT_MODEL_PATH</i>}
+     * in the {@link CompactModelFormat compact format}, which is loaded by {@link ConvolutionalNeuralNetwork#init()} much faster.
+     * The export is marked as the copy of the current {@link ConvolutionalNeuralNetwork#MODEL_PATH <i>MODEL_PATH</i>},
+     * it is used only until that file is replaced
+     */
+    @SneakyThrows
+    public void exportCompact() {
+        CompactModelFormat.write(model(), new File(COMPACT_MODEL_PATH), new File(MODEL_PATH));
+        LOG.info("Compact model exported to " + COMPACT_MODEL_PATH);
+    }
+
+    /**
+     * Quantizes the trained model to int8 (see {@link QuantizedInferenceEngine}) and writes it to
+     * {@link ConvolutionalNeuralNetwork#QUANTIZED_MODEL_PATH <i>QUANTIZED_MODEL_PATH</i>}.
+     * Activation ranges are calibrated on the first {@link ConvolutionalNeuralNetwork#CALIBRATION_SIZE} MNIST test samples,
+     * the rest of them are used to compare the quantized model with the float one
+     *
+     * @param mnistDir Directory with local MNIST IDX files, MNIST is downloaded when it is null
+     * @return QuantizationReport comparing accuracy, size and latency of both models
+     */
+    @SneakyThrows
+    public QuantizationReport quantize(Path mnistDir) {
+        List<float[]> images = new ArrayList<>();
+        List<Integer> labels = new ArrayList<>();
+        DataSetIterator mnistTest = mnistDir == null
+                ? new MnistDataSetIterator(BATCH_SIZE, QUANTIZATION_TEST_SIZE, false, false, false, SEED)
+                : IdxDataSetIterator.mnist(mnistDir, false, BATCH_SIZE, QUANTIZATION_TEST_SIZE, SEED);
+        try {
+            while (mnistTest.hasNext()) {
+                DataSet batch = mnistTest.next();
+                float[][] features = batch.getFeatures().toFloatMatrix();
+                int[] classes = batch.getLabels().argMax(1).toIntVector();
+                for (int i = 0; i < features.length; i++) {
+                    images.add(features[i]);
+                    labels.add(classes[i]);
+                }
+            }
+        } finally {
+            close(mnistTest);
+        }
+
+        JavaInferenceEngine floatEngine = JavaInferenceEngine.fromNetwork(model());
+        int calibrationSize = Math.min(CALIBRATION_SIZE, images.size() / 2);
+        QuantizedInferenceEngine quantizedEngine = QuantizedInferenceEngine.quantize(floatEngine, images.subList(0, calibrationSize));
+        quantizedEngine.write(new File(QUANTIZED_MODEL_PATH));
+        LOG.info("Quantized model written to " + QUANTIZED_MODEL_PATH);
+
+        QuantizationReport report = QuantizationReport.compare(floatEngine, quantizedEngine, images.subList(calibrationSize, images.size()),
+                labels.subList(calibrationSize, labels.size()).stream().mapToInt(Integer::intValue).toArray());
+        LOG.info(report.toString());
+        return report;
+    }
+
+    /**
+     * Serves predictions with the {@link JavaInferenceEngine plain Java forward pass} of the saved model instead of
+     * the ND4J model. The {@link CompactModelFormat compact model} is preferred like in {@link ConvolutionalNeuralNetwork#init()},
+     * it is read without ND4J, so serving it never loads the native ND4J backend
+     */
+    public void initJava() {
+        File source = modelSource();
+        long start = System.nanoTime();
+        serve(source.equals(new File(COMPACT_MODEL_PATH)) ? JavaInferenceEngine.loadCompact(source) : JavaInferenceEngine.load(source));
+        LOG.info("Model for plain Java inference loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Serves predictions with the int8 model written by {@link ConvolutionalNeuralNetwork#quantize(Path)} to
+     * {@link ConvolutionalNeuralNetwork#QUANTIZED_MODEL_PATH <i>QUANTIZED_MODEL_PATH</i>} instead of the ND4J model.
+     * Its activation ranges are calibrated on MNIST features, the scale {@link ModelInput} serves
+     */
+    @SneakyThrows
+    public void initQuantized() {
+        long start = System.nanoTime();
+        serve(QuantizedInferenceEngine.read(new File(QUANTIZED_MODEL_PATH)));
+        LOG.info("Quantized model loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Serves all following predictions with passed engine instead of the ND4J model. Every thread predicting
+     * gets its own {@link InferenceEngine#copy() copy} of the engine, the weights are shared.
+     * The model served this way cannot be {@link ConvolutionalNeuralNetwork#reloadModel() reloaded}
+     *
+     * @param engine engine to run forward passes with
+     */
+    public void serve(InferenceEngine engine) {
+        engines = ThreadLocal.withInitial(engine::copy);
+        PredictionCache cache = predictionCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private void checkNotServingEngine() {
+        if (engines != null) {
+            throw new IllegalStateException("Model served by " + InferenceEngine.class.getSimpleName() + " cannot be replaced");
         }
     }
 
@@ -65,10 +381,217 @@ public class ConvolutionalNeuralNetwork {
      * @return The predicted class index which represents passed LabeledImage
      */
     public int predict(LabeledImage img) {
-        double[] pixels = img.pixels();
-        Arrays.stream(pixels).forEach(pixel -> pixel /= 255); //normalizes value if it is greater than max value (255)
-        INDArray indArray = Nd4j.create(pixels).reshape(1, pixels.length);
-        return trainedModel.predict(indArray)[0];
+        if (predictionCache != null || engines != null) {
+            return BatchingPredictor.argMax(predictProbabilities(img));
+        }
+        long start = InferenceMetrics.start(Stage.PREDICTION);
+        int predicted = output(toBatchInput(List.of(img))).argMax(1).getInt(0);
+        InferenceMetrics.stop(Stage.PREDICTION, start);
+        return predicted;
+    }
+
+    /**
+     * Uses already trained CNN model to predict classes of several LabeledImages with one forward pass.
+     * Images are stacked into a single <i>[batch, pixels]</i> matrix, so the convolution layers process
+     * the whole batch at once instead of paying the per-call overhead for every image.
+     *
+     * @param imgs LabeledImages containing vectors of the same length (one color channel)
+     * @return The predicted class indexes in the same order as passed LabeledImages
+     */
+    public int[] predictBatch(List<LabeledImage> imgs) {
+        if (imgs.isEmpty()) {
+            return new int[0];
+        }
+        if (predictionCache != null || engines != null) {
+            return Arrays.stream(predictBatchProbabilities(imgs)).mapToInt(BatchingPredictor::argMax).toArray();
+        }
+        long start = InferenceMetrics.start(Stage.PREDICTION);
+        int[] predicted = output(toBatchInput(imgs)).argMax(1).toIntVector();
+        InferenceMetrics.stop(Stage.PREDICTION, start);
+        return predicted;
+    }
+
+    /**
+     * Uses already trained CNN model to compute probabilities of every class for passed LabeledImage
+     *
+     * @param img LabeledImage containing vector (one dimensional array) which represents image with one color channel
+     * @return array of {@link ConvolutionalNeuralNetwork#OUT} probabilities where index is the class
+     */
+    public double[] predictProbabilities(LabeledImage img) {
+        return predictBatchProbabilities(List.of(img))[0];
+    }
+
+    /**
+     * Uses already trained CNN model to compute class probabilities of several LabeledImages with one forward pass.
+     * If the {@link ConvolutionalNeuralNetwork#enablePredictionCache(int) cache} is enabled only images missing
+     * in it are passed to the model
+     *
+     * @param imgs LabeledImages containing vectors of the same length (one color channel)
+     * @return probabilities of every class for each passed LabeledImage in the same order
+     */
+    public double[][] predictBatchProbabilities(List<LabeledImage> imgs) {
+        if (imgs.isEmpty()) {
+            return new double[0][];
+        }
+        long start = InferenceMetrics.start(Stage.PREDICTION);
+        double[][] probabilities = computeProbabilities(imgs);
+        InferenceMetrics.stop(Stage.PREDICTION, start);
+        return probabilities;
+    }
+
+    private double[][] computeProbabilities(List<LabeledImage> imgs) {
+        PredictionCache cache = predictionCache;
+        if (cache == null) {
+            return forward(imgs);
+        }
+        // the generation is taken before the replicas, so results of a replaced model are never cached
+        long generation = cache.generation();
+        double[][] probabilities = new double[imgs.size()][];
+        List<PredictionCache.Key> missedKeys = new ArrayList<>();
+        List<LabeledImage> missedImgs = new ArrayList<>();
+        List<Integer> missedIndexes = new ArrayList<>();
+        for (int i = 0; i < probabilities.length; i++) {
+            PredictionCache.Key key = cache.key(imgs.get(i));
+            probabilities[i] = cache.get(key);
+            if (probabilities[i] == null) {
+                missedKeys.add(key);
+                missedImgs.add(imgs.get(i));
+                missedIndexes.add(i);
+            }
+        }
+        if (!missedImgs.isEmpty()) {
+            double[][] computed = forward(missedImgs);
+            for (int i = 0; i < computed.length; i++) {
+                cache.put(missedKeys.get(i), computed[i], generation);
+                probabilities[missedIndexes.get(i)] = computed[i];
+            }
+        }
+        return probabilities;
+    }
+
+    /**
+     * Returns the most probable classes of passed LabeledImage
+     *
+     * @param img LabeledImage containing vector (one dimensional array) which represents image with one color channel
+     * @param k   max number of classes to return
+     * @return class indexes ordered from the most probable one
+     */
+    public int[] predictTopK(LabeledImage img, int k) {
+        return topK(predictProbabilities(img), k);
+    }
+
+    /**
+     * Returns the most probable classes
+     *
+     * @param probabilities probabilities of every class
+     * @param k             max number of classes to return
+     * @return class indexes ordered from the most probable one
+     */
+    public static int[] topK(double[] probabilities, int k) {
+        return IntStream.range(0, probabilities.length).boxed().
+                sorted(Comparator.comparingDouble((Integer c) -> probabilities[c]).reversed()).
+                limit(k).
+                mapToInt(Integer::intValue).
+                toArray();
+    }
+
+    /**
+     * Returns probability of the predicted class of passed LabeledImage
+     *
+     * @param img LabeledImage containing vector (one dimensional array) which represents image with one color channel
+     * @return probability of the most probable class
+     */
+    public double predictConfidence(LabeledImage img) {
+        return Arrays.stream(predictProbabilities(img)).max().orElse(Double.NaN);
+    }
+
+    /**
+     * Puts bounded LRU cache of class probabilities in front of the predict methods, so repeated and near-identical
+     * images skip the forward pass. The cache is cleared whenever the model is retrained
+     *
+     * @param maxSize max number of cached images
+     * @return the enabled cache, to read its hit, miss and eviction counters
+     */
+    public PredictionCache enablePredictionCache(int maxSize) {
+        predictionCache = new PredictionCache(maxSize, ModelInput.MAX_PIXEL_VALUE);
+        return predictionCache;
+    }
+
+    /**
+     * Removes the prediction cache, every prediction runs the model again
+     */
+    public void disablePredictionCache() {
+        predictionCache = null;
+    }
+
+    /**
+     * @return class probabilities of every image computed by the {@link ConvolutionalNeuralNetwork#serve(InferenceEngine)
+     * served engine} or the active ND4J model
+     */
+    private double[][] forward(List<LabeledImage> imgs) {
+        ThreadLocal<InferenceEngine> served = engines;
+        if (served == null) {
+            return output(toBatchInput(imgs)).toDoubleMatrix();
+        }
+        InferenceEngine engine = served.get();
+        float[] input = new float[HEIGHT * WIDTH * DEPTH];
+        float[] output = new float[engine.classes()];
+        double[][] probabilities = new double[imgs.size()][engine.classes()];
+        for (int i = 0; i < probabilities.length; i++) {
+            long start = InferenceMetrics.start(Stage.TO_INPUT);
+            ModelInput.prepare(imgs.get(i).pixels(), input, 0);
+            InferenceMetrics.stop(Stage.TO_INPUT, start);
+            start = InferenceMetrics.start(Stage.FORWARD_PASS);
+            engine.output(input, output);
+            InferenceMetrics.stop(Stage.FORWARD_PASS, start);
+            for (int c = 0; c < output.length; c++) {
+                probabilities[i][c] = output[c];
+            }
+        }
+        return probabilities;
+    }
+
+    /**
+     * Runs forward pass on a replica of the active model. A pool closed by a model swap
+     * between reading and using it is replaced by the new one, a pool closed since all its replicas failed is not
+     */
+    private INDArray output(INDArray input) {
+        while (true) {
+            ReplicaPool pool = replicas;
+            if (pool == null) {
+                throw new IllegalStateException(closed ? "CNN is closed" : "Model has not been trained yet");
+            }
+            try {
+                return pool.output(input);
+            } catch (RejectedExecutionException e) {
+                if (replicas == pool) {
+                    throw new IllegalStateException("Every inference replica has failed", e);
+                }
+                LOG.debug("Model has been replaced, retrying prediction");
+            }
+        }
+    }
+
+    /**
+     * Copies pixels of images into one float32 <i>[batch, pixels]</i> input, {@link ModelInput#prepare(float[], float[], int)
+     * scaling them} like the MNIST features the model is trained on in the same pass which fills the input.
+     * The input is cast only if the network uses another {@link ConvolutionalNeuralNetwork#dataType}
+     */
+    private INDArray toBatchInput(List<LabeledImage> imgs) {
+        long start = InferenceMetrics.start(Stage.TO_INPUT);
+        int length = imgs.get(0).pixels().length;
+        float[] data = new float[imgs.size() * length];
+        for (int i = 0; i < imgs.size(); i++) {
+            float[] pixels = imgs.get(i).pixels();
+            if (pixels.length != length) {
+                throw new IllegalArgumentException("Images of different sizes: " + length + " and " + pixels.length + " pixels");
+            }
+            ModelInput.prepare(pixels, data, i * length);
+        }
+        INDArray input = Nd4j.create(data, new long[]{imgs.size(), length}, 'c');
+        input = input.dataType() == dataType ? input : input.castTo(dataType);
+        InferenceMetrics.stop(Stage.TO_INPUT, start);
+        return input;
     }
 
     /**
@@ -76,87 +599,318 @@ public class ConvolutionalNeuralNetwork {
      * <a href="http://yann.lecun.com/exdb/mnist/">MNIST</a> dataset with passed train and test amount
      * and saves trained model to {@link ConvolutionalNeuralNetwork#OUT_DIR the directory}
      * with name defined in {@link ConvolutionalNeuralNetwork#MODEL_PATH <i>MODEL_PATH</i>}
+     * (and its {@link ConvolutionalNeuralNetwork#exportCompact() compact copy})
      * when one of the {@link ConvolutionalNeuralNetwork#buildEarlyStopConf(DataSetIterator) early stopping} condition happens.
      * After model training method logs confusion matrix of the model.
      *
      * @param trainDataSize Number of train samples to use during CNN model training
      * @param testDataSize  Number of test samples to use during CNN model testing
      */
-    @SneakyThrows
     public void train(int trainDataSize, int testDataSize) {
+        train(TrainingOptions.builder().
+                trainDataSize(trainDataSize).
+                testDataSize(testDataSize).
+                build());
+    }
+
+    /**
+     * Trains {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} the same way as {@link ConvolutionalNeuralNetwork#train(int, int)},
+     * but reads MNIST from local IDX files with {@link IdxDataSetIterator} instead of downloading it
+     *
+     * @param trainDataSize Number of train samples to use during CNN model training
+     * @param testDataSize  Number of test samples to use during CNN model testing
+     * @param mnistDir      Directory with MNIST IDX files (<i>train-images-idx3-ubyte</i>, <i>t10k-labels-idx1-ubyte.gz</i> etc.)
+     */
+    public void train(int trainDataSize, int testDataSize, Path mnistDir) {
+        train(TrainingOptions.builder().
+                trainDataSize(trainDataSize).
+                testDataSize(testDataSize).
+                mnistDir(mnistDir).
+                build());
+    }
+
+    /**
+     * Trains {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} the same way as {@link ConvolutionalNeuralNetwork#train(int, int)}
+     * with passed options. With several {@link TrainingOptions#getWorkers() workers} model replicas are trained on different
+     * batches in parallel and their parameters are averaged every {@link ConvolutionalNeuralNetwork#AVERAGING_FREQUENCY} iterations.
+     * Training speed in samples per second is logged, compare runs with different numbers of workers on the same data
+     * and machine to see how training scales.
+     * Per iteration and per epoch metrics are appended to <i>training-metrics.jsonl</i> (see {@link TrainingMetricsListener})
+     * and the progress is reported to {@link TrainingOptions#getProgressListener() progress listener}.
+     * Epochs are evaluated by {@link AsyncAccuracyCalculator} in background unless {@link TrainingOptions#isAsyncEvaluation() turned off}.
+     * With {@link TrainingOptions#isAugmentation() augmentation} train samples are distorted by {@link AugmentingDataSetIterator}.
+     * Checkpoints are written to <i>resources/checkpoints</i> in background by {@link CheckpointSaver},
+     * with {@link TrainingOptions#isResume()} training continues from the latest of them and does nothing if they already
+     * reached the last epoch.
+     *
+     * @param options Training options
+     */
+    @SneakyThrows
+    public void train(TrainingOptions options) {
         LOG.info("Data loading...");
-        DataSetIterator mnistTrain = new MnistDataSetIterator(BATCH_SIZE, trainDataSize, false, true, true, SEED);
-        DataSetIterator mnistTest = new MnistDataSetIterator(BATCH_SIZE, testDataSize, false, false, true, SEED);
+        DataSetIterator mnistTrain = mnist(options.getMnistDir(), true, BATCH_SIZE, options.getTrainDataSize());
+        DataSetIterator mnistTest = mnist(options.getMnistDir(), false, BATCH_SIZE, options.getTestDataSize());
+        if (mnistTrain instanceof IdxDataSetIterator idxTrain) {
+            idxTrain.setReuseArrays(options.getWorkers() == 1 || options.isAugmentation());
+        }
+        if (options.isAugmentation()) {
+            mnistTrain = new AugmentingDataSetIterator(mnistTrain, AUGMENTATION_THREADS, PREFETCH_BUFFER, SEED);
+        }
+        try {
+            train(mnistTrain, mnistTest, options);
+        } finally {
+            close(mnistTrain);
+            close(mnistTest);
+        }
+    }
+
+    @SneakyThrows
+    private void train(DataSetIterator mnistTrain, DataSetIterator mnistTest, TrainingOptions options) {
+        EarlyStoppingResult<MultiLayerNetwork> res;
+        int bestEpoch;
+        double bestScore;
+        try (CheckpointSaver checkpoints = new CheckpointSaver(Path.of(OUT_DIR, CHECKPOINT_DIR), KEEP_BEST_CHECKPOINTS, options.isResume())) {
+            MultiLayerNetwork network;
+            int epochs = EPOCHS - checkpoints.getLatestEpoch();
+            // checkpoints are deleted by CheckpointSaver only when training is not resumed, never here
+            if (checkpoints.hasLatest() && epochs <= 0) {
+                LOG.info("Training has already finished after epoch " + checkpoints.getLatestEpoch() + ", there is nothing to resume");
+                return;
+            } else if (checkpoints.hasLatest()) {
+                LOG.info("Resuming training after epoch " + checkpoints.getLatestEpoch() + "...");
+                network = checkpoints.getLatestModel();
+            } else {
+                LOG.info("Model building...");
+                network = new MultiLayerNetwork(buildCNNConf());
+                network.init();
+                epochs = EPOCHS;
+            }
 
-        LOG.info("Model building...");
-        MultiLayerConfiguration conf = buildCNNConf();
+            try (TrainingMetricsListener metrics = new TrainingMetricsListener(Path.of(OUT_DIR, METRICS_FILE), options, BATCH_SIZE, epochs);
+                 AsyncAccuracyCalculator asyncCalculator = options.isAsyncEvaluation()
+                         ? new AsyncAccuracyCalculator(mnistTest, options.getEvaluationSampleSize(), BATCH_SIZE, SEED,
+                         checkpoints, metrics::onEvaluation)
+                         : null) {
+                network.setListeners(metrics);
 
-        LOG.info("Stopping configuration building...");
-        EarlyStoppingConfiguration<MultiLayerNetwork> esConf = buildEarlyStopConf(mnistTest);
-        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(esConf, conf, mnistTrain);
+                LOG.info("Stopping configuration building...");
+                EarlyStoppingConfiguration<MultiLayerNetwork> esConf = asyncCalculator != null
+                        ? buildEarlyStopConf(epochs, metrics.timed(asyncCalculator), asyncCalculator.modelSaver())
+                        : buildEarlyStopConf(epochs, metrics.timed(new AccuracyCalculator(mnistTest)), checkpoints);
+                IEarlyStoppingTrainer<MultiLayerNetwork> trainer = options.getWorkers() > 1
+                        ? new EarlyStoppingParallelTrainer<>(esConf, network, mnistTrain, null, options.getWorkers(), PREFETCH_BUFFER, AVERAGING_FREQUENCY)
+                        : new EarlyStoppingTrainer(esConf, network, mnistTrain);
+                trainer.setListener(metrics);
 
-        LOG.info("Training started...");
-        EarlyStoppingResult<MultiLayerNetwork> res = trainer.fit();
+                LOG.info("Training started with " + options.getWorkers() + " worker(s)...");
+                long start = System.nanoTime();
+                res = trainer.fit();
+                logSpeed(options, res.getTotalEpochs(), System.nanoTime() - start);
+                bestEpoch = asyncCalculator != null ? asyncCalculator.getBestEpoch() : res.getBestModelEpoch();
+                bestScore = asyncCalculator != null ? asyncCalculator.getBestScore() : res.getBestModelScore();
+            }
+        }
 
         LOG.info("Training finished. Saving model...");
-        trainedModel = res.getBestModel();
-        trainedModel.save(new File(MODEL_PATH), true);
+        MultiLayerNetwork bestModel = res.getBestModel();
+        registry().promote(bestModel, "training");
+        save(bestModel);
 
         LOG.info("Model saved");
         LOG.info(String.valueOf(res.getTerminationReason()));
         LOG.info(res.getTerminationDetails());
-        LOG.info(String.valueOf(res.getBestModelEpoch()));
-        LOG.info(String.valueOf(res.getBestModelScore()));
+        LOG.info(String.valueOf(bestEpoch));
+        LOG.info(String.valueOf(bestScore));
+    }
+
+    private void logSpeed(TrainingOptions options, int epochs, long nanos) {
+        double samplesPerSecond = (double) options.getTrainDataSize() * epochs / (nanos / 1e9);
+        LOG.info(String.format("Trained %d epoch(s) with %d worker(s): %.1f samples/sec",
+                epochs, options.getWorkers(), samplesPerSecond));
+    }
+
+    /**
+     * Saves passed network to {@link ConvolutionalNeuralNetwork#MODEL_PATH <i>MODEL_PATH</i>} with its configuration,
+     * so it is loaded whatever its widths are, and exports its {@link ConvolutionalNeuralNetwork#exportCompact() compact copy}
+     */
+    private void save(MultiLayerNetwork network) throws IOException {
+        Path tmp = Path.of(MODEL_PATH + ".tmp");
+        ModelSerializer.writeModel(network, tmp.toFile(), true);
+        Files.move(tmp, Path.of(MODEL_PATH), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        exportCompact();
+    }
+
+    /**
+     * Prunes the active model with {@link ModelPruner} until it meets the latency target or the accuracy floor of passed options.
+     * If any step is accepted, the pruned model is promoted and saved like a trained one, so {@link ConvolutionalNeuralNetwork#init()}
+     * loads it next time
+     *
+     * @param options Pruning options
+     * @return PruningReport with all steps
+     */
+    @SneakyThrows
+    public PruningReport prune(PruningOptions options) {
+        MultiLayerNetwork network = model().clone();
+        DataSetIterator mnistTrain = mnist(options.getMnistDir(), true, BATCH_SIZE, options.getTrainDataSize());
+        DataSetIterator mnistTest = mnist(options.getMnistDir(), false, BATCH_SIZE, options.getTestDataSize());
+        PruningReport report;
+        try {
+            report = new ModelPruner(options, mnistTrain, mnistTest).run(network);
+        } finally {
+            closeQuietly(mnistTrain);
+            closeQuietly(mnistTest);
+        }
+        LOG.info(report.toString());
+        if (report.isPruned()) {
+            registry().promote(report.network(), "pruning");
+            save(report.network());
+            LOG.info("Pruned model saved");
+        }
+        return report;
+    }
+
+    /**
+     * Fine-tunes the active model on the most recent samples of passed store mixed with replayed MNIST samples,
+     * see {@link FineTuner}. If the fine-tuned model keeps its MNIST accuracy, it is promoted and saved like a trained one
+     *
+     * @param store   store with feedback samples
+     * @param options Fine-tuning options
+     * @return FineTuningReport with accuracy before and after fine-tuning
+     * @throws IllegalStateException if the store is empty
+     */
+    @SneakyThrows
+    public FineTuningReport fineTune(FeedbackStore store, FineTuningOptions options) {
+        List<FeedbackStore.Sample> samples = store.latest(options.getMaxSamples());
+        if (samples.isEmpty()) {
+            throw new IllegalStateException("No feedback has been collected yet");
+        }
+        MultiLayerNetwork network = model();
+        DataSetIterator replay = mnist(options.getMnistDir(), true, options.getBatchSize(), options.replaySize(samples.size()), options.getSeed());
+        DataSetIterator mnistTest = mnist(options.getMnistDir(), false, BATCH_SIZE, options.getTestDataSize());
+        FineTuningReport report;
+        try {
+            report = new FineTuner(options, replay, mnistTest).run(network, samples);
+        } finally {
+            closeQuietly(replay);
+            closeQuietly(mnistTest);
+        }
+        if (report.accepted()) {
+            registry().promote(report.network(), "fine-tuning");
+            save(report.network());
+            LOG.info("Fine-tuned model saved");
+        }
+        return report;
+    }
+
+    /**
+     * Searches for {@link Hyperparameters} of a faster or smaller model, see {@link HyperparameterSearch}.
+     * The model used for predictions is not changed
+     *
+     * @param options Search options
+     * @return SearchReport with results of all trials and the best of them
+     */
+    @SneakyThrows
+    public SearchReport search(SearchOptions options) {
+        if (options.getMnistDir() == null) {
+            // downloads MNIST once, before trials create their iterators concurrently
+            close(mnist(null, true, BATCH_SIZE, BATCH_SIZE));
+            close(mnist(null, false, BATCH_SIZE, BATCH_SIZE));
+        }
+        return new HyperparameterSearch(options, (train, batchSize) ->
+                mnist(options.getMnistDir(), train, batchSize, train ? options.getTrainDataSize() : options.getTestDataSize())).run();
+    }
+
+    private static DataSetIterator mnist(Path mnistDir, boolean train, int batchSize, int size) {
+        return mnist(mnistDir, train, batchSize, size, SEED);
+    }
+
+    @SneakyThrows
+    private static DataSetIterator mnist(Path mnistDir, boolean train, int batchSize, int size, long seed) {
+        return mnistDir == null
+                ? new MnistDataSetIterator(batchSize, size, false, train, true, seed)
+                : IdxDataSetIterator.mnist(mnistDir, train, batchSize, size, seed);
+    }
+
+    private static void close(DataSetIterator iterator) throws Exception {
+        if (iterator instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    static void closeQuietly(DataSetIterator iterator) {
+        try {
+            close(iterator);
+        } catch (Exception e) {
+            LOG.warn("Failed to close data iterator", e);
+        }
     }
 
     /**
      * Builds early stopping configuration for a {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model}
      * according to which model training finishes in case of reaching one of the following conditions:
      * <ul>
-     *     <li>number of epochs reaches {@link ConvolutionalNeuralNetwork#EPOCHS max epochs amount}</li>
+     *     <li>number of epochs reaches passed amount ({@link ConvolutionalNeuralNetwork#EPOCHS max epochs amount} minus already trained epochs)</li>
      *     <li>iteration for epoch training takes more then {@link ConvolutionalNeuralNetwork#MAX_WAIT_AMOUNT max waiting amount} minutes</li>
      * </ul>
-     * @param mnistTest DataSetIterator which consists samples for testing
+     * The latest model is saved after every epoch, so training can be resumed from it.
+     *
+     * @param epochs          Number of epochs to train
+     * @param scoreCalculator ScoreCalculator which evaluates model on samples for testing
+     * @param modelSaver      EarlyStoppingModelSaver which stores the best and the latest models
      * @return EarlyStoppingConfiguration for CNN model
      */
-    private EarlyStoppingConfiguration<MultiLayerNetwork> buildEarlyStopConf(DataSetIterator mnistTest) {
+    private EarlyStoppingConfiguration<MultiLayerNetwork> buildEarlyStopConf(int epochs, ScoreCalculator<MultiLayerNetwork> scoreCalculator,
+                                                                           EarlyStoppingModelSaver<MultiLayerNetwork> modelSaver) {
         return new EarlyStoppingConfiguration.
                 Builder<MultiLayerNetwork>().
-                epochTerminationConditions(new MaxEpochsTerminationCondition(EPOCHS)).
+                epochTerminationConditions(new MaxEpochsTerminationCondition(epochs)).
                 iterationTerminationConditions(new MaxTimeIterationTerminationCondition(MAX_WAIT_AMOUNT, TimeUnit.MINUTES)).
-                scoreCalculator(new AccuracyCalculator(mnistTest)).
+                scoreCalculator(scoreCalculator).
                 evaluateEveryNEpochs(1).
-                modelSaver(new LocalFileModelSaver(OUT_DIR)).
+                modelSaver(modelSaver).
+                saveLastModel(true).
                 build();
     }
 
     /**
-     * Builds CNN with the following model:
+     * Builds {@link ConvolutionalNeuralNetwork#buildCNNConf(Hyperparameters, DataType) CNN} with
+     * {@link Hyperparameters#DEFAULT default hyperparameters} and the data type of this instance
+     *
+     * @return MultiLayerConfiguration of the default model
+     */
+    private MultiLayerConfiguration buildCNNConf() {
+        return buildCNNConf(Hyperparameters.DEFAULT, dataType);
+    }
+
+    /**
+     * Builds CNN with the following model (widths of the default model in brackets):
      * <ol>
-     *     <li><strong>Convolutional layer</strong>, kernel: [5, 5], activation: identity (linear activation), in: 1, out: 20</li>
+     *     <li><strong>Convolutional layer</strong>, kernel: [5, 5], activation: identity (linear activation), in: 1, out: conv1 (20)</li>
      *     <li><strong>Max pooling layer</strong>, kernel: [2, 2]</li>
-     *     <li><strong>Convolutional layer</strong>, kernel: [5, 5], activation: identity (linear activation), in: 20, out: 50</li>
+     *     <li><strong>Convolutional layer</strong>, kernel: [5, 5], activation: identity (linear activation), in: conv1, out: conv2 (50)</li>
      *     <li><strong>Max pooling layer</strong>, kernel: [2, 2]</li>
-     *     <li><strong>Dense layer (fully connected layer)</strong>, activation: relu, in: 800, out: 128</li>
-     *     <li><strong>Dense layer (fully connected layer)</strong>, activation: relu, in: 128, out: 64</li>
-     *     <li><strong>Softmax layer</strong>, in: 64, out: 10</li>
+     *     <li><strong>Dense layer (fully connected layer)</strong>, activation: relu, in: conv2 * 4 * 4 (800), out: dense1 (128)</li>
+     *     <li><strong>Dense layer (fully connected layer)</strong>, activation: relu, in: dense1, out: dense2 (64)</li>
+     *     <li><strong>Softmax layer</strong>, in: dense2, out: 10</li>
      * </ol>
      *
+     * @param hyperparameters widths of the layers and parameters of the updater
+     * @param dataType        data type of parameters and activations
      * @return MultiLayerConfiguration representing model mentioned above
      */
-
-    private MultiLayerConfiguration buildCNNConf() {
+    public static MultiLayerConfiguration buildCNNConf(Hyperparameters hyperparameters, DataType dataType) {
         return new NeuralNetConfiguration.Builder().
                 seed(SEED).
+                dataType(dataType).
                 activation(Activation.RELU).
                 weightInit(WeightInit.XAVIER).
-                updater(new Nesterovs(LEARNING_RATE, 0.9)).
+                updater(new Nesterovs(hyperparameters.learningRate(), hyperparameters.momentum())).
                 optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).
                 list().
                 layer(0, new ConvolutionLayer.Builder(5, 5).
                         nIn(INP_CHANNELS).
                         stride(1, 1).
-                        nOut(20).
+                        nOut(hyperparameters.conv1Channels()).
                         activation(Activation.IDENTITY).
                         build()).
                 layer(1, new SubsamplingLayer.Builder(PoolingType.MAX).
@@ -164,9 +918,9 @@ public class ConvolutionalNeuralNetwork {
                         stride(2, 2).
                         build()).
                 layer(2, new ConvolutionLayer.Builder(5, 5).
-                        nIn(20).
+                        nIn(hyperparameters.conv1Channels()).
                         stride(1, 1).
-                        nOut(50).
+                        nOut(hyperparameters.conv2Channels()).
                         activation(Activation.IDENTITY).
                         build()).
                 layer(3, new SubsamplingLayer.Builder().
@@ -175,13 +929,13 @@ public class ConvolutionalNeuralNetwork {
                         build()).
                 layer(4, new DenseLayer.Builder().
                         activation(Activation.RELU).
-                        nIn(800).
-                        nOut(128).
+                        nIn(hyperparameters.conv2Channels() * 4 * 4).
+                        nOut(hyperparameters.dense1Units()).
                         build()).
                 layer(5, new DenseLayer.Builder().
                         activation(Activation.RELU).
-                        nIn(128).
-                        nOut(64).
+                        nIn(hyperparameters.dense1Units()).
+                        nOut(hyperparameters.dense2Units()).
                         build()).
                 layer(6, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD).
                         nOut(OUT).
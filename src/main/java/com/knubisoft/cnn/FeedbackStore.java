@@ -0,0 +1,356 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of digits confirmed or corrected by users, the data of {@link FineTuner incremental fine-tuning}.
+ * <p>
+ * Samples are appended to <i>feedback.log</i> (all numbers are little-endian):
+ * <ol>
+ *     <li><i>int</i> magic <code>DRFB</code>, <i>int</i> format version</li>
+ *     <li>records: <i>short</i> number of pixels, <i>int</i> length of encoded pixels, <i>byte</i> label,
+ *     <i>byte</i> predicted class (<i>-1</i> if unknown), <i>long</i> timestamp in millis, encoded pixels,
+ *     <i>int</i> CRC32 of the preceding fields</li>
+ * </ol>
+ * Pixels are rounded to 256 gray levels and runs of blank pixels are stored as a zero byte followed by the run length,
+ * so a drawn digit takes a few hundred bytes instead of 784. <i>feedback.idx</i> keeps the offset, label and predicted class
+ * of every record in fixed size entries, so samples are read at random and counted without decoding the log.
+ * <p>
+ * Every append is forced to disk, the log first. If the process dies in between, the index does not match the end
+ * of the log on the next {@link FeedbackStore#open(Path) open}, then the index is rebuilt from the log and a torn record
+ * at its end is cut off.
+ */
+public class FeedbackStore implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(FeedbackStore.class.getName());
+    public static final Path DEFAULT_DIR = Path.of("resources", "feedback");
+    private static final String LOG_FILE = "feedback.log";
+    private static final String INDEX_FILE = "feedback.idx";
+    private static final int MAGIC = 0x42465244;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = Short.BYTES + Integer.BYTES + 2 * Byte.BYTES + Long.BYTES;
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES + 2 * Byte.BYTES;
+    private static final int MAX_PIXELS = 0xFFFF;
+    private static final int MAX_RUN = 0xFF;
+    private static final int CLASSES = 10;
+
+    private final Path indexFile;
+    private final FileChannel log;
+    private FileChannel index;
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Sample of the store
+     *
+     * @param pixels    ink intensities in range [0, 255], rounded to integers
+     * @param label     digit the user confirmed or corrected the prediction to
+     * @param predicted class the model predicted, <i>-1</i> if unknown
+     * @param timestamp time the sample was stored in millis
+     */
+    public record Sample(float[] pixels, int label, int predicted, long timestamp) {
+
+        /**
+         * @return whether the user corrected a wrong prediction
+         */
+        public boolean isCorrection() {
+            return predicted >= 0 && predicted != label;
+        }
+    }
+
+    private record Entry(long offset, byte label, byte predicted) {
+    }
+
+    private FeedbackStore(Path logFile, Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (log.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC).putInt(VERSION);
+                log.write(header.flip(), 0);
+                log.force(true);
+            } else {
+                readHeader(logFile);
+            }
+            if (!readIndex()) {
+                rebuildIndex();
+            }
+            index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store in passed directory, it is created if needed
+     *
+     * @param dir directory of the store files
+     * @return opened store
+     * @throws IOException if the files cannot be read or the log is not a feedback log
+     */
+    public static FeedbackStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return new FeedbackStore(dir.resolve(LOG_FILE), dir.resolve(INDEX_FILE));
+    }
+
+    /**
+     * Appends a sample and forces it to disk
+     *
+     * @param pixels    ink intensities in range [0, 255], e.g. a rasterized drawing
+     * @param label     correct digit
+     * @param predicted class predicted by the model, <i>-1</i> if unknown
+     * @return index of the stored sample
+     * @throws IOException if the sample cannot be written
+     */
+    public synchronized int append(float[] pixels, int label, int predicted) throws IOException {
+        if (label < 0 || label >= CLASSES || predicted < -1 || predicted >= CLASSES) {
+            throw new IllegalArgumentException("Invalid label " + label + " or predicted class " + predicted);
+        }
+        if (pixels.length == 0 || pixels.length > MAX_PIXELS) {
+            throw new IllegalArgumentException("Unsupported number of pixels: " + pixels.length);
+        }
+        byte[] encoded = encode(pixels);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + encoded.length + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        record.putShort((short) pixels.length).putInt(encoded.length).put((byte) label).put((byte) predicted).
+                putLong(System.currentTimeMillis()).put(encoded);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+
+        long offset = log.size();
+        write(log, record.flip(), offset);
+        log.force(false);
+        Entry entry = new Entry(offset, (byte) label, (byte) predicted);
+        index.write(toBuffer(entry));
+        index.force(false);
+        entries.add(entry);
+        return entries.size() - 1;
+    }
+
+    /**
+     * @return number of stored samples
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of stored samples which correct a wrong prediction
+     */
+    public synchronized int corrections() {
+        return (int) entries.stream().filter(entry -> entry.predicted() >= 0 && entry.predicted() != entry.label()).count();
+    }
+
+    /**
+     * @return number of stored samples of every digit
+     */
+    public synchronized int[] labelCounts() {
+        int[] counts = new int[CLASSES];
+        entries.forEach(entry -> counts[entry.label()]++);
+        return counts;
+    }
+
+    /**
+     * Reads a stored sample
+     *
+     * @param i index of the sample
+     * @return the sample
+     * @throws IOException if the record cannot be read or its checksum does not match
+     */
+    public synchronized Sample read(int i) throws IOException {
+        long offset = entries.get(i).offset();
+        ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+        int pixels = Short.toUnsignedInt(header.getShort());
+        int length = header.getInt();
+        ByteBuffer record = readFully(offset, RECORD_HEADER_SIZE + length + Integer.BYTES);
+        if (checksum(record, RECORD_HEADER_SIZE + length) != record.getInt(RECORD_HEADER_SIZE + length)) {
+            throw new IOException("Feedback record " + i + " is corrupted");
+        }
+        record.position(Short.BYTES + Integer.BYTES);
+        int label = record.get();
+        int predicted = record.get();
+        long timestamp = record.getLong();
+        return new Sample(decode(record, pixels), label, predicted, timestamp);
+    }
+
+    /**
+     * Reads the most recent samples
+     *
+     * @param max max number of samples to read
+     * @return up to <i>max</i> samples in the order they were stored
+     * @throws IOException if a record cannot be read
+     */
+    public synchronized List<Sample> latest(int max) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = Math.max(0, entries.size() - max); i < entries.size(); i++) {
+            samples.add(read(i));
+        }
+        return samples;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            log.close();
+        }
+    }
+
+    private void readHeader(Path logFile) throws IOException {
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException(logFile + " is not a feedback log");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported feedback log version " + version + " in " + logFile);
+        }
+    }
+
+    /**
+     * Loads the index if it exists and ends exactly where the log ends
+     *
+     * @return whether the index is consistent with the log
+     */
+    private boolean readIndex() throws IOException {
+        if (!Files.exists(indexFile) || Files.size(indexFile) % INDEX_ENTRY_SIZE != 0) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile)).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            entries.add(new Entry(buffer.getLong(), buffer.get(), buffer.get()));
+        }
+        long end = HEADER_SIZE;
+        if (!entries.isEmpty()) {
+            long offset = entries.get(entries.size() - 1).offset();
+            if (offset < HEADER_SIZE || offset + RECORD_HEADER_SIZE > log.size()) {
+                entries.clear();
+                return false;
+            }
+            end = offset + RECORD_HEADER_SIZE + readFully(offset, RECORD_HEADER_SIZE).getInt(Short.BYTES) + Integer.BYTES;
+        }
+        if (end != log.size()) {
+            entries.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Scans the log, cuts it after the last valid record and writes a new index
+     */
+    private void rebuildIndex() throws IOException {
+        long offset = HEADER_SIZE;
+        long size = log.size();
+        while (offset + RECORD_HEADER_SIZE + Integer.BYTES <= size) {
+            ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+            int length = header.getInt(Short.BYTES);
+            long end = offset + RECORD_HEADER_SIZE + length + Integer.BYTES;
+            if (length < 0 || end > size) {
+                break;
+            }
+            ByteBuffer record = readFully(offset, (int) (end - offset));
+            if (checksum(record, RECORD_HEADER_SIZE + length) != record.getInt(RECORD_HEADER_SIZE + length)) {
+                break;
+            }
+            entries.add(new Entry(offset, header.get(Short.BYTES + Integer.BYTES), header.get(Short.BYTES + Integer.BYTES + 1)));
+            offset = end;
+        }
+        if (offset < size) {
+            LOG.warn("Feedback log is cut after " + entries.size() + " valid record(s), " + (size - offset) + " byte(s) dropped");
+            log.truncate(offset);
+            log.force(true);
+        }
+
+        Path tmp = Path.of(indexFile + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : entries) {
+                channel.write(toBuffer(entry));
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Feedback index rebuilt with " + entries.size() + " sample(s)");
+    }
+
+    private ByteBuffer readFully(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of feedback log at " + (offset + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static ByteBuffer toBuffer(Entry entry) {
+        return ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN).
+                putLong(entry.offset()).put(entry.label()).put(entry.predicted()).flip();
+    }
+
+    private static int checksum(ByteBuffer record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Rounds pixels to bytes, a run of zero pixels becomes a zero byte followed by the run length
+     */
+    private static byte[] encode(float[] pixels) {
+        ByteBuffer encoded = ByteBuffer.allocate(pixels.length * 2);
+        for (int i = 0; i < pixels.length; ) {
+            int value = level(pixels[i]);
+            if (value != 0) {
+                encoded.put((byte) value);
+                i++;
+                continue;
+            }
+            int run = 0;
+            while (i < pixels.length && run < MAX_RUN && level(pixels[i]) == 0) {
+                run++;
+                i++;
+            }
+            encoded.put((byte) 0).put((byte) run);
+        }
+        byte[] result = new byte[encoded.position()];
+        encoded.flip().get(result);
+        return result;
+    }
+
+    private static int level(float pixel) {
+        return Math.round(Math.min(Math.max(pixel, 0), ModelInput.MAX_PIXEL_VALUE));
+    }
+
+    private static float[] decode(ByteBuffer encoded, int length) {
+        float[] pixels = new float[length];
+        for (int i = 0; i < length; ) {
+            int value = Byte.toUnsignedInt(encoded.get());
+            if (value != 0) {
+                pixels[i++] = value;
+            } else {
+                i += Byte.toUnsignedInt(encoded.get());
+            }
+        }
+        return pixels;
+    }
+}
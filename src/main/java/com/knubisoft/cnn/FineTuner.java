@@ -0,0 +1,123 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Incremental fine-tuning of a trained model on {@link FeedbackStore feedback samples}.
+ * <p>
+ * Instead of training from scratch, a copy of the trained network continues training for a few
+ * {@link FineTuningOptions#getEpochs() epochs} with a low learning rate on the feedback samples mixed with
+ * {@link FineTuningOptions#replaySize(int) a random sample} of MNIST train data. Replaying MNIST keeps the model from forgetting it
+ * while it adapts to the way users draw, and a run takes seconds since it sees a few thousand samples at most.
+ * <p>
+ * Feedback pixels are {@link ModelInput#prepare(float[]) prepared} the way they are served, which is the scale of MNIST features,
+ * so training, evaluation and serving see the same input. The fine-tuned network
+ * is evaluated on MNIST test data before and after and is {@link FineTuningReport#accepted() rejected} if it lost more than
+ * {@link FineTuningOptions#getMaxAccuracyDrop() the allowed accuracy}.
+ */
+public class FineTuner {
+    private final static Logger LOG = Logger.getLogger(FineTuner.class.getName());
+    private static final int CLASSES = 10;
+
+    private final FineTuningOptions options;
+    private final DataSetIterator replay;
+    private final DataSetIterator test;
+
+    /**
+     * @param options options of fine-tuning
+     * @param replay  MNIST train samples to mix with the feedback, all of them are used
+     * @param test    data to evaluate the network on before and after fine-tuning
+     */
+    public FineTuner(FineTuningOptions options, DataSetIterator replay, DataSetIterator test) {
+        this.options = options;
+        this.replay = replay;
+        this.test = test;
+    }
+
+    /**
+     * Fine-tunes a copy of passed network
+     *
+     * @param network trained network, it is not changed
+     * @param samples feedback samples to fine-tune on
+     * @return FineTuningReport with the fine-tuned network and its accuracy
+     */
+    public FineTuningReport run(MultiLayerNetwork network, List<FeedbackStore.Sample> samples) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("No feedback samples to fine-tune on");
+        }
+        long start = System.nanoTime();
+        AccuracyCalculator calculator = new AccuracyCalculator(test);
+        DataSet feedback = toDataSet(samples);
+        List<DataSet> examples = new ArrayList<>(feedback.asList());
+        int replaySamples = 0;
+        replay.reset();
+        while (replay.hasNext()) {
+            // copied, since an iterator may refill the arrays of a returned batch
+            List<DataSet> batch = replay.next().copy().asList();
+            examples.addAll(batch);
+            replaySamples += batch.size();
+        }
+
+        test.reset();
+        double accuracyBefore = 1 - calculator.calculateScore(network);
+        double feedbackBefore = accuracy(network, feedback);
+
+        MultiLayerNetwork tuned = network.clone();
+        tuned.setLearningRate(options.getLearningRate());
+        Random random = new Random(options.getSeed());
+        for (int epoch = 0; epoch < options.getEpochs(); epoch++) {
+            Collections.shuffle(examples, random);
+            tuned.fit(new ListDataSetIterator<>(examples, options.getBatchSize()));
+        }
+
+        test.reset();
+        double accuracyAfter = 1 - calculator.calculateScore(tuned);
+        double feedbackAfter = accuracy(tuned, feedback);
+        int corrections = (int) samples.stream().filter(FeedbackStore.Sample::isCorrection).count();
+        FineTuningReport report = new FineTuningReport(samples.size(), corrections, replaySamples, feedbackBefore, feedbackAfter,
+                accuracyBefore, accuracyAfter, accuracyAfter >= accuracyBefore - options.getMaxAccuracyDrop(), tuned, System.nanoTime() - start);
+        LOG.info(report.toString());
+        return report;
+    }
+
+    /**
+     * Features are {@link ModelInput#prepare(float[], float[], int) prepared} like served images, labels are one-hot encoded
+     */
+    private static DataSet toDataSet(List<FeedbackStore.Sample> samples) {
+        int pixels = samples.get(0).pixels().length;
+        float[] features = new float[samples.size() * pixels];
+        float[] labels = new float[samples.size() * CLASSES];
+        for (int i = 0; i < samples.size(); i++) {
+            float[] sample = samples.get(i).pixels();
+            if (sample.length != pixels) {
+                throw new IllegalArgumentException("Feedback samples of different sizes: " + pixels + " and " + sample.length + " pixels");
+            }
+            ModelInput.prepare(sample, features, i * pixels);
+            labels[i * CLASSES + samples.get(i).label()] = 1;
+        }
+        return new DataSet(Nd4j.create(features, new long[]{samples.size(), pixels}, 'c'),
+                Nd4j.create(labels, new long[]{samples.size(), CLASSES}, 'c'));
+    }
+
+    private static double accuracy(MultiLayerNetwork network, DataSet samples) {
+        INDArray input = samples.getFeatures().castTo(network.params().dataType());
+        int[] predicted = network.output(input).argMax(1).toIntVector();
+        int[] labels = samples.getLabels().argMax(1).toIntVector();
+        int correct = 0;
+        for (int i = 0; i < labels.length; i++) {
+            correct += predicted[i] == labels[i] ? 1 : 0;
+        }
+        return (double) correct / labels.length;
+    }
+}
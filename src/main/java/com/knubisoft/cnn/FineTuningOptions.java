@@ -0,0 +1,72 @@
+package com.knubisoft.cnn;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * Options of {@link FineTuner}: how long the model is fine-tuned on feedback, how much MNIST is replayed with it
+ * and how much MNIST accuracy the result may lose
+ */
+@Getter
+@Builder
+public class FineTuningOptions {
+    /**
+     * Number of passes over the feedback and replayed samples
+     */
+    @Builder.Default
+    private final int epochs = 3;
+    /**
+     * Learning rate of fine-tuning, lower than the training one since the model is already trained
+     */
+    @Builder.Default
+    private final double learningRate = 0.001;
+    /**
+     * Number of MNIST train samples replayed per feedback sample, so the model does not forget MNIST
+     */
+    @Builder.Default
+    private final int replayRatio = 4;
+    /**
+     * Min number of replayed MNIST samples, so a few feedback samples do not pull the model too far
+     */
+    @Builder.Default
+    private final int minReplaySize = 500;
+    /**
+     * Max number of feedback samples to fine-tune on, the most recent ones are used
+     */
+    @Builder.Default
+    private final int maxSamples = 2_000;
+    /**
+     * Number of MNIST test samples the model is evaluated on before and after fine-tuning
+     */
+    @Builder.Default
+    private final int testDataSize = 2_000;
+    /**
+     * The fine-tuned model is rejected if its MNIST test accuracy is lower than the original one by more than this
+     */
+    @Builder.Default
+    private final double maxAccuracyDrop = 0.005;
+    /**
+     * Number of samples in a batch
+     */
+    @Builder.Default
+    private final int batchSize = Hyperparameters.DEFAULT.batchSize();
+    /**
+     * Seed of picking replayed MNIST samples and shuffling, every run replays other samples by default
+     */
+    @Builder.Default
+    private final long seed = System.nanoTime();
+    /**
+     * Directory with local MNIST IDX files, MNIST is downloaded when it is not set
+     */
+    private final Path mnistDir;
+
+    /**
+     * @param samples number of feedback samples
+     * @return number of MNIST train samples to replay with them
+     */
+    public int replaySize(int samples) {
+        return Math.max(minReplaySize, samples * replayRatio);
+    }
+}
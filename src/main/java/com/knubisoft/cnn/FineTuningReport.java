@@ -0,0 +1,29 @@
+package com.knubisoft.cnn;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * Summary of a {@link FineTuner} run
+ *
+ * @param samples        number of feedback samples
+ * @param corrections    number of feedback samples which correct a wrong prediction
+ * @param replaySamples  number of replayed MNIST train samples
+ * @param feedbackBefore accuracy of the original network on the feedback samples
+ * @param feedbackAfter  accuracy of the fine-tuned network on the feedback samples
+ * @param accuracyBefore MNIST test accuracy of the original network
+ * @param accuracyAfter  MNIST test accuracy of the fine-tuned network
+ * @param accepted       whether the MNIST accuracy stayed within {@link FineTuningOptions#getMaxAccuracyDrop() the allowed drop}
+ * @param network        the fine-tuned network, the original one is not changed
+ * @param nanos          wall time of fine-tuning, including evaluation
+ */
+public record FineTuningReport(int samples, int corrections, int replaySamples, double feedbackBefore, double feedbackAfter,
+                               double accuracyBefore, double accuracyAfter, boolean accepted, MultiLayerNetwork network, long nanos) {
+
+    @Override
+    public String toString() {
+        return String.format("Fine-tuned on %d feedback sample(s) (%d correction(s)) and %d MNIST sample(s) in %.1f s%s: "
+                        + "feedback accuracy %.4f -> %.4f, MNIST accuracy %.4f -> %.4f",
+                samples, corrections, replaySamples, nanos / 1e9, accepted ? "" : " (rejected)",
+                feedbackBefore, feedbackAfter, accuracyBefore, accuracyAfter);
+    }
+}
@@ -0,0 +1,221 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Random search over {@link Hyperparameters} with {@link SuccessiveHalving asynchronous successive halving}.
+ * <p>
+ * Configurations are sampled from the {@link SearchOptions search space} and trained as independent trials,
+ * {@link SearchOptions#getParallelTrials()} of them at the same time. After every epoch a trial is evaluated by
+ * {@link AccuracyCalculator}, trials which fall behind at a rung are pruned and trials reaching
+ * {@link SearchOptions#getTargetAccuracy() target accuracy} stop early, so most of the budget goes to promising configurations.
+ * <p>
+ * Every finished trial is appended to <i>trials.jsonl</i> in the {@link SearchOptions#getOutputDir() output directory}.
+ * The best trial so far is kept there as <i>best-hyperparameters.json</i> and <i>best-model.bin</i>
+ * (a {@link ModelSerializer} file with its configuration, since its layers may differ from the default model).
+ * A search object runs once.
+ */
+public class HyperparameterSearch {
+    private final static Logger LOG = Logger.getLogger(HyperparameterSearch.class.getName());
+    private static final String TRIALS_FILE = "trials.jsonl";
+    private static final String BEST_HYPERPARAMETERS_FILE = "best-hyperparameters.json";
+    private static final String BEST_MODEL_FILE = "best-model.bin";
+    private static final int MAX_SAMPLING_ATTEMPTS = 100;
+
+    private final SearchOptions options;
+    private final DataSource data;
+    private final SuccessiveHalving halving;
+    private final List<SearchReport.Trial> trials = new ArrayList<>();
+    private final AtomicInteger trainedEpochs = new AtomicInteger();
+    private BufferedWriter writer;
+    private SearchReport.Trial best;
+
+    /**
+     * Creates train and test iterators of a trial, every trial gets its own iterators
+     */
+    @FunctionalInterface
+    public interface DataSource {
+        /**
+         * @param train     whether to create train or test iterator
+         * @param batchSize batch size of the trial
+         * @return new iterator
+         * @throws IOException if the data cannot be read
+         */
+        DataSetIterator create(boolean train, int batchSize) throws IOException;
+    }
+
+    /**
+     * @param options options of the search
+     * @param data    source of train and test data
+     */
+    public HyperparameterSearch(SearchOptions options, DataSource data) {
+        this.options = options;
+        this.data = data;
+        this.halving = new SuccessiveHalving(options.getMinEpochs(), options.getReductionFactor());
+    }
+
+    /**
+     * Runs all trials and waits for them
+     *
+     * @return SearchReport with results of all trials and the best of them
+     * @throws IOException          if results cannot be written
+     * @throws InterruptedException if the thread is interrupted while trials are running
+     */
+    public SearchReport run() throws IOException, InterruptedException {
+        Files.createDirectories(options.getOutputDir());
+        List<Hyperparameters> configurations = sample();
+        LOG.info("Searching " + configurations.size() + " configurations, " + options.getParallelTrials() + " at a time...");
+        long start = System.nanoTime();
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(options.getParallelTrials(), runnable -> {
+            Thread thread = new Thread(runnable, "search-trial-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (BufferedWriter trialsWriter = Files.newBufferedWriter(options.getOutputDir().resolve(TRIALS_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer = trialsWriter;
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < configurations.size(); i++) {
+                int id = i;
+                futures.add(executor.submit(() -> runTrial(id, configurations.get(id))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Trial failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        SearchReport report;
+        synchronized (this) {
+            report = new SearchReport(List.copyOf(trials), best, trainedEpochs.get(),
+                    configurations.size() * options.getMaxEpochs(), System.nanoTime() - start);
+        }
+        LOG.info(report.toString());
+        return report;
+    }
+
+    /**
+     * Samples distinct configurations, fewer than {@link SearchOptions#getTrials()} if the search space is smaller
+     */
+    private List<Hyperparameters> sample() {
+        Random random = new Random(options.getSeed());
+        Set<Hyperparameters> configurations = new LinkedHashSet<>();
+        for (int attempt = 0; configurations.size() < options.getTrials() && attempt < options.getTrials() * MAX_SAMPLING_ATTEMPTS; attempt++) {
+            configurations.add(new Hyperparameters(
+                    pick(options.getLearningRates(), random),
+                    pick(options.getMomentums(), random),
+                    pick(options.getBatchSizes(), random),
+                    pick(options.getConv1Channels(), random),
+                    pick(options.getConv2Channels(), random),
+                    pick(options.getDense1Units(), random),
+                    pick(options.getDense2Units(), random)));
+        }
+        return new ArrayList<>(configurations);
+    }
+
+    private static <T> T pick(List<T> values, Random random) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private void runTrial(int id, Hyperparameters hyperparameters) {
+        long start = System.nanoTime();
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(hyperparameters, options.getDataType()));
+        network.init();
+        SearchReport.Status status = SearchReport.Status.FAILED;
+        int epochs = 0;
+        double accuracy = Double.NaN;
+        DataSetIterator train = null;
+        DataSetIterator test = null;
+        try {
+            train = data.create(true, hyperparameters.batchSize());
+            test = data.create(false, hyperparameters.batchSize());
+            AccuracyCalculator calculator = new AccuracyCalculator(test);
+            while (status == SearchReport.Status.FAILED) {
+                train.reset();
+                network.fit(train);
+                test.reset();
+                accuracy = 1 - calculator.calculateScore(network);
+                epochs++;
+                trainedEpochs.incrementAndGet();
+                if (options.getTargetAccuracy() > 0 && accuracy >= options.getTargetAccuracy()) {
+                    status = SearchReport.Status.TARGET_REACHED;
+                } else if (epochs >= options.getMaxEpochs()) {
+                    status = SearchReport.Status.COMPLETED;
+                } else if (!halving.report(epochs, accuracy)) {
+                    status = SearchReport.Status.PRUNED;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Trial " + id + " failed", e);
+        } finally {
+            ConvolutionalNeuralNetwork.closeQuietly(train);
+            ConvolutionalNeuralNetwork.closeQuietly(test);
+        }
+        finish(new SearchReport.Trial(id, hyperparameters, epochs, accuracy, network.numParams(), status, System.nanoTime() - start), network);
+    }
+
+    private synchronized void finish(SearchReport.Trial trial, MultiLayerNetwork network) {
+        LOG.info(trial.toString());
+        trials.add(trial);
+        try {
+            writer.write(trial.toJson());
+            writer.newLine();
+            writer.flush();
+            if (trial.status() != SearchReport.Status.FAILED && isBetter(trial, best)) {
+                best = trial;
+                Path model = options.getOutputDir().resolve(BEST_MODEL_FILE);
+                Path tmp = options.getOutputDir().resolve(BEST_MODEL_FILE + ".tmp");
+                ModelSerializer.writeModel(network, tmp.toFile(), false);
+                Files.move(tmp, model, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.writeString(options.getOutputDir().resolve(BEST_HYPERPARAMETERS_FILE), trial.toJson());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * With a target accuracy, the smallest model reaching it is the best, otherwise the most accurate one
+     */
+    private boolean isBetter(SearchReport.Trial trial, SearchReport.Trial other) {
+        if (other == null) {
+            return true;
+        }
+        double target = options.getTargetAccuracy();
+        boolean reached = target > 0 && trial.accuracy() >= target;
+        boolean otherReached = target > 0 && other.accuracy() >= target;
+        if (reached != otherReached) {
+            return reached;
+        }
+        if (reached && trial.parameters() != other.parameters()) {
+            return trial.parameters() < other.parameters();
+        }
+        return trial.accuracy() > other.accuracy();
+    }
+}
@@ -0,0 +1,54 @@
+package com.knubisoft.cnn;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tunable parameters of {@link ConvolutionalNeuralNetwork#buildCNNConf(Hyperparameters, org.nd4j.linalg.api.buffer.DataType) CNN model} and its training
+ *
+ * @param learningRate  learning rate of the Nesterovs updater
+ * @param momentum      momentum of the Nesterovs updater
+ * @param batchSize     number of samples in a batch
+ * @param conv1Channels number of filters of the first convolutional layer
+ * @param conv2Channels number of filters of the second convolutional layer
+ * @param dense1Units   width of the first dense layer
+ * @param dense2Units   width of the second dense layer
+ */
+public record Hyperparameters(double learningRate, double momentum, int batchSize,
+                              int conv1Channels, int conv2Channels, int dense1Units, int dense2Units) {
+
+    /**
+     * Parameters of the model trained by {@link ConvolutionalNeuralNetwork#train(TrainingOptions)}
+     */
+    public static final Hyperparameters DEFAULT = new Hyperparameters(0.01, 0.9, 16, 20, 50, 128, 64);
+
+    /**
+     * Reads widths of the layers from shapes of network parameters, so a model with non-default widths
+     * (found by {@link HyperparameterSearch} or pruned by {@link ModelPruner}) can be rebuilt
+     *
+     * @param shapes shapes of parameter arrays by their names, see {@link CompactModelFormat#readShapes(java.io.File)}
+     * @return parameters with these learning rate, momentum and batch size and the widths of the layers in <i>shapes</i>
+     * @throws IllegalArgumentException if <i>shapes</i> are not parameters of the CNN model
+     */
+    public Hyperparameters withWidthsOf(Map<String, long[]> shapes) {
+        return new Hyperparameters(learningRate, momentum, batchSize,
+                width(shapes, "0_W", 0), width(shapes, "2_W", 0), width(shapes, "4_W", 1), width(shapes, "5_W", 1));
+    }
+
+    private static int width(Map<String, long[]> shapes, String param, int dimension) {
+        long[] shape = shapes.get(param);
+        if (shape == null || shape.length <= dimension) {
+            throw new IllegalArgumentException("Parameters " + shapes.keySet() + " are not parameters of the CNN model");
+        }
+        return (int) shape[dimension];
+    }
+
+    /**
+     * @return parameters as a JSON object
+     */
+    public String toJson() {
+        return String.format(Locale.ROOT,
+                "{\"learningRate\":%s,\"momentum\":%s,\"batchSize\":%d,\"conv1Channels\":%d,\"conv2Channels\":%d,\"dense1Units\":%d,\"dense2Units\":%d}",
+                learningRate, momentum, batchSize, conv1Channels, conv2Channels, dense1Units, dense2Units);
+    }
+}
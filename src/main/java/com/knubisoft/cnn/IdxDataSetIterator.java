@@ -0,0 +1,390 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * DataSetIterator over local <a href="http://yann.lecun.com/exdb/mnist/">MNIST</a> files in IDX format,
+ * which works without network access.
+ * <p>
+ * Image and label files are memory-mapped (gzipped files are decompressed once into a cache file next to them).
+ * Examples are picked from a permutation shuffled with the passed seed and reshuffled every epoch. Batches are filled
+ * by a background thread into a small ring of reusable arrays, so the trainer does not wait for data.
+ * Features are {@link ModelInput#scale(float) scaled} to [0, 1] like served images and labels are one-hot encoded, same as MnistDataSetIterator does.
+ * <p>
+ * By default a returned DataSet stays valid until the next call of {@link IdxDataSetIterator#next()},
+ * after that its arrays are refilled with the following batches. Consumers which keep several batches at once
+ * (e.g. parallel training) must {@link IdxDataSetIterator#setReuseArrays(boolean) turn the reuse off}.
+ */
+public class IdxDataSetIterator implements DataSetIterator, AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(IdxDataSetIterator.class.getName());
+    private static final int IMAGES_MAGIC = 2051;
+    private static final int LABELS_MAGIC = 2049;
+    private static final int CLASSES = 10;
+    private static final int PREFETCH_BATCHES = 3;
+
+    private final MappedByteBuffer images;
+    private final MappedByteBuffer labels;
+    private final int imagesOffset;
+    private final int labelsOffset;
+    private final int pixels;
+    private final int batchSize;
+    private final int numExamples;
+    private final boolean shuffle;
+    private final Random random;
+    private final int[] order;
+    private final BlockingQueue<Slot> free = new ArrayBlockingQueue<>(PREFETCH_BATCHES);
+    private final BlockingQueue<Slot> ready = new ArrayBlockingQueue<>(PREFETCH_BATCHES);
+    private DataSetPreProcessor preProcessor;
+    @Setter
+    private boolean reuseArrays = true;
+    private Thread producer;
+    private Slot current;
+    private int consumedExamples;
+
+    /**
+     * Creates iterator over passed IDX files
+     *
+     * @param imagesFile  IDX file with images (<i>*-images-idx3-ubyte</i>, optionally gzipped)
+     * @param labelsFile  IDX file with labels (<i>*-labels-idx1-ubyte</i>, optionally gzipped)
+     * @param batchSize   number of examples in a batch
+     * @param numExamples max number of examples to iterate through
+     * @param shuffle     whether to shuffle examples every epoch
+     * @param seed        seed of the shuffling
+     */
+    @SneakyThrows
+    public IdxDataSetIterator(Path imagesFile, Path labelsFile, int batchSize, int numExamples, boolean shuffle, long seed) {
+        images = map(decompressed(imagesFile));
+        labels = map(decompressed(labelsFile));
+        if (images.getInt(0) != IMAGES_MAGIC || labels.getInt(0) != LABELS_MAGIC) {
+            throw new IOException("Unexpected IDX header in " + imagesFile + " or " + labelsFile);
+        }
+        int count = images.getInt(4);
+        if (labels.getInt(4) != count) {
+            throw new IOException("Different number of images and labels in " + imagesFile + " and " + labelsFile);
+        }
+        pixels = images.getInt(8) * images.getInt(12);
+        imagesOffset = 16;
+        labelsOffset = 8;
+        this.batchSize = batchSize;
+        this.numExamples = Math.min(numExamples, count);
+        this.shuffle = shuffle;
+        random = new Random(seed);
+        int[] all = IntStream.range(0, count).toArray();
+        shuffle(all);
+        order = Arrays.copyOf(all, this.numExamples);
+        for (int i = 0; i < PREFETCH_BATCHES; i++) {
+            free.add(new Slot(batchSize, pixels));
+        }
+    }
+
+    /**
+     * Creates iterator over standard MNIST files in passed directory
+     *
+     * @param dir         directory with <i>train-*</i> and <i>t10k-*</i> IDX files (plain or gzipped)
+     * @param train       whether to use train or test files
+     * @param batchSize   number of examples in a batch
+     * @param numExamples max number of examples to iterate through
+     * @param seed        seed of the shuffling
+     * @return iterator over the MNIST files
+     */
+    public static IdxDataSetIterator mnist(Path dir, boolean train, int batchSize, int numExamples, long seed) {
+        String prefix = train ? "train" : "t10k";
+        return new IdxDataSetIterator(resolve(dir, prefix + "-images-idx3-ubyte"), resolve(dir, prefix + "-labels-idx1-ubyte"),
+                batchSize, numExamples, true, seed);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return consumedExamples < numExamples;
+    }
+
+    @Override
+    public DataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        startProducer();
+        recycleCurrent();
+        try {
+            current = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a batch", e);
+        }
+        if (current.error != null) {
+            throw current.error;
+        }
+        consumedExamples += current.size;
+        DataSet dataSet = reuseArrays ? current.toDataSet() : current.toDataSet().copy();
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    /**
+     * Returns the next <i>num</i> examples (fewer at the end of the epoch) in arrays which are not reused.
+     * The batch is read directly, prefetched batches are dropped and the following {@link IdxDataSetIterator#next()}
+     * continues after the returned examples
+     *
+     * @param num number of examples
+     * @return DataSet with the next examples
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num < 1) {
+            throw new IllegalArgumentException("Number of examples must be positive: " + num);
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        discardPrefetched();
+        int count = Math.min(num, numExamples - consumedExamples);
+        Slot slot = new Slot(count, pixels);
+        slot.fill(consumedExamples, count);
+        consumedExamples += count;
+        DataSet dataSet = slot.toDataSet();
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    @Override
+    public void reset() {
+        discardPrefetched();
+        consumedExamples = 0;
+        shuffle(order);
+    }
+
+    /**
+     * Stops the prefetch thread
+     */
+    @Override
+    public void close() {
+        stopProducer();
+    }
+
+    @Override
+    public int inputColumns() {
+        return pixels;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return CLASSES;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    /**
+     * Batches are already prefetched by the iterator and their arrays are reused,
+     * so wrapping it into an async iterator is not allowed
+     */
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return IntStream.range(0, CLASSES).mapToObj(String::valueOf).toList();
+    }
+
+    private void startProducer() {
+        if (producer == null) {
+            producer = new Thread(this::produce, "idx-prefetch");
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+    private void stopProducer() {
+        if (producer != null) {
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            producer = null;
+        }
+    }
+
+    /**
+     * Stops the prefetch thread and returns all slots to the free queue, the thread is started again from
+     * the first not consumed example
+     */
+    private void discardPrefetched() {
+        stopProducer();
+        recycleCurrent();
+        ready.drainTo(free);
+    }
+
+    private void recycleCurrent() {
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+    }
+
+    private void produce() {
+        Slot slot = null;
+        try {
+            for (int start = consumedExamples; start < numExamples; start += batchSize) {
+                slot = free.take();
+                try {
+                    slot.fill(start, Math.min(batchSize, numExamples - start));
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to read batch", e);
+                    slot.error = e;
+                }
+                ready.put(slot);
+                slot = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // a slot taken when the thread was stopped goes back, so the ring does not shrink with every reset
+            if (slot != null) {
+                free.add(slot);
+            }
+        }
+    }
+
+    private void shuffle(int[] indexes) {
+        if (!shuffle) {
+            return;
+        }
+        for (int i = indexes.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = indexes[i];
+            indexes[i] = indexes[j];
+            indexes[j] = tmp;
+        }
+    }
+
+    private static Path resolve(Path dir, String name) {
+        Path plain = dir.resolve(name);
+        return Files.exists(plain) ? plain : dir.resolve(name + ".gz");
+    }
+
+    /**
+     * Returns path of the decompressed copy of a gzipped file, creating it on the first use
+     */
+    private static Path decompressed(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(".gz")) {
+            return file;
+        }
+        Path cache = file.resolveSibling(name.substring(0, name.length() - 3));
+        if (!Files.exists(cache)) {
+            LOG.info("Decompressing " + file);
+            Path tmp = file.resolveSibling(cache.getFileName() + ".tmp");
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return cache;
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            return buffer;
+        }
+    }
+
+    /**
+     * Reusable arrays of one batch
+     */
+    private final class Slot {
+        private final float[] featureValues;
+        private final float[] labelValues;
+        private final INDArray features;
+        private final INDArray labels;
+        private final int capacity;
+        private int size;
+        private RuntimeException error;
+
+        private Slot(int batchSize, int pixels) {
+            capacity = batchSize;
+            featureValues = new float[batchSize * pixels];
+            labelValues = new float[batchSize * CLASSES];
+            features = Nd4j.create(DataType.FLOAT, batchSize, pixels);
+            labels = Nd4j.create(DataType.FLOAT, batchSize, CLASSES);
+        }
+
+        private void fill(int start, int count) {
+            Arrays.fill(labelValues, 0);
+            for (int i = 0; i < count; i++) {
+                int example = order[start + i];
+                int imageStart = imagesOffset + example * pixels;
+                int rowStart = i * pixels;
+                for (int p = 0; p < pixels; p++) {
+                    featureValues[rowStart + p] = ModelInput.scale(IdxDataSetIterator.this.images.get(imageStart + p) & 0xFF);
+                }
+                labelValues[i * CLASSES + (IdxDataSetIterator.this.labels.get(labelsOffset + example) & 0xFF)] = 1;
+            }
+            features.data().setData(featureValues);
+            labels.data().setData(labelValues);
+            size = count;
+            error = null;
+        }
+
+        private DataSet toDataSet() {
+            if (size == capacity) {
+                return new DataSet(features, labels);
+            }
+            return new DataSet(features.get(NDArrayIndex.interval(0, size), NDArrayIndex.all()),
+                    labels.get(NDArrayIndex.interval(0, size), NDArrayIndex.all()));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.knubisoft.cnn;
+
+/**
+ * Forward pass of the {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} which runs without ND4J,
+ * {@link ConvolutionalNeuralNetwork#serve(InferenceEngine) served} in place of the ND4J model.
+ * <p>
+ * An engine keeps the activations of a pass in its own buffers, so one instance must be used by one thread at a time,
+ * {@link InferenceEngine#copy()} creates an engine for another thread.
+ */
+public interface InferenceEngine {
+
+    /**
+     * Predicts class of the passed network input
+     *
+     * @param input 28x28 image vector {@link ModelInput#prepare(float[]) prepared} for the network
+     * @return The predicted class index
+     */
+    int predict(float[] input);
+
+    /**
+     * Computes probabilities of every class for the passed network input
+     *
+     * @param input         28x28 image vector {@link ModelInput#prepare(float[]) prepared} for the network
+     * @param probabilities array to write class probabilities to
+     */
+    void output(float[] input, float[] probabilities);
+
+    /**
+     * Creates engine sharing weights with this one, but having its own buffers
+     *
+     * @return engine which can be used by another thread
+     */
+    InferenceEngine copy();
+
+    /**
+     * @return number of classes the model predicts
+     */
+    int classes();
+
+    /**
+     * @return size of the weights in bytes
+     */
+    long sizeBytes();
+}
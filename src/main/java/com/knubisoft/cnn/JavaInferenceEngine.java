@@ -0,0 +1,358 @@
+package com.knubisoft.cnn;
+
+import lombok.SneakyThrows;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Forward pass of the {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} written in plain Java.
+ * <p>
+ * Convolutions are computed as im2col followed by a cache-blocked matrix multiplication,
+ * all intermediate activations live in buffers allocated once per engine,
+ * so a prediction neither allocates memory nor calls native ND4J code.
+ * <p>
+ * Weights are immutable and shared between engines created with {@link JavaInferenceEngine#copy()},
+ * but buffers are not, so one engine instance must be used by one thread at a time.
+ */
+public class JavaInferenceEngine implements InferenceEngine {
+    private static final int SIZE = 28;
+    private static final int POOL = 2;
+    private static final int BLOCK_K = 64;
+    private static final int BLOCK_N = 256;
+
+    private final Weights weights;
+    private final float[] columns1;
+    private final float[] conv1;
+    private final float[] pool1;
+    private final float[] columns2;
+    private final float[] conv2;
+    private final float[] pool2;
+    private final float[] dense1;
+    private final float[] dense2;
+    private final float[] output;
+
+    private JavaInferenceEngine(Weights weights) {
+        this.weights = weights;
+        columns1 = new float[weights.kernel1 * weights.kernel1 * weights.conv1Out * weights.conv1Out];
+        conv1 = new float[weights.conv1Filters * weights.conv1Out * weights.conv1Out];
+        pool1 = new float[weights.conv1Filters * weights.pool1Out * weights.pool1Out];
+        columns2 = new float[weights.conv1Filters * weights.kernel2 * weights.kernel2 * weights.conv2Out * weights.conv2Out];
+        conv2 = new float[weights.conv2Filters * weights.conv2Out * weights.conv2Out];
+        pool2 = new float[weights.conv2Filters * weights.pool2Out * weights.pool2Out];
+        dense1 = new float[weights.dense1Units];
+        dense2 = new float[weights.dense2Units];
+        output = new float[weights.classes];
+    }
+
+    /**
+     * Imports weights of a model saved by {@link ConvolutionalNeuralNetwork#train(int, int)}
+     *
+     * @param modelFile model file written by ModelSerializer (e.g. <i>resources/model.bin</i>)
+     * @return engine with imported weights
+     */
+    @SneakyThrows
+    public static JavaInferenceEngine load(File modelFile) {
+        return fromNetwork(ModelSerializer.restoreMultiLayerNetwork(modelFile, false));
+    }
+
+    /**
+     * Imports weights exported by {@link ConvolutionalNeuralNetwork#exportCompact()}.
+     * Only plain Java is used, so no native ND4J libraries are loaded
+     *
+     * @param compactFile model file in the {@link CompactModelFormat compact format}
+     * @return engine with imported weights
+     */
+    @SneakyThrows
+    public static JavaInferenceEngine loadCompact(File compactFile) {
+        Map<String, long[]> shapes = CompactModelFormat.readShapes(compactFile);
+        Map<String, float[]> values = CompactModelFormat.readValues(compactFile);
+        long[] conv1W = shapes.get("0_W");
+        long[] conv2W = shapes.get("2_W");
+        long[] dense1W = shapes.get("4_W");
+        long[] dense2W = shapes.get("5_W");
+        long[] outW = shapes.get("6_W");
+        return new JavaInferenceEngine(new Weights(
+                (int) conv1W[0], (int) conv1W[2], values.get("0_W"), values.get("0_b"),
+                (int) conv2W[0], (int) conv2W[2], values.get("2_W"), values.get("2_b"),
+                (int) dense1W[1], transpose(values.get("4_W"), (int) dense1W[0], (int) dense1W[1]), values.get("4_b"),
+                (int) dense2W[1], transpose(values.get("5_W"), (int) dense2W[0], (int) dense2W[1]), values.get("5_b"),
+                (int) outW[1], transpose(values.get("6_W"), (int) outW[0], (int) outW[1]), values.get("6_b")));
+    }
+
+    /**
+     * Copies weights of passed network
+     *
+     * @param network trained network with the {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} layers
+     * @return engine with copied weights
+     */
+    public static JavaInferenceEngine fromNetwork(MultiLayerNetwork network) {
+        INDArray conv1W = network.getLayer(0).getParam("W");
+        INDArray conv2W = network.getLayer(2).getParam("W");
+        INDArray dense1W = network.getLayer(4).getParam("W");
+        INDArray dense2W = network.getLayer(5).getParam("W");
+        INDArray outW = network.getLayer(6).getParam("W");
+        return new JavaInferenceEngine(new Weights(
+                (int) conv1W.size(0), (int) conv1W.size(2), flatten(conv1W), flatten(network.getLayer(0).getParam("b")),
+                (int) conv2W.size(0), (int) conv2W.size(2), flatten(conv2W), flatten(network.getLayer(2).getParam("b")),
+                (int) dense1W.size(1), flatten(dense1W.transpose()), flatten(network.getLayer(4).getParam("b")),
+                (int) dense2W.size(1), flatten(dense2W.transpose()), flatten(network.getLayer(5).getParam("b")),
+                (int) outW.size(1), flatten(outW.transpose()), flatten(network.getLayer(6).getParam("b"))));
+    }
+
+    /**
+     * Creates engine sharing weights with this one, but having its own buffers
+     *
+     * @return engine which can be used by another thread
+     */
+    @Override
+    public JavaInferenceEngine copy() {
+        return new JavaInferenceEngine(weights);
+    }
+
+    /**
+     * Predicts class of the passed LabeledImage, its pixels are {@link ModelInput#prepare(float[]) scaled} like the
+     * ones served by {@link ConvolutionalNeuralNetwork#predict(LabeledImage)}
+     *
+     * @param img LabeledImage containing 28x28 image vector
+     * @return The predicted class index
+     */
+    public int predict(LabeledImage img) {
+        return predict(ModelInput.prepare(img.pixels()));
+    }
+
+    /**
+     * Predicts class of the passed image vector
+     *
+     * @param pixels 28x28 image vector, values are used as is
+     * @return The predicted class index
+     */
+    @Override
+    public int predict(float[] pixels) {
+        forward(pixels);
+        return argMax(output);
+    }
+
+    /**
+     * Computes probabilities of every class for the passed image vector
+     *
+     * @param pixels        28x28 image vector, values are used as is
+     * @param probabilities array to write class probabilities to
+     */
+    @Override
+    public void output(float[] pixels, float[] probabilities) {
+        forward(pixels);
+        System.arraycopy(output, 0, probabilities, 0, output.length);
+    }
+
+    /**
+     * @return number of classes the model predicts
+     */
+    @Override
+    public int classes() {
+        return weights.classes;
+    }
+
+    /**
+     * @return size of all weights and biases in bytes
+     */
+    @Override
+    public long sizeBytes() {
+        Weights w = weights;
+        return (long) Float.BYTES * (w.conv1W.length + w.conv1B.length + w.conv2W.length + w.conv2B.length
+                + w.dense1W.length + w.dense1B.length + w.dense2W.length + w.dense2B.length + w.outW.length + w.outB.length);
+    }
+
+    Weights weights() {
+        return weights;
+    }
+
+    /**
+     * Runs forward pass and returns inputs of the weighted layers (image, both pooled feature maps and both hidden
+     * dense layers). Returned arrays are buffers of this engine, which are overwritten by the next pass
+     */
+    float[][] layerInputs(float[] pixels) {
+        forward(pixels);
+        return new float[][]{pixels, pool1, pool2, dense1, dense2};
+    }
+
+    private void forward(float[] pixels) {
+        Weights w = weights;
+        im2col(pixels, 1, SIZE, w.kernel1, w.conv1Out, columns1);
+        convolve(w.conv1W, w.conv1B, columns1, conv1, w.conv1Filters, w.kernel1 * w.kernel1, w.conv1Out * w.conv1Out);
+        maxPool(conv1, w.conv1Filters, w.conv1Out, pool1);
+
+        im2col(pool1, w.conv1Filters, w.pool1Out, w.kernel2, w.conv2Out, columns2);
+        convolve(w.conv2W, w.conv2B, columns2, conv2, w.conv2Filters, w.conv1Filters * w.kernel2 * w.kernel2, w.conv2Out * w.conv2Out);
+        maxPool(conv2, w.conv2Filters, w.conv2Out, pool2);
+
+        dense(w.dense1W, w.dense1B, pool2, dense1, true);
+        dense(w.dense2W, w.dense2B, dense1, dense2, true);
+        dense(w.outW, w.outB, dense2, output, false);
+        softmax(output);
+    }
+
+    /**
+     * Unrolls every <i>kernel x kernel</i> patch of a <i>channels x size x size</i> image into a column,
+     * so the result is a <i>(channels * kernel * kernel) x (out * out)</i> row major matrix
+     */
+    private static void im2col(float[] image, int channels, int size, int kernel, int out, float[] columns) {
+        int outArea = out * out;
+        int row = 0;
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = c * size * size;
+            for (int ky = 0; ky < kernel; ky++) {
+                for (int kx = 0; kx < kernel; kx++, row++) {
+                    int dst = row * outArea;
+                    for (int y = 0; y < out; y++) {
+                        System.arraycopy(image, channelOffset + (y + ky) * size + kx, columns, dst + y * out, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void convolve(float[] kernels, float[] bias, float[] columns, float[] result, int filters, int k, int n) {
+        for (int f = 0; f < filters; f++) {
+            Arrays.fill(result, f * n, (f + 1) * n, bias[f]);
+        }
+        gemm(kernels, columns, result, filters, k, n);
+    }
+
+    /**
+     * Cache-blocked <i>c += a * b</i> where <i>a</i> is <i>m x k</i>, <i>b</i> is <i>k x n</i> and <i>c</i> is <i>m x n</i>,
+     * all row major. The innermost loop runs over contiguous rows of <i>b</i> and <i>c</i> so the JIT can vectorize it.
+     */
+    static void gemm(float[] a, float[] b, float[] c, int m, int k, int n) {
+        for (int n0 = 0; n0 < n; n0 += BLOCK_N) {
+            int n1 = Math.min(n0 + BLOCK_N, n);
+            for (int k0 = 0; k0 < k; k0 += BLOCK_K) {
+                int k1 = Math.min(k0 + BLOCK_K, k);
+                for (int i = 0; i < m; i++) {
+                    int cRow = i * n;
+                    int aRow = i * k;
+                    for (int p = k0; p < k1; p++) {
+                        float value = a[aRow + p];
+                        int bRow = p * n;
+                        for (int j = n0; j < n1; j++) {
+                            c[cRow + j] += value * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void maxPool(float[] image, int channels, int size, float[] result) {
+        int out = size / POOL;
+        int index = 0;
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = c * size * size;
+            for (int y = 0; y < out; y++) {
+                int top = channelOffset + y * POOL * size;
+                for (int x = 0; x < out; x++) {
+                    int topLeft = top + x * POOL;
+                    result[index++] = Math.max(Math.max(image[topLeft], image[topLeft + 1]),
+                            Math.max(image[topLeft + size], image[topLeft + size + 1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fully connected layer, <i>weights</i> is <i>out x in</i> row major (transposed DL4J layout)
+     */
+    private static void dense(float[] weights, float[] bias, float[] in, float[] out, boolean relu) {
+        int inLength = in.length;
+        for (int o = 0; o < out.length; o++) {
+            int row = o * inLength;
+            float sum = 0;
+            for (int i = 0; i < inLength; i++) {
+                sum += weights[row + i] * in[i];
+            }
+            sum += bias[o];
+            out[o] = relu && sum < 0 ? 0 : sum;
+        }
+    }
+
+    static void softmax(float[] values) {
+        float max = values[0];
+        for (float value : values) {
+            max = Math.max(max, value);
+        }
+        float sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) Math.exp(values[i] - max);
+            sum += values[i];
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= sum;
+        }
+    }
+
+    static int argMax(float[] values) {
+        int best = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static float[] transpose(float[] matrix, int rows, int columns) {
+        float[] transposed = new float[matrix.length];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                transposed[c * rows + r] = matrix[r * columns + c];
+            }
+        }
+        return transposed;
+    }
+
+    private static float[] flatten(INDArray array) {
+        return array.dup('c').reshape(array.length()).toFloatVector();
+    }
+
+    /**
+     * Immutable weights of all layers together with derived layer sizes
+     */
+    static final class Weights {
+        final int conv1Filters, kernel1, conv1Out, pool1Out;
+        final int conv2Filters, kernel2, conv2Out, pool2Out;
+        final int dense1Units, dense2Units, classes;
+        final float[] conv1W, conv1B, conv2W, conv2B, dense1W, dense1B, dense2W, dense2B, outW, outB;
+
+        Weights(int conv1Filters, int kernel1, float[] conv1W, float[] conv1B,
+                        int conv2Filters, int kernel2, float[] conv2W, float[] conv2B,
+                        int dense1Units, float[] dense1W, float[] dense1B,
+                        int dense2Units, float[] dense2W, float[] dense2B,
+                        int classes, float[] outW, float[] outB) {
+            this.conv1Filters = conv1Filters;
+            this.kernel1 = kernel1;
+            this.conv1Out = SIZE - kernel1 + 1;
+            this.pool1Out = conv1Out / POOL;
+            this.conv2Filters = conv2Filters;
+            this.kernel2 = kernel2;
+            this.conv2Out = pool1Out - kernel2 + 1;
+            this.pool2Out = conv2Out / POOL;
+            this.dense1Units = dense1Units;
+            this.dense2Units = dense2Units;
+            this.classes = classes;
+            this.conv1W = conv1W;
+            this.conv1B = conv1B;
+            this.conv2W = conv2W;
+            this.conv2B = conv2B;
+            this.dense1W = dense1W;
+            this.dense1B = dense1B;
+            this.dense2W = dense2W;
+            this.dense2B = dense2B;
+            this.outW = outW;
+            this.outB = outB;
+        }
+    }
+}
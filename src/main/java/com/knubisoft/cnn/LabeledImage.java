@@ -3,7 +3,9 @@ package com.knubisoft.cnn;
 import java.io.Serializable;
 
 /**
- * Represents an image converted to one dimensional array with one color chanel
+ * Represents an image converted to one dimensional array with one color chanel.
+ * Pixels are float32 ink intensities in range [0, 255], the same type the network computes in,
+ * so they are copied into the input of the network without conversion
  */
-public record LabeledImage(double[] pixels) implements Serializable {
+public record LabeledImage(float[] pixels) implements Serializable {
 }
@@ -0,0 +1,50 @@
+package com.knubisoft.cnn;
+
+import com.knubisoft.utils.ImageProcessorUtil;
+import com.knubisoft.utils.MnistNormalizer;
+import com.knubisoft.utils.StrokeRasterizer;
+
+/**
+ * Turns preprocessed pixels into input of the network at the scale of the MNIST features the model is trained on:
+ * ink intensities are divided by {@link ModelInput#MAX_PIXEL_VALUE 255}, so the input is in range [0, 1].
+ * {@link IdxDataSetIterator} scales MNIST pixels with {@link ModelInput#scale(float)} too and {@link FineTuner} prepares
+ * {@link FeedbackStore feedback} here, so training, evaluation and serving see pixels at one scale.
+ * <p>
+ * Pixels are expected to be {@link MnistNormalizer framed like MNIST digits} already, as
+ * {@link ImageProcessorUtil#preprocess(java.awt.Image)} and {@link StrokeRasterizer} return them
+ */
+public class ModelInput {
+    public static final float MAX_PIXEL_VALUE = 255;
+
+    /**
+     * @param pixels ink intensities in range [0, 255] of a 28x28 image with one color channel
+     * @return input of the network in range [0, 1]
+     */
+    public static float[] prepare(float[] pixels) {
+        float[] out = new float[pixels.length];
+        prepare(pixels, out, 0);
+        return out;
+    }
+
+    /**
+     * Variant of {@link ModelInput#prepare(float[])} which writes result into passed array,
+     * so a batch is filled in place in one pass
+     *
+     * @param pixels ink intensities in range [0, 255] of a 28x28 image with one color channel
+     * @param out    array to write input of the network to
+     * @param offset index in the array of the first written value
+     */
+    public static void prepare(float[] pixels, float[] out, int offset) {
+        for (int i = 0; i < pixels.length; i++) {
+            out[offset + i] = scale(pixels[i]);
+        }
+    }
+
+    /**
+     * @param pixel ink intensity in range [0, 255]
+     * @return input of the network in range [0, 1]
+     */
+    public static float scale(float pixel) {
+        return pixel / MAX_PIXEL_VALUE;
+    }
+}
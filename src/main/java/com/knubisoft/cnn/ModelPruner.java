@@ -0,0 +1,240 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Structured pruning of the {@link ConvolutionalNeuralNetwork#buildCNNConf(Hyperparameters, DataType) CNN model}.
+ * <p>
+ * A step ranks the filters of both convolutional layers and the units of both hidden dense layers by the {@link Criterion},
+ * removes the lowest ranked {@link PruningOptions#getFraction() fraction} of every layer together with the weights
+ * which read them in the next layer and fine-tunes the smaller network. The result is the same model with narrower layers,
+ * not a sparse one, so it is faster with every engine and is saved and loaded like any other model.
+ * <p>
+ * Steps are repeated until the single image latency meets {@link PruningOptions#getTargetMicros() the target},
+ * a step drops the accuracy below {@link PruningOptions#getMinAccuracy() the floor} (that step is rejected),
+ * the layers cannot be narrower or {@link PruningOptions#getMaxSteps() max steps} are done.
+ */
+public class ModelPruner {
+    private final static Logger LOG = Logger.getLogger(ModelPruner.class.getName());
+    /**
+     * Indexes of the pruned layers, every one of them is read by the next layer with parameters
+     */
+    private static final int[] LAYERS = {0, 2, 4, 5};
+    /**
+     * Number of values of a filter of the second convolutional layer after pooling, which are its rows in the dense layer
+     */
+    private static final int POOLED_SIZE = 4 * 4;
+    private static final int PIXELS = 28 * 28;
+    private static final int WARM_UP_RUNS = 50;
+
+    /**
+     * How filters and units are ranked
+     */
+    public enum Criterion {
+        /**
+         * L1 norm of the incoming weights
+         */
+        MAGNITUDE,
+        /**
+         * Mean absolute activation on the test data
+         */
+        ACTIVATION
+    }
+
+    private final PruningOptions options;
+    private final DataSetIterator train;
+    private final DataSetIterator test;
+
+    /**
+     * @param options options of pruning
+     * @param train   data to fine-tune on
+     * @param test    data to rank units and evaluate steps on
+     */
+    public ModelPruner(PruningOptions options, DataSetIterator train, DataSetIterator test) {
+        this.options = options;
+        this.train = train;
+        this.test = test;
+    }
+
+    /**
+     * Prunes passed network step by step, the network itself is not changed
+     *
+     * @param network trained network to prune
+     * @return PruningReport with all steps and the last accepted network
+     */
+    public PruningReport run(MultiLayerNetwork network) {
+        long start = System.nanoTime();
+        AccuracyCalculator calculator = new AccuracyCalculator(test);
+        List<PruningReport.Step> steps = new ArrayList<>();
+        PruningReport.Step current = evaluate(0, network, calculator);
+        steps.add(current);
+        LOG.info(current.toString());
+        MultiLayerNetwork best = network;
+        PruningReport.Status status = null;
+        while (status == null) {
+            MultiLayerNetwork candidate;
+            if (options.getTargetMicros() > 0 && current.micros() <= options.getTargetMicros()) {
+                status = PruningReport.Status.LATENCY_REACHED;
+            } else if (current.step() >= options.getMaxSteps()) {
+                status = PruningReport.Status.MAX_STEPS;
+            } else if ((candidate = removeUnits(best)) == null) {
+                status = PruningReport.Status.MIN_WIDTH;
+            } else {
+                fineTune(candidate);
+                PruningReport.Step next = evaluate(current.step() + 1, candidate, calculator);
+                steps.add(next);
+                LOG.info(next.toString());
+                if (next.accepted()) {
+                    best = candidate;
+                    current = next;
+                } else {
+                    status = PruningReport.Status.ACCURACY_FLOOR;
+                }
+            }
+        }
+        return new PruningReport(steps, status, best, System.nanoTime() - start);
+    }
+
+    /**
+     * Removes the lowest ranked {@link PruningOptions#getFraction() fraction} of the filters and units of every pruned layer
+     * without fine-tuning
+     *
+     * @param network network to prune, it is not changed
+     * @return new narrower network or <i>null</i> if all layers are already {@link PruningOptions#getMinWidth() min width}
+     */
+    public MultiLayerNetwork removeUnits(MultiLayerNetwork network) {
+        Map<String, INDArray> params = network.paramTable();
+        INDArray[] scores = options.getCriterion() == Criterion.MAGNITUDE ? magnitudes(params) : activations(network);
+        int[][] keep = new int[LAYERS.length][];
+        boolean pruned = false;
+        for (int i = 0; i < LAYERS.length; i++) {
+            int width = (int) scores[i].length();
+            int remaining = Math.min(width, Math.max(options.getMinWidth(), width - (int) Math.ceil(width * options.getFraction())));
+            keep[i] = IntStream.of(ConvolutionalNeuralNetwork.topK(scores[i].toDoubleVector(), remaining)).sorted().toArray();
+            pruned |= remaining < width;
+        }
+        if (!pruned) {
+            return null;
+        }
+
+        int[] conv1 = keep[0];
+        int[] conv2 = keep[1];
+        int[] dense1 = keep[2];
+        int[] dense2 = keep[3];
+        int[] conv2Rows = IntStream.of(conv2).flatMap(filter -> IntStream.range(filter * POOLED_SIZE, (filter + 1) * POOLED_SIZE)).toArray();
+        Map<String, INDArray> kept = new LinkedHashMap<>();
+        kept.put("0_W", select(params.get("0_W"), conv1));
+        kept.put("0_b", selectBias(params.get("0_b"), conv1));
+        kept.put("2_W", select(params.get("2_W"), conv2, conv1));
+        kept.put("2_b", selectBias(params.get("2_b"), conv2));
+        kept.put("4_W", select(params.get("4_W"), conv2Rows, dense1));
+        kept.put("4_b", selectBias(params.get("4_b"), dense1));
+        kept.put("5_W", select(params.get("5_W"), dense1, dense2));
+        kept.put("5_b", selectBias(params.get("5_b"), dense2));
+        kept.put("6_W", select(params.get("6_W"), dense2));
+        kept.put("6_b", params.get("6_b"));
+
+        Hyperparameters hyperparameters = new Hyperparameters(options.getLearningRate(), Hyperparameters.DEFAULT.momentum(),
+                Hyperparameters.DEFAULT.batchSize(), conv1.length, conv2.length, dense1.length, dense2.length);
+        MultiLayerNetwork result = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(hyperparameters, network.params().dataType()));
+        result.init();
+        for (Map.Entry<String, INDArray> entry : result.paramTable().entrySet()) {
+            INDArray param = entry.getValue();
+            param.assign(kept.get(entry.getKey()).reshape(param.shape()));
+        }
+        return result;
+    }
+
+    /**
+     * L1 norms of the filters of convolutional layers (weights are <i>[out, in, height, width]</i>)
+     * and of the columns of dense layers (weights are <i>[in, out]</i>)
+     */
+    private static INDArray[] magnitudes(Map<String, INDArray> params) {
+        INDArray[] scores = new INDArray[LAYERS.length];
+        for (int i = 0; i < LAYERS.length; i++) {
+            INDArray weights = params.get(LAYERS[i] + "_W");
+            scores[i] = weights.rank() == 4 ? weights.norm1(1, 2, 3) : weights.norm1(0);
+        }
+        return scores;
+    }
+
+    /**
+     * Sums of absolute activations of every filter and unit over the test data
+     */
+    private INDArray[] activations(MultiLayerNetwork network) {
+        INDArray[] scores = new INDArray[LAYERS.length];
+        test.reset();
+        while (test.hasNext()) {
+            // the first activation is the input, activation of layer i follows it
+            List<INDArray> activations = network.feedForward(test.next().getFeatures(), false);
+            for (int i = 0; i < LAYERS.length; i++) {
+                INDArray activation = Transforms.abs(activations.get(LAYERS[i] + 1), true);
+                INDArray sum = activation.rank() == 4 ? activation.sum(0, 2, 3) : activation.sum(0);
+                scores[i] = scores[i] == null ? sum : scores[i].addi(sum);
+            }
+        }
+        return scores;
+    }
+
+    private static INDArray select(INDArray array, int[]... keep) {
+        INDArrayIndex[] indexes = new INDArrayIndex[array.rank()];
+        for (int d = 0; d < indexes.length; d++) {
+            indexes[d] = d < keep.length ? NDArrayIndex.indices(Arrays.stream(keep[d]).asLongStream().toArray()) : NDArrayIndex.all();
+        }
+        return array.get(indexes).dup();
+    }
+
+    private static INDArray selectBias(INDArray bias, int[] keep) {
+        return bias.rank() == 1 ? select(bias, keep) : select(bias, IntStream.range(0, (int) bias.size(0)).toArray(), keep);
+    }
+
+    private void fineTune(MultiLayerNetwork network) {
+        for (int epoch = 0; epoch < options.getFineTuneEpochs(); epoch++) {
+            train.reset();
+            network.fit(train);
+        }
+    }
+
+    private PruningReport.Step evaluate(int step, MultiLayerNetwork network, AccuracyCalculator calculator) {
+        test.reset();
+        double accuracy = 1 - calculator.calculateScore(network);
+        return new PruningReport.Step(step, Hyperparameters.DEFAULT.withWidthsOf(shapes(network)), network.numParams(),
+                accuracy, measureMicros(network), step == 0 || accuracy >= options.getMinAccuracy());
+    }
+
+    /**
+     * Average latency of a single image prediction in microseconds, measured after warm-up
+     */
+    private double measureMicros(MultiLayerNetwork network) {
+        INDArray input = Nd4j.rand(network.params().dataType(), 1, PIXELS);
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            network.output(input);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < options.getLatencyRuns(); i++) {
+            network.output(input);
+        }
+        return (System.nanoTime() - start) / 1e3 / options.getLatencyRuns();
+    }
+
+    private static Map<String, long[]> shapes(MultiLayerNetwork network) {
+        Map<String, long[]> shapes = new LinkedHashMap<>();
+        network.paramTable().forEach((name, param) -> shapes.put(name, param.shape()));
+        return shapes;
+    }
+}
@@ -0,0 +1,158 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds the active model and the previous ones, so models can be replaced under live traffic.
+ * <p>
+ * Readers take the active {@link ModelVersion} once per prediction, so a prediction in flight finishes on the version
+ * it started with while new predictions already use the promoted one. A model is warmed up with
+ * {@link ModelRegistry#WARM_UP_RUNS} forward passes before promotion (this also rejects a model producing non-finite
+ * output), the swap itself is a single reference assignment. Up to {@link ModelRegistry#KEEP_PREVIOUS} replaced versions
+ * are kept for {@link ModelRegistry#rollback()}.
+ */
+public class ModelRegistry implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(ModelRegistry.class.getName());
+    private static final int WARM_UP_RUNS = 3;
+    private static final int KEEP_PREVIOUS = 3;
+
+    private final INDArray warmUpInput;
+    private final List<Consumer<ModelVersion>> listeners = new CopyOnWriteArrayList<>();
+    private final Deque<ModelVersion> previous = new ArrayDeque<>();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "model-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ModelVersion current;
+    private int versions;
+
+    /**
+     * Creates empty registry
+     *
+     * @param warmUpInput batch passed through every model before its promotion
+     */
+    public ModelRegistry(INDArray warmUpInput) {
+        this.warmUpInput = warmUpInput;
+    }
+
+    /**
+     * @return the active version or <i>null</i> if no model has been promoted yet
+     */
+    public ModelVersion current() {
+        return current;
+    }
+
+    /**
+     * Registers listener called after every promotion and rollback with the new active version.
+     * Listeners are called under the lock of the swap, so they see versions in the order they became active
+     * and the next swap waits for them
+     *
+     * @param listener listener to call, it runs on the thread which changed the version
+     */
+    public void addListener(Consumer<ModelVersion> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Warms up passed network and makes it the active version
+     *
+     * @param network network to promote, it must not be changed afterwards
+     * @param source  where the model comes from
+     * @return the new active version
+     * @throws IllegalStateException if the network produces non-finite output
+     */
+    public ModelVersion promote(MultiLayerNetwork network, String source) {
+        long warmUpNanos = warmUp(network);
+        ModelVersion version;
+        synchronized (this) {
+            version = new ModelVersion(++versions, network, source, Instant.now());
+            if (current != null) {
+                previous.push(current);
+                while (previous.size() > KEEP_PREVIOUS) {
+                    previous.removeLast();
+                }
+            }
+            current = version;
+            LOG.info("Model " + version + " promoted after " + TimeUnit.NANOSECONDS.toMillis(warmUpNanos) + " ms warm-up");
+            listeners.forEach(listener -> listener.accept(version));
+        }
+        return version;
+    }
+
+    /**
+     * Loads and promotes a model on the background loader thread, the active version keeps serving meanwhile
+     *
+     * @param modelLoader reads the model
+     * @param source      where the model comes from
+     * @return future completed with the new active version, or exceptionally if loading or warm-up failed
+     */
+    public CompletableFuture<ModelVersion> loadAsync(Callable<MultiLayerNetwork> modelLoader, String source) {
+        CompletableFuture<ModelVersion> result = new CompletableFuture<>();
+        loader.execute(() -> {
+            try {
+                result.complete(promote(modelLoader.call(), source));
+            } catch (Exception e) {
+                LOG.error("Failed to load model from " + source, e);
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Makes the previous version active again, the replaced version is dropped
+     *
+     * @return the new active version
+     * @throws IllegalStateException if there is no previous version
+     */
+    public ModelVersion rollback() {
+        ModelVersion version;
+        synchronized (this) {
+            if (previous.isEmpty()) {
+                throw new IllegalStateException("There is no previous model version");
+            }
+            version = previous.pop();
+            current = version;
+            LOG.info("Model rolled back to " + version);
+            listeners.forEach(listener -> listener.accept(version));
+        }
+        return version;
+    }
+
+    /**
+     * Stops the loader thread
+     */
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    private long warmUp(MultiLayerNetwork network) {
+        long start = System.nanoTime();
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            for (double[] row : network.output(warmUpInput).toDoubleMatrix()) {
+                for (double value : row) {
+                    if (!Double.isFinite(value)) {
+                        throw new IllegalStateException("Model produces non-finite output, it is not promoted");
+                    }
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,22 @@
+package com.knubisoft.cnn;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.time.Instant;
+
+/**
+ * Handle of a model registered in {@link ModelRegistry}. The network of a handle is never trained or replaced,
+ * a new model always gets a new handle
+ *
+ * @param version  number of the version, starting from 1
+ * @param network  warmed up network used for predictions
+ * @param source   where the model comes from, e.g. a file name or <i>training</i>
+ * @param loadedAt time of the registration
+ */
+public record ModelVersion(int version, MultiLayerNetwork network, String source, Instant loadedAt) {
+
+    @Override
+    public String toString() {
+        return "v" + version + " (" + source + ", loaded at " + loadedAt + ")";
+    }
+}
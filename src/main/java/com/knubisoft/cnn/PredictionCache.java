@@ -0,0 +1,187 @@
+package com.knubisoft.cnn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of class probabilities.
+ * <p>
+ * Images are keyed by their pixels quantized to 256 gray levels, so repeated and near-identical inputs
+ * (retries, the same unchanged drawing recognized several times) share one entry. The key keeps a 64-bit
+ * FNV-1a hash computed during quantization, quantized pixels are compared only when hashes are equal.
+ * The full probability vector is stored, so the class, its confidence and the top classes are all answered
+ * from the same entry. Once the cache is full the least recently used entry is evicted.
+ */
+public class PredictionCache {
+    private static final int LEVELS = 255;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maxSize;
+    private final double maxPixelValue;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LinkedHashMap<Key, double[]> entries;
+    private long generation;
+
+    /**
+     * Creates empty cache
+     *
+     * @param maxSize       max number of cached images
+     * @param maxPixelValue value of a white pixel in cached images, values are clamped to <i>[0, maxPixelValue]</i>
+     */
+    public PredictionCache(int maxSize, double maxPixelValue) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.maxPixelValue = maxPixelValue;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                boolean evict = size() > PredictionCache.this.maxSize;
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Quantizes pixels of passed image into a cache key
+     *
+     * @param img image to build key of
+     * @return key to look up and store probabilities of the image
+     */
+    public Key key(LabeledImage img) {
+        float[] pixels = img.pixels();
+        byte[] levels = new byte[pixels.length];
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < pixels.length; i++) {
+            double pixel = Math.min(Math.max(pixels[i], 0), maxPixelValue);
+            levels[i] = (byte) Math.round(pixel * LEVELS / maxPixelValue);
+            hash = (hash ^ (levels[i] & 0xFF)) * FNV_PRIME;
+        }
+        return new Key(levels, hash);
+    }
+
+    /**
+     * Looks up probabilities and counts a hit or a miss
+     *
+     * @param key key of an image
+     * @return copy of cached probabilities or <i>null</i> if the image is not cached
+     */
+    public double[] get(Key key) {
+        double[] probabilities;
+        synchronized (entries) {
+            probabilities = entries.get(key);
+        }
+        if (probabilities == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return probabilities.clone();
+    }
+
+    /**
+     * Stores probabilities of an image, the least recently used entry is evicted if the cache is full
+     *
+     * @param key           key of the image
+     * @param probabilities class probabilities of the image
+     * @param generation    {@link PredictionCache#generation()} taken before the probabilities were computed,
+     *                      probabilities computed before the last {@link PredictionCache#clear()} are not stored
+     */
+    public void put(Key key, double[] probabilities, long generation) {
+        synchronized (entries) {
+            if (generation == this.generation) {
+                entries.put(key, probabilities.clone());
+            }
+        }
+    }
+
+    /**
+     * @return number of {@link PredictionCache#clear()} calls so far
+     */
+    public long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Removes all entries, must be called once the model changes. Counters are kept
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    /**
+     * @return number of cached images
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups which required a forward pass
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries evicted because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PredictionCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * Quantized pixels of an image with their precomputed hash
+     */
+    public static final class Key {
+        private final byte[] levels;
+        private final long hash;
+
+        private Key(byte[] levels, long hash) {
+            this.levels = levels;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            return o instanceof Key other && hash == other.hash && Arrays.equals(levels, other.levels);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.knubisoft.cnn;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * Options of {@link ModelPruner}: how units are ranked, how many of them are removed per step and when pruning stops
+ */
+@Getter
+@Builder
+public class PruningOptions {
+    /**
+     * How convolutional filters and dense units are ranked, the lowest ranked are removed
+     */
+    @Builder.Default
+    private final ModelPruner.Criterion criterion = ModelPruner.Criterion.ACTIVATION;
+    /**
+     * Fraction of the units of every hidden layer removed in one step
+     */
+    @Builder.Default
+    private final double fraction = 0.2;
+    /**
+     * Layers are never pruned below this width
+     */
+    @Builder.Default
+    private final int minWidth = 2;
+    /**
+     * Number of epochs the network is fine-tuned after every step
+     */
+    @Builder.Default
+    private final int fineTuneEpochs = 2;
+    /**
+     * Learning rate of fine-tuning, lower than the training one since the remaining weights are already trained
+     */
+    @Builder.Default
+    private final double learningRate = 0.003;
+    /**
+     * Max number of steps
+     */
+    @Builder.Default
+    private final int maxSteps = 10;
+    /**
+     * Latency of a single image prediction in microseconds at which pruning stops. <i>0</i> means no target,
+     * then the network is pruned until the accuracy floor
+     */
+    private final double targetMicros;
+    /**
+     * A step which makes the test accuracy lower than this is rejected and pruning stops
+     */
+    @Builder.Default
+    private final double minAccuracy = 0.98;
+    /**
+     * Number of single image predictions the latency is averaged over
+     */
+    @Builder.Default
+    private final int latencyRuns = 500;
+    /**
+     * Number of train samples to fine-tune on
+     */
+    @Builder.Default
+    private final int trainDataSize = 20_000;
+    /**
+     * Number of test samples to rank units and evaluate steps on
+     */
+    @Builder.Default
+    private final int testDataSize = 5_000;
+    /**
+     * Directory with local MNIST IDX files, MNIST is downloaded when it is not set
+     */
+    private final Path mnistDir;
+}
@@ -0,0 +1,75 @@
+package com.knubisoft.cnn;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary of a {@link ModelPruner} run
+ *
+ * @param steps   the original network (step 0) followed by all pruning steps, the last of them may be rejected
+ * @param status  why pruning stopped
+ * @param network the last accepted network, the original one if no step was accepted
+ * @param nanos   wall time of pruning
+ */
+public record PruningReport(List<Step> steps, Status status, MultiLayerNetwork network, long nanos) {
+
+    /**
+     * Why pruning stopped
+     */
+    public enum Status {
+        LATENCY_REACHED, ACCURACY_FLOOR, MIN_WIDTH, MAX_STEPS
+    }
+
+    /**
+     * Network after a pruning step
+     *
+     * @param step       number of the step, 0 is the original network
+     * @param widths     widths of the layers of the network
+     * @param parameters number of parameters of the network
+     * @param accuracy   test accuracy after fine-tuning
+     * @param micros     average latency of a single image prediction in microseconds
+     * @param accepted   whether the accuracy stayed above the floor
+     */
+    public record Step(int step, Hyperparameters widths, long parameters, double accuracy, double micros, boolean accepted) {
+
+        @Override
+        public String toString() {
+            return String.format("Step %d%s: conv %d/%d, dense %d/%d, %d parameters, accuracy %.4f, latency %.1f us",
+                    step, accepted ? "" : " (rejected)", widths.conv1Channels(), widths.conv2Channels(),
+                    widths.dense1Units(), widths.dense2Units(), parameters, accuracy, micros);
+        }
+    }
+
+    /**
+     * @return whether a narrower network than the original one was accepted
+     */
+    public boolean isPruned() {
+        return steps.stream().anyMatch(step -> step.step() > 0 && step.accepted());
+    }
+
+    /**
+     * @return the original network
+     */
+    public Step first() {
+        return steps.get(0);
+    }
+
+    /**
+     * @return the last accepted network
+     */
+    public Step last() {
+        return steps.stream().filter(Step::accepted).reduce((first, second) -> second).orElseThrow();
+    }
+
+    @Override
+    public String toString() {
+        Step first = first();
+        Step last = last();
+        return String.format("Pruned in %d step(s) and %d s (%s): %d -> %d parameters (%.1fx smaller), accuracy %.4f -> %.4f, latency %.1f -> %.1f us (%.2fx faster)",
+                last.step(), TimeUnit.NANOSECONDS.toSeconds(nanos), status, first.parameters(), last.parameters(),
+                (double) first.parameters() / last.parameters(), first.accuracy(), last.accuracy(),
+                first.micros(), last.micros(), first.micros() / last.micros());
+    }
+}
@@ -0,0 +1,73 @@
+package com.knubisoft.cnn;
+
+import org.nd4j.evaluation.classification.Evaluation;
+
+import java.util.List;
+
+/**
+ * Comparison of the float model with its {@link QuantizedInferenceEngine int8 version}
+ *
+ * @param samples           number of evaluated samples
+ * @param floatAccuracy     accuracy of the float model
+ * @param quantizedAccuracy accuracy of the quantized model
+ * @param floatBytes        size of float weights
+ * @param quantizedBytes    size of quantized weights
+ * @param floatMicros       average latency of a float prediction in microseconds
+ * @param quantizedMicros   average latency of a quantized prediction in microseconds
+ */
+public record QuantizationReport(int samples, double floatAccuracy, double quantizedAccuracy,
+                                 long floatBytes, long quantizedBytes, double floatMicros, double quantizedMicros) {
+
+    /**
+     * Evaluates both engines on passed samples and measures their single-threaded prediction latency
+     *
+     * @param floatEngine     engine with float weights
+     * @param quantizedEngine engine with int8 weights
+     * @param images          images to evaluate on
+     * @param labels          correct classes of the images
+     * @return comparison of the engines
+     */
+    public static QuantizationReport compare(JavaInferenceEngine floatEngine, QuantizedInferenceEngine quantizedEngine,
+                                             List<float[]> images, int[] labels) {
+        Evaluation floatEvaluation = new Evaluation(floatEngine.classes());
+        Evaluation quantizedEvaluation = new Evaluation(quantizedEngine.classes());
+        for (int i = 0; i < images.size(); i++) {
+            floatEvaluation.eval(floatEngine.predict(images.get(i)), labels[i]);
+            quantizedEvaluation.eval(quantizedEngine.predict(images.get(i)), labels[i]);
+        }
+
+        long floatNanos = 0;
+        long quantizedNanos = 0;
+        for (float[] image : images) {
+            long start = System.nanoTime();
+            floatEngine.predict(image);
+            long middle = System.nanoTime();
+            quantizedEngine.predict(image);
+            quantizedNanos += System.nanoTime() - middle;
+            floatNanos += middle - start;
+        }
+        return new QuantizationReport(images.size(), floatEvaluation.accuracy(), quantizedEvaluation.accuracy(),
+                floatEngine.sizeBytes(), quantizedEngine.sizeBytes(),
+                floatNanos / 1e3 / images.size(), quantizedNanos / 1e3 / images.size());
+    }
+
+    /**
+     * @return accuracy lost by quantization
+     */
+    public double accuracyDrop() {
+        return floatAccuracy - quantizedAccuracy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("""
+                        Quantization report (%d samples):
+                                      float32      int8
+                        accuracy      %8.4f  %8.4f  (drop %.4f)
+                        size, bytes   %8d  %8d  (%.1fx smaller)
+                        latency, us   %8.1f  %8.1f  (%.2fx faster)""",
+                samples, floatAccuracy, quantizedAccuracy, accuracyDrop(),
+                floatBytes, quantizedBytes, (double) floatBytes / quantizedBytes,
+                floatMicros, quantizedMicros, floatMicros / quantizedMicros);
+    }
+}
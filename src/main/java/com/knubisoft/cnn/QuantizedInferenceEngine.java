@@ -0,0 +1,394 @@
+package com.knubisoft.cnn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forward pass of the {@link ConvolutionalNeuralNetwork#buildCNNConf() CNN model} with int8 weights and activations.
+ * <p>
+ * Weights of convolutional and dense layers are quantized symmetrically per output channel (filter or unit).
+ * Inputs of these layers are quantized with scales calibrated on sample images, multiplied with int8 weights
+ * accumulating into int and dequantized together with adding bias. Pooling, ReLU and softmax work on floats.
+ * <p>
+ * The engine is created from a {@link JavaInferenceEngine} with {@link QuantizedInferenceEngine#quantize(JavaInferenceEngine, List)}
+ * and expects pixels in the same range as the calibration images. Like {@link JavaInferenceEngine}, one engine instance
+ * must be used by one thread at a time, {@link QuantizedInferenceEngine#copy()} shares weights with another thread.
+ */
+public class QuantizedInferenceEngine implements InferenceEngine {
+    private static final int MAGIC = 0x38515244;
+    private static final int VERSION = 1;
+    private static final int SIZE = 28;
+    private static final int POOL = 2;
+    private static final int LEVELS = 127;
+
+    private final QuantizedWeights weights;
+    private final byte[] input;
+    private final byte[] columns1;
+    private final int[] accumulator1;
+    private final float[] conv1;
+    private final float[] pool1;
+    private final byte[] pool1Quantized;
+    private final byte[] columns2;
+    private final int[] accumulator2;
+    private final float[] conv2;
+    private final float[] pool2;
+    private final byte[] pool2Quantized;
+    private final float[] dense1;
+    private final byte[] dense1Quantized;
+    private final float[] dense2;
+    private final byte[] dense2Quantized;
+    private final float[] output;
+
+    private QuantizedInferenceEngine(QuantizedWeights weights) {
+        this.weights = weights;
+        QuantizedWeights w = weights;
+        input = new byte[SIZE * SIZE];
+        columns1 = new byte[w.kernel1 * w.kernel1 * w.conv1Out * w.conv1Out];
+        accumulator1 = new int[w.conv1Filters * w.conv1Out * w.conv1Out];
+        conv1 = new float[accumulator1.length];
+        pool1 = new float[w.conv1Filters * w.pool1Out * w.pool1Out];
+        pool1Quantized = new byte[pool1.length];
+        columns2 = new byte[w.conv1Filters * w.kernel2 * w.kernel2 * w.conv2Out * w.conv2Out];
+        accumulator2 = new int[w.conv2Filters * w.conv2Out * w.conv2Out];
+        conv2 = new float[accumulator2.length];
+        pool2 = new float[w.conv2Filters * w.pool2Out * w.pool2Out];
+        pool2Quantized = new byte[pool2.length];
+        dense1 = new float[w.dense1.rows];
+        dense1Quantized = new byte[dense1.length];
+        dense2 = new float[w.dense2.rows];
+        dense2Quantized = new byte[dense2.length];
+        output = new float[w.out.rows];
+    }
+
+    /**
+     * Quantizes weights of passed engine and calibrates activation ranges on passed images
+     *
+     * @param engine      engine with float weights
+     * @param calibration images to calibrate activation ranges on, in the range the model expects
+     * @return quantized engine
+     */
+    public static QuantizedInferenceEngine quantize(JavaInferenceEngine engine, List<float[]> calibration) {
+        if (calibration.isEmpty()) {
+            throw new IllegalArgumentException("At least one calibration image is required");
+        }
+        float[] maxAbs = new float[5];
+        for (float[] image : calibration) {
+            float[][] inputs = engine.layerInputs(image);
+            for (int layer = 0; layer < inputs.length; layer++) {
+                for (float value : inputs[layer]) {
+                    maxAbs[layer] = Math.max(maxAbs[layer], Math.abs(value));
+                }
+            }
+        }
+        JavaInferenceEngine.Weights w = engine.weights();
+        return new QuantizedInferenceEngine(new QuantizedWeights(
+                w.conv1Filters, w.kernel1, w.conv2Filters, w.kernel2,
+                Layer.quantize(w.conv1W, w.conv1B, scale(maxAbs[0])),
+                Layer.quantize(w.conv2W, w.conv2B, scale(maxAbs[1])),
+                Layer.quantize(w.dense1W, w.dense1B, scale(maxAbs[2])),
+                Layer.quantize(w.dense2W, w.dense2B, scale(maxAbs[3])),
+                Layer.quantize(w.outW, w.outB, scale(maxAbs[4]))));
+    }
+
+    /**
+     * Reads engine written by {@link QuantizedInferenceEngine#write(File)}
+     *
+     * @param file quantized model file
+     * @return engine with read weights
+     * @throws IOException if the file cannot be read or it is not a quantized model file
+     */
+    public static QuantizedInferenceEngine read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a quantized model file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported quantized model version " + version + " in " + file);
+            }
+            int conv1Filters = in.readInt();
+            int kernel1 = in.readInt();
+            int conv2Filters = in.readInt();
+            int kernel2 = in.readInt();
+            return new QuantizedInferenceEngine(new QuantizedWeights(conv1Filters, kernel1, conv2Filters, kernel2,
+                    Layer.read(in), Layer.read(in), Layer.read(in), Layer.read(in), Layer.read(in)));
+        }
+    }
+
+    /**
+     * Writes quantized weights and activation scales. The file is replaced atomically
+     *
+     * @param file destination file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        QuantizedWeights w = weights;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(w.conv1Filters);
+            out.writeInt(w.kernel1);
+            out.writeInt(w.conv2Filters);
+            out.writeInt(w.kernel2);
+            for (Layer layer : List.of(w.conv1, w.conv2, w.dense1, w.dense2, w.out)) {
+                layer.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates engine sharing weights with this one, but having its own buffers
+     *
+     * @return engine which can be used by another thread
+     */
+    @Override
+    public QuantizedInferenceEngine copy() {
+        return new QuantizedInferenceEngine(weights);
+    }
+
+    /**
+     * Predicts class of the passed image vector
+     *
+     * @param pixels 28x28 image vector in the range of the calibration images
+     * @return The predicted class index
+     */
+    @Override
+    public int predict(float[] pixels) {
+        forward(pixels);
+        return JavaInferenceEngine.argMax(output);
+    }
+
+    /**
+     * Computes probabilities of every class for the passed image vector
+     *
+     * @param pixels        28x28 image vector in the range of the calibration images
+     * @param probabilities array to write class probabilities to
+     */
+    @Override
+    public void output(float[] pixels, float[] probabilities) {
+        forward(pixels);
+        System.arraycopy(output, 0, probabilities, 0, output.length);
+    }
+
+    /**
+     * @return number of classes the model predicts
+     */
+    @Override
+    public int classes() {
+        return weights.out.rows;
+    }
+
+    /**
+     * @return size of int8 weights together with float biases and scales in bytes
+     */
+    @Override
+    public long sizeBytes() {
+        QuantizedWeights w = weights;
+        return w.conv1.sizeBytes() + w.conv2.sizeBytes() + w.dense1.sizeBytes() + w.dense2.sizeBytes() + w.out.sizeBytes();
+    }
+
+    private void forward(float[] pixels) {
+        QuantizedWeights w = weights;
+        quantize(pixels, w.conv1.inputScale, input);
+        im2col(input, 1, SIZE, w.kernel1, w.conv1Out, columns1);
+        convolve(w.conv1, columns1, accumulator1, conv1, w.conv1Out * w.conv1Out);
+        JavaInferenceEngine.maxPool(conv1, w.conv1Filters, w.conv1Out, pool1);
+
+        quantize(pool1, w.conv2.inputScale, pool1Quantized);
+        im2col(pool1Quantized, w.conv1Filters, w.pool1Out, w.kernel2, w.conv2Out, columns2);
+        convolve(w.conv2, columns2, accumulator2, conv2, w.conv2Out * w.conv2Out);
+        JavaInferenceEngine.maxPool(conv2, w.conv2Filters, w.conv2Out, pool2);
+
+        quantize(pool2, w.dense1.inputScale, pool2Quantized);
+        dense(w.dense1, pool2Quantized, dense1, true);
+        quantize(dense1, w.dense2.inputScale, dense1Quantized);
+        dense(w.dense2, dense1Quantized, dense2, true);
+        quantize(dense2, w.out.inputScale, dense2Quantized);
+        dense(w.out, dense2Quantized, output, false);
+        JavaInferenceEngine.softmax(output);
+    }
+
+    private static void quantize(float[] values, float scale, byte[] result) {
+        float inverse = 1 / scale;
+        for (int i = 0; i < values.length; i++) {
+            result[i] = clamp(Math.round(values[i] * inverse));
+        }
+    }
+
+    /**
+     * Same as float im2col of {@link JavaInferenceEngine}, but over int8 values
+     */
+    private static void im2col(byte[] image, int channels, int size, int kernel, int out, byte[] columns) {
+        int outArea = out * out;
+        int row = 0;
+        for (int c = 0; c < channels; c++) {
+            int channelOffset = c * size * size;
+            for (int ky = 0; ky < kernel; ky++) {
+                for (int kx = 0; kx < kernel; kx++, row++) {
+                    int dst = row * outArea;
+                    for (int y = 0; y < out; y++) {
+                        System.arraycopy(image, channelOffset + (y + ky) * size + kx, columns, dst + y * out, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void convolve(Layer layer, byte[] columns, int[] accumulator, float[] result, int n) {
+        Arrays.fill(accumulator, 0);
+        gemm(layer.weights, columns, accumulator, layer.rows, layer.columns, n);
+        for (int f = 0; f < layer.rows; f++) {
+            float scale = layer.inputScale * layer.scales[f];
+            float bias = layer.bias[f];
+            for (int j = f * n, end = j + n; j < end; j++) {
+                result[j] = accumulator[j] * scale + bias;
+            }
+        }
+    }
+
+    /**
+     * <i>c += a * b</i> with int accumulation, where <i>a</i> is <i>m x k</i>, <i>b</i> is <i>k x n</i>
+     * and <i>c</i> is <i>m x n</i>, all row major
+     */
+    private static void gemm(byte[] a, byte[] b, int[] c, int m, int k, int n) {
+        for (int i = 0; i < m; i++) {
+            int cRow = i * n;
+            int aRow = i * k;
+            for (int p = 0; p < k; p++) {
+                int value = a[aRow + p];
+                int bRow = p * n;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += value * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    private static void dense(Layer layer, byte[] in, float[] out, boolean relu) {
+        int inLength = in.length;
+        byte[] weights = layer.weights;
+        for (int o = 0; o < out.length; o++) {
+            int row = o * inLength;
+            int sum = 0;
+            for (int i = 0; i < inLength; i++) {
+                sum += weights[row + i] * in[i];
+            }
+            float value = sum * layer.inputScale * layer.scales[o] + layer.bias[o];
+            out[o] = relu && value < 0 ? 0 : value;
+        }
+    }
+
+    private static float scale(float maxAbs) {
+        return maxAbs > 0 ? maxAbs / LEVELS : 1;
+    }
+
+    private static byte clamp(int value) {
+        return (byte) Math.max(-LEVELS, Math.min(LEVELS, value));
+    }
+
+    /**
+     * Weighted layer: int8 weights as <i>rows x columns</i> row major matrix (one row per output channel),
+     * scale of every row, float bias and scale of the layer input
+     */
+    private static final class Layer {
+        private final byte[] weights;
+        private final float[] scales;
+        private final float[] bias;
+        private final float inputScale;
+        private final int rows;
+        private final int columns;
+
+        private Layer(byte[] weights, float[] scales, float[] bias, float inputScale) {
+            this.weights = weights;
+            this.scales = scales;
+            this.bias = bias;
+            this.inputScale = inputScale;
+            this.rows = bias.length;
+            this.columns = weights.length / rows;
+        }
+
+        private static Layer quantize(float[] weights, float[] bias, float inputScale) {
+            int rows = bias.length;
+            int columns = weights.length / rows;
+            byte[] quantized = new byte[weights.length];
+            float[] scales = new float[rows];
+            for (int r = 0; r < rows; r++) {
+                float maxAbs = 0;
+                for (int c = 0; c < columns; c++) {
+                    maxAbs = Math.max(maxAbs, Math.abs(weights[r * columns + c]));
+                }
+                scales[r] = scale(maxAbs);
+                for (int c = 0; c < columns; c++) {
+                    quantized[r * columns + c] = clamp(Math.round(weights[r * columns + c] / scales[r]));
+                }
+            }
+            return new Layer(quantized, scales, bias.clone(), inputScale);
+        }
+
+        private static Layer read(DataInputStream in) throws IOException {
+            int rows = in.readInt();
+            int columns = in.readInt();
+            float inputScale = in.readFloat();
+            float[] scales = new float[rows];
+            float[] bias = new float[rows];
+            for (int r = 0; r < rows; r++) {
+                scales[r] = in.readFloat();
+                bias[r] = in.readFloat();
+            }
+            byte[] weights = new byte[rows * columns];
+            in.readFully(weights);
+            return new Layer(weights, scales, bias, inputScale);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(rows);
+            out.writeInt(columns);
+            out.writeFloat(inputScale);
+            for (int r = 0; r < rows; r++) {
+                out.writeFloat(scales[r]);
+                out.writeFloat(bias[r]);
+            }
+            out.write(weights);
+        }
+
+        private long sizeBytes() {
+            return weights.length + (long) Float.BYTES * (scales.length + bias.length + 1);
+        }
+    }
+
+    /**
+     * Immutable quantized layers together with derived layer sizes
+     */
+    private static final class QuantizedWeights {
+        private final int conv1Filters, kernel1, conv1Out, pool1Out;
+        private final int conv2Filters, kernel2, conv2Out, pool2Out;
+        private final Layer conv1, conv2, dense1, dense2, out;
+
+        private QuantizedWeights(int conv1Filters, int kernel1, int conv2Filters, int kernel2,
+                                 Layer conv1, Layer conv2, Layer dense1, Layer dense2, Layer out) {
+            this.conv1Filters = conv1Filters;
+            this.kernel1 = kernel1;
+            this.conv1Out = SIZE - kernel1 + 1;
+            this.pool1Out = conv1Out / POOL;
+            this.conv2Filters = conv2Filters;
+            this.kernel2 = kernel2;
+            this.conv2Out = pool1Out - kernel2 + 1;
+            this.pool2Out = conv2Out / POOL;
+            this.conv1 = conv1;
+            this.conv2 = conv2;
+            this.dense1 = dense1;
+            this.dense2 = dense2;
+            this.out = out;
+        }
+    }
+}
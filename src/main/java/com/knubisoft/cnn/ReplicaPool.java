@@ -0,0 +1,196 @@
+package com.knubisoft.cnn;
+
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
+import freemarker.log.Logger;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs forward passes of one model concurrently.
+ * <p>
+ * {@link MultiLayerNetwork} keeps the state of a forward pass in its layers, so one instance cannot serve several threads.
+ * The pool starts a worker thread per replica, every replica is built from the configuration of the model
+ * and views the same parameter array, so replicas do not copy the weights. A replica is used only by its own thread,
+ * which keeps the ND4J workspaces of the thread (they are bound to threads, not to networks) allocated between calls:
+ * they are sized by the warm-up pass and reused by every following forward pass instead of allocating off-heap memory.
+ * <p>
+ * Callers block until their forward pass is done, at most {@link ReplicaPool#OUTPUT_TIMEOUT_SECONDS} seconds.
+ * After {@link ReplicaPool#close()} already queued passes are finished, new ones are rejected.
+ * <p>
+ * A replica which has thrown an {@link Error} is rebuilt, since its layers may be left in any state. A worker which fails
+ * to rebuild its replica stops, once the last worker stops the pool is closed and the queued passes are failed.
+ */
+public class ReplicaPool implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(ReplicaPool.class.getName());
+    private static final Task STOP = new Task(null, null);
+    private static final long OUTPUT_TIMEOUT_SECONDS = 60;
+
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean closed;
+    private int running;
+    private volatile Throwable startFailure;
+
+    private record Task(INDArray input, CompletableFuture<INDArray> output) {
+    }
+
+    /**
+     * Creates replicas of passed network and waits until every worker has warmed up its replica
+     *
+     * @param network     network to replicate, its parameters must not change while the pool is used
+     * @param replicas    number of replicas and worker threads
+     * @param warmUpInput batch passed through every replica before the pool is returned
+     */
+    public ReplicaPool(MultiLayerNetwork network, int replicas, INDArray warmUpInput) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Number of replicas must be positive: " + replicas);
+        }
+        CountDownLatch ready = new CountDownLatch(replicas);
+        running = replicas;
+        for (int i = 0; i < replicas; i++) {
+            Thread worker = new Thread(() -> work(network, warmUpInput, ready), "inference-replica-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while warming up replicas", e);
+        }
+        if (startFailure != null) {
+            close();
+            throw new IllegalStateException("Failed to create replica", startFailure);
+        }
+        LOG.info("Started " + replicas + " inference replicas");
+    }
+
+    /**
+     * Runs forward pass on a free replica
+     *
+     * @param input batch of flattened images
+     * @return output of the network detached from workspaces
+     * @throws RejectedExecutionException if the pool is closed
+     * @throws IllegalStateException      if the forward pass failed or has not been done in time
+     */
+    public INDArray output(INDArray input) {
+        CompletableFuture<INDArray> output = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("Replica pool is closed");
+            }
+            tasks.add(new Task(input, output));
+        }
+        try {
+            return output.get(OUTPUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // a cancelled pass still waiting in the queue is skipped by the worker
+            output.cancel(false);
+            throw new IllegalStateException("Prediction has not been done in " + OUTPUT_TIMEOUT_SECONDS + " seconds", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for prediction", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Prediction failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return number of replicas
+     */
+    public int size() {
+        return workers.size();
+    }
+
+    /**
+     * Stops workers once the queued forward passes are done
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int i = 0; i < workers.size(); i++) {
+                tasks.add(STOP);
+            }
+        }
+    }
+
+    private void work(MultiLayerNetwork network, INDArray warmUpInput, CountDownLatch ready) {
+        MultiLayerNetwork replica;
+        try {
+            replica = replicate(network);
+            replica.output(warmUpInput);
+        } catch (Throwable e) {
+            startFailure = e;
+            stopWorker();
+            return;
+        } finally {
+            ready.countDown();
+        }
+        try {
+            for (Task task = tasks.take(); task != STOP; task = tasks.take()) {
+                if (task.output().isDone()) {
+                    continue;
+                }
+                try {
+                    long start = InferenceMetrics.start(Stage.FORWARD_PASS);
+                    INDArray output = replica.output(task.input());
+                    InferenceMetrics.stop(Stage.FORWARD_PASS, start);
+                    task.output().complete(output);
+                } catch (RuntimeException e) {
+                    task.output().completeExceptionally(e);
+                } catch (Throwable e) {
+                    task.output().completeExceptionally(e);
+                    LOG.error("Replica failed, rebuilding it", e);
+                    replica = replicate(network);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            LOG.error("Failed to rebuild replica, stopping its worker", e);
+        }
+        stopWorker();
+    }
+
+    private static MultiLayerNetwork replicate(MultiLayerNetwork network) {
+        MultiLayerNetwork replica = new MultiLayerNetwork(network.getLayerWiseConfigurations().clone());
+        replica.init(network.params(), false);
+        return replica;
+    }
+
+    /**
+     * Closes the pool when the last worker stops, so queued forward passes are failed instead of waiting for no one
+     */
+    private void stopWorker() {
+        List<Task> rest = new ArrayList<>();
+        synchronized (this) {
+            running--;
+            if (running > 0) {
+                return;
+            }
+            closed = true;
+            tasks.drainTo(rest);
+        }
+        rest.stream().
+                filter(task -> task != STOP).
+                forEach(task -> task.output().completeExceptionally(new RejectedExecutionException("Replica pool is closed")));
+    }
+}
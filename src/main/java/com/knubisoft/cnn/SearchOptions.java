@@ -0,0 +1,91 @@
+package com.knubisoft.cnn;
+
+import lombok.Builder;
+import lombok.Getter;
+import org.nd4j.linalg.api.buffer.DataType;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Options of {@link HyperparameterSearch}: the search space (candidate values of every {@link Hyperparameters hyperparameter},
+ * a trial samples one value of each list), the budget and the pruning schedule
+ */
+@Getter
+@Builder
+public class SearchOptions {
+    @Builder.Default
+    private final List<Double> learningRates = List.of(0.003, 0.01, 0.03);
+    @Builder.Default
+    private final List<Double> momentums = List.of(0.8, 0.9, 0.95);
+    @Builder.Default
+    private final List<Integer> batchSizes = List.of(16, 32, 64);
+    @Builder.Default
+    private final List<Integer> conv1Channels = List.of(8, 12, 20);
+    @Builder.Default
+    private final List<Integer> conv2Channels = List.of(16, 32, 50);
+    @Builder.Default
+    private final List<Integer> dense1Units = List.of(32, 64, 128);
+    @Builder.Default
+    private final List<Integer> dense2Units = List.of(16, 32, 64);
+    /**
+     * Number of sampled configurations
+     */
+    @Builder.Default
+    private final int trials = 24;
+    /**
+     * Number of trials trained at the same time
+     */
+    @Builder.Default
+    private final int parallelTrials = Runtime.getRuntime().availableProcessors();
+    /**
+     * Number of epochs every trial is trained before it can be pruned, the first rung of successive halving
+     */
+    @Builder.Default
+    private final int minEpochs = 1;
+    /**
+     * Max number of epochs of a trial
+     */
+    @Builder.Default
+    private final int maxEpochs = 9;
+    /**
+     * Only <i>1 / reductionFactor</i> of trials reaching a rung are trained further, the next rung is
+     * <i>reductionFactor</i> times more epochs
+     */
+    @Builder.Default
+    private final int reductionFactor = 3;
+    /**
+     * Accuracy at which a trial stops training, among trials reaching it the smallest model wins. <i>0</i> means no target,
+     * then the most accurate model wins
+     */
+    private final double targetAccuracy;
+    /**
+     * Number of train samples every trial is trained on
+     */
+    @Builder.Default
+    private final int trainDataSize = 10_000;
+    /**
+     * Number of test samples every trial is evaluated on after each epoch
+     */
+    @Builder.Default
+    private final int testDataSize = 2_000;
+    /**
+     * Directory with local MNIST IDX files, MNIST is downloaded when it is not set
+     */
+    private final Path mnistDir;
+    /**
+     * Directory to write trial results, the best configuration and the best model to
+     */
+    @Builder.Default
+    private final Path outputDir = Path.of("resources", "search");
+    /**
+     * Data type of trained networks
+     */
+    @Builder.Default
+    private final DataType dataType = DataType.FLOAT;
+    /**
+     * Seed of configuration sampling
+     */
+    @Builder.Default
+    private final long seed = 123;
+}
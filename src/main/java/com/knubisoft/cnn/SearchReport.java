@@ -0,0 +1,62 @@
+package com.knubisoft.cnn;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary of a {@link HyperparameterSearch} run
+ *
+ * @param trials        results of all trials in the order they finished
+ * @param best          the best trial or <i>null</i> if all trials failed
+ * @param trainedEpochs number of epochs trained by all trials
+ * @param budgetEpochs  number of epochs all trials would train without pruning
+ * @param nanos         wall time of the search
+ */
+public record SearchReport(List<Trial> trials, Trial best, int trainedEpochs, int budgetEpochs, long nanos) {
+
+    /**
+     * How a trial finished
+     */
+    public enum Status {
+        COMPLETED, PRUNED, TARGET_REACHED, FAILED
+    }
+
+    /**
+     * Result of one sampled configuration
+     *
+     * @param id              number of the trial, starting from 0
+     * @param hyperparameters sampled configuration
+     * @param epochs          number of trained epochs
+     * @param accuracy        test accuracy after the last trained epoch
+     * @param parameters      number of parameters of the model
+     * @param status          how the trial finished
+     * @param nanos           wall time of the trial
+     */
+    public record Trial(int id, Hyperparameters hyperparameters, int epochs, double accuracy, long parameters,
+                        Status status, long nanos) {
+
+        /**
+         * @return trial as a JSON object
+         */
+        public String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"trial\":%d,\"status\":\"%s\",\"epochs\":%d,\"accuracy\":%s,\"parameters\":%d,\"millis\":%d,\"hyperparameters\":%s}",
+                    id, status, epochs, Double.isNaN(accuracy) ? "null" : String.valueOf(accuracy), parameters,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), hyperparameters.toJson());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Trial %d %s after %d epoch(s): accuracy %.4f, %d parameters, %s",
+                    id, status, epochs, accuracy, parameters, hyperparameters);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Searched %d configurations in %d s, trained %d of %d epochs (%.0f%%). Best: %s",
+                trials.size(), TimeUnit.NANOSECONDS.toSeconds(nanos), trainedEpochs, budgetEpochs,
+                budgetEpochs > 0 ? 100.0 * trainedEpochs / budgetEpochs : 0, best);
+    }
+}
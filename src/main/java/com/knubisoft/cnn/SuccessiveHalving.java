@@ -0,0 +1,57 @@
+package com.knubisoft.cnn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asynchronous successive halving (ASHA) pruning rule.
+ * <p>
+ * Rungs are at <i>minEpochs * reductionFactor^k</i> epochs. A trial reaching a rung continues only if its accuracy is
+ * among the top <i>1 / reductionFactor</i> of accuracies reported at that rung so far (the first trial always continues).
+ * Trials are not synchronized at rungs, so a slow trial never blocks the others, which keeps all workers busy.
+ * The rule is thread-safe.
+ */
+public class SuccessiveHalving {
+    private final int minEpochs;
+    private final int reductionFactor;
+    private final Map<Integer, List<Double>> rungs = new HashMap<>();
+
+    /**
+     * @param minEpochs       epoch of the first rung
+     * @param reductionFactor ratio of epochs of consecutive rungs and of trials reaching them
+     */
+    public SuccessiveHalving(int minEpochs, int reductionFactor) {
+        if (minEpochs < 1 || reductionFactor < 2) {
+            throw new IllegalArgumentException("Invalid successive halving schedule: " + minEpochs + ", " + reductionFactor);
+        }
+        this.minEpochs = minEpochs;
+        this.reductionFactor = reductionFactor;
+    }
+
+    /**
+     * Records accuracy of a trial after an epoch
+     *
+     * @param epoch    number of epochs the trial has been trained, starting from 1
+     * @param accuracy accuracy of the trial after the epoch
+     * @return whether the trial should be trained further
+     */
+    public synchronized boolean report(int epoch, double accuracy) {
+        if (!isRung(epoch)) {
+            return true;
+        }
+        List<Double> accuracies = rungs.computeIfAbsent(epoch, e -> new ArrayList<>());
+        accuracies.add(accuracy);
+        long better = accuracies.stream().filter(other -> other > accuracy).count();
+        return better < Math.max(1, accuracies.size() / reductionFactor);
+    }
+
+    private boolean isRung(int epoch) {
+        long rung = minEpochs;
+        while (rung < epoch) {
+            rung *= reductionFactor;
+        }
+        return rung == epoch;
+    }
+}
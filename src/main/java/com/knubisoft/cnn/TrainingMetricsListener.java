@@ -0,0 +1,241 @@
+package com.knubisoft.cnn;
+
+import freemarker.log.Logger;
+import lombok.SneakyThrows;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.listener.EarlyStoppingListener;
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects training telemetry: loss and speed of every iteration, duration of every epoch and of its evaluation,
+ * used heap and off-heap (native ND4J) memory.
+ * <p>
+ * Metrics are appended to a JSON-lines file, one object per line with an <code>event</code> field
+ * (<code>start</code>, <code>iteration</code>, <code>epoch</code>, <code>evaluation</code>, <code>end</code>), so runs can be compared with each other.
+ * {@link TrainingProgress} is passed to the progress listener at most every {@link TrainingMetricsListener#PROGRESS_INTERVAL_MS} ms
+ * and after every epoch.
+ * <p>
+ * The listener has to be registered as a training listener of the network (iterations, may be called by several
+ * parallel workers) and as an early stopping listener of the trainer (epochs), evaluation time is measured by
+ * wrapping the score calculator with {@link TrainingMetricsListener#timed(ScoreCalculator)}. Results of
+ * {@link AsyncAccuracyCalculator asynchronous evaluations} are passed to {@link TrainingMetricsListener#onEvaluation(AsyncAccuracyCalculator.Result)}.
+ */
+public class TrainingMetricsListener extends BaseTrainingListener implements EarlyStoppingListener<MultiLayerNetwork>, AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(TrainingMetricsListener.class.getName());
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    private final BufferedWriter writer;
+    private final TrainingOptions options;
+    private final int batchSize;
+    private final int totalEpochs;
+    private final int iterationsPerEpoch;
+    private final Consumer<TrainingProgress> progressListener;
+    private long trainingStart;
+    private long epochStart;
+    private long lastProgress;
+    private long trainNanos;
+    private long evaluationNanos;
+    private long lastEvaluationNanos;
+    private int evaluations;
+    private int epoch = 1;
+    private int iteration;
+    private int completedIterations;
+    private long epochSamples;
+    private double lastScore = Double.NaN;
+
+    /**
+     * Creates listener which appends metrics to passed file
+     *
+     * @param metricsFile JSON-lines file to append metrics to
+     * @param options     options of the training
+     * @param batchSize   number of samples in a batch
+     * @param totalEpochs max number of epochs
+     */
+    @SneakyThrows
+    public TrainingMetricsListener(Path metricsFile, TrainingOptions options, int batchSize, int totalEpochs) {
+        writer = Files.newBufferedWriter(metricsFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.options = options;
+        this.batchSize = batchSize;
+        this.totalEpochs = totalEpochs;
+        this.iterationsPerEpoch = (options.getTrainDataSize() + batchSize - 1) / batchSize;
+        this.progressListener = options.getProgressListener();
+    }
+
+    /**
+     * Wraps score calculator to measure evaluation time of every epoch
+     *
+     * @param calculator score calculator to wrap
+     * @return score calculator with the same scores
+     */
+    public ScoreCalculator<MultiLayerNetwork> timed(ScoreCalculator<MultiLayerNetwork> calculator) {
+        return new ScoreCalculator<>() {
+            @Override
+            public double calculateScore(MultiLayerNetwork network) {
+                long start = System.nanoTime();
+                try {
+                    return calculator.calculateScore(network);
+                } finally {
+                    recordEvaluation(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public boolean minimizeScore() {
+                return calculator.minimizeScore();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void onStart(EarlyStoppingConfiguration<MultiLayerNetwork> esConfig, MultiLayerNetwork network) {
+        trainingStart = System.nanoTime();
+        epochStart = trainingStart;
+        write(String.format(Locale.ROOT,
+                "{\"event\":\"start\",\"timestamp\":%d,\"workers\":%d,\"trainDataSize\":%d,\"testDataSize\":%d,\"batchSize\":%d,\"epochs\":%d}",
+                System.currentTimeMillis(), options.getWorkers(), options.getTrainDataSize(), options.getTestDataSize(), batchSize, totalEpochs));
+    }
+
+    @Override
+    public synchronized void iterationDone(Model model, int iterationCount, int epochCount) {
+        long now = System.nanoTime();
+        iteration++;
+        completedIterations++;
+        epochSamples += model.batchSize();
+        lastScore = model.score();
+        double samplesPerSecond = samplesPerSecond(now);
+        write(String.format(Locale.ROOT,
+                "{\"event\":\"iteration\",\"epoch\":%d,\"iteration\":%d,\"score\":%s,\"samplesPerSecond\":%.1f,\"heapBytes\":%d,\"offHeapBytes\":%d}",
+                epoch, iteration, number(lastScore), samplesPerSecond, heapBytes(), Pointer.totalBytes()));
+        if (TimeUnit.NANOSECONDS.toMillis(now - lastProgress) >= PROGRESS_INTERVAL_MS) {
+            lastProgress = now;
+            reportProgress(now, samplesPerSecond);
+        }
+    }
+
+    @Override
+    public synchronized void onEpoch(int epochNum, double score, EarlyStoppingConfiguration<MultiLayerNetwork> esConfig, MultiLayerNetwork network) {
+        long now = System.nanoTime();
+        long epochNanos = now - epochStart - lastEvaluationNanos;
+        // an asynchronous score belongs to an earlier epoch, the score of this one is written by onEvaluation
+        boolean pending = options.isAsyncEvaluation();
+        trainNanos += epochNanos;
+        double samplesPerSecond = epochSamples / (epochNanos / 1e9);
+        write(String.format(Locale.ROOT,
+                "{\"event\":\"epoch\",\"epoch\":%d,\"iterations\":%d,\"epochMillis\":%d,\"evaluationMillis\":%d,\"evaluationScore\":%s,"
+                        + "\"samplesPerSecond\":%.1f,\"heapBytes\":%d,\"offHeapBytes\":%d}",
+                epoch, iteration, TimeUnit.NANOSECONDS.toMillis(epochNanos), TimeUnit.NANOSECONDS.toMillis(lastEvaluationNanos),
+                number(pending ? Double.NaN : score), samplesPerSecond, heapBytes(), Pointer.totalBytes()));
+        flush();
+        LOG.info(String.format("Epoch %d: training %d ms (%.1f samples/sec), evaluation %d ms, score %s",
+                epoch, TimeUnit.NANOSECONDS.toMillis(epochNanos), samplesPerSecond, TimeUnit.NANOSECONDS.toMillis(lastEvaluationNanos),
+                pending ? "pending" : String.format("%.4f", score)));
+        reportProgress(now, samplesPerSecond);
+
+        epoch++;
+        iteration = 0;
+        epochSamples = 0;
+        lastEvaluationNanos = 0;
+        epochStart = now;
+    }
+
+    /**
+     * Records result of an evaluation which ran in background
+     *
+     * @param result result of the evaluation
+     */
+    public synchronized void onEvaluation(AsyncAccuracyCalculator.Result result) {
+        write(String.format(Locale.ROOT, "{\"event\":\"evaluation\",\"epoch\":%d,\"score\":%s,\"samples\":%d,\"evaluationMillis\":%d}",
+                result.epoch() + 1, number(result.score()), result.samples(), TimeUnit.NANOSECONDS.toMillis(result.nanos())));
+    }
+
+    @Override
+    public synchronized void onCompletion(EarlyStoppingResult<MultiLayerNetwork> result) {
+        long totalNanos = System.nanoTime() - trainingStart;
+        write(String.format(Locale.ROOT,
+                "{\"event\":\"end\",\"epochs\":%d,\"totalMillis\":%d,\"trainMillis\":%d,\"evaluationMillis\":%d,\"terminationReason\":\"%s\"}",
+                result.getTotalEpochs(), TimeUnit.NANOSECONDS.toMillis(totalNanos), TimeUnit.NANOSECONDS.toMillis(trainNanos),
+                TimeUnit.NANOSECONDS.toMillis(evaluationNanos), result.getTerminationReason()));
+        flush();
+    }
+
+    /**
+     * Flushes and closes the metrics file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private synchronized void recordEvaluation(long nanos) {
+        lastEvaluationNanos += nanos;
+        evaluationNanos += nanos;
+        evaluations++;
+    }
+
+    private void reportProgress(long now, double samplesPerSecond) {
+        progressListener.accept(new TrainingProgress(Math.min(epoch, totalEpochs), totalEpochs, Math.min(iteration, iterationsPerEpoch),
+                iterationsPerEpoch, lastScore, samplesPerSecond, etaMillis(now)));
+    }
+
+    /**
+     * Estimates remaining time from the average time of an iteration and the time of the last evaluation
+     */
+    private long etaMillis(long now) {
+        if (completedIterations == 0) {
+            return -1;
+        }
+        long elapsedTrainNanos = trainNanos + (now - epochStart - lastEvaluationNanos);
+        long remainingIterations = Math.max(0, (long) totalEpochs * iterationsPerEpoch - completedIterations);
+        long remainingEvaluations = evaluations == 0 ? 0 : Math.max(0, totalEpochs - evaluations);
+        long nanos = elapsedTrainNanos / completedIterations * remainingIterations
+                + (evaluations == 0 ? 0 : evaluationNanos / evaluations * remainingEvaluations);
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private double samplesPerSecond(long now) {
+        long nanos = now - epochStart - lastEvaluationNanos;
+        return nanos > 0 ? epochSamples / (nanos / 1e9) : 0;
+    }
+
+    private static long heapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? String.valueOf(value) : "null";
+    }
+
+    private void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.knubisoft.cnn;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Options of {@link ConvolutionalNeuralNetwork#train(TrainingOptions) CNN training}
+ */
+@Getter
+@Builder
+public class TrainingOptions {
+    /**
+     * Number of train samples to use during CNN model training
+     */
+    private final int trainDataSize;
+    /**
+     * Number of test samples to use during CNN model testing
+     */
+    private final int testDataSize;
+    /**
+     * Directory with local MNIST IDX files, MNIST is downloaded when it is not set
+     */
+    private final Path mnistDir;
+    /**
+     * Number of model replicas trained in parallel on different batches, parameters of replicas are averaged periodically
+     */
+    @Builder.Default
+    private final int workers = 1;
+    /**
+     * Whether to continue training from the latest checkpoint of an interrupted training, otherwise old checkpoints are deleted
+     */
+    private final boolean resume;
+    /**
+     * Whether to distort train samples on the fly (see {@link AugmentingDataSetIterator}), so the model is robust to
+     * thick, off-center and rotated digits drawn in the app
+     */
+    private final boolean augmentation;
+    /**
+     * Whether to evaluate epochs in background while the next epoch trains (see {@link AsyncAccuracyCalculator})
+     */
+    @Builder.Default
+    private final boolean asyncEvaluation = true;
+    /**
+     * Number of test samples to evaluate intermediate epochs on in {@link TrainingOptions#isAsyncEvaluation() async evaluation}
+     */
+    @Builder.Default
+    private final int evaluationSampleSize = 2000;
+    /**
+     * Receives {@link TrainingProgress progress} of the training, it is called from the training threads
+     */
+    @Builder.Default
+    private final Consumer<TrainingProgress> progressListener = progress -> {
+    };
+}
@@ -0,0 +1,30 @@
+package com.knubisoft.cnn;
+
+/**
+ * Snapshot of a running training reported by {@link TrainingMetricsListener}
+ *
+ * @param epoch              current epoch, starting from 1
+ * @param totalEpochs        max number of epochs
+ * @param iteration          number of batches trained in the current epoch
+ * @param iterationsPerEpoch number of batches in an epoch
+ * @param score              loss of the last trained batch
+ * @param samplesPerSecond   training speed in the current epoch
+ * @param etaMillis          estimated time to the end of the training in milliseconds
+ */
+public record TrainingProgress(int epoch, int totalEpochs, int iteration, int iterationsPerEpoch,
+                               double score, double samplesPerSecond, long etaMillis) {
+
+    /**
+     * @return number of batches trained since the start of the training
+     */
+    public int completedIterations() {
+        return (epoch - 1) * iterationsPerEpoch + iteration;
+    }
+
+    /**
+     * @return number of batches in the whole training
+     */
+    public int totalIterations() {
+        return totalEpochs * iterationsPerEpoch;
+    }
+}
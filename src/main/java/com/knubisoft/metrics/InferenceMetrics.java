@@ -0,0 +1,286 @@
+package com.knubisoft.metrics;
+
+import freemarker.log.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and allocation statistics of every stage of a recognition, from the image to the class probabilities.
+ * <p>
+ * A stage is measured by a pair of calls around it:
+ * <pre>
+ * long start = InferenceMetrics.start(Stage.NORMALIZE);
+ * ...
+ * InferenceMetrics.stop(Stage.NORMALIZE, start);
+ * </pre>
+ * Latencies go to a {@link LatencyHistogram} per stage (p50, p99 and p99.9), allocations are the bytes the measuring thread
+ * allocated on the Java heap in between (off-heap memory of ND4J is not included). Measuring is disabled by default,
+ * then both calls only read one volatile flag. It is enabled with <i>-Ddigitrecognizer.metrics=true</i>,
+ * {@link InferenceMetrics#setEnabled(boolean)} or the <i>Enabled</i> attribute of the
+ * {@link InferenceMetrics#OBJECT_NAME JMX bean}.
+ */
+public final class InferenceMetrics {
+    private final static Logger LOG = Logger.getLogger(InferenceMetrics.class.getName());
+    public static final String OBJECT_NAME = "com.knubisoft:type=InferenceMetrics";
+    private static final String ENABLED_PROPERTY = "digitrecognizer.metrics";
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final Stage[] STAGES = Stage.values();
+    private static final LatencyHistogram[] LATENCIES = new LatencyHistogram[STAGES.length];
+    private static final LongAdder[] ALLOCATIONS = new LongAdder[STAGES.length];
+    private static final com.sun.management.ThreadMXBean ALLOCATION_COUNTER = allocationCounter();
+    private static final ThreadLocal<long[]> ALLOCATION_STARTS = ThreadLocal.withInitial(() -> new long[STAGES.length]);
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            LATENCIES[i] = new LatencyHistogram();
+            ALLOCATIONS[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Measured stages in the order an image passes them
+     */
+    public enum Stage {
+        /**
+         * Drawing strokes of the canvas at model resolution
+         */
+        RASTERIZE("rasterize"),
+        /**
+         * Copying an uploaded image into a BufferedImage
+         */
+        TO_BUFFERED_IMAGE("toBufferedImage"),
+        /**
+         * Converting an image to ink intensities
+         */
+        TO_VECTOR("toVector"),
+        /**
+         * Framing the digit of an image in 28x28 like MNIST digits
+         */
+        NORMALIZE("normalize"),
+        /**
+         * Copying pixels of a batch into the network input
+         */
+        TO_INPUT("toInput"),
+        /**
+         * Forward pass of the network on a replica thread
+         */
+        FORWARD_PASS("forward"),
+        /**
+         * Whole prediction call, including the input, waiting for a replica and the prediction cache
+         */
+        PREDICTION("predict");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return short name of the stage
+         */
+        public String label() {
+            return label;
+        }
+    }
+
+    private InferenceMetrics() {
+    }
+
+    /**
+     * Marks the start of a stage on the current thread
+     *
+     * @param stage stage to measure
+     * @return value to pass to {@link InferenceMetrics#stop(Stage, long)}, 0 if measuring is disabled
+     */
+    public static long start(Stage stage) {
+        if (!enabled) {
+            return 0;
+        }
+        if (ALLOCATION_COUNTER != null) {
+            ALLOCATION_STARTS.get()[stage.ordinal()] = ALLOCATION_COUNTER.getCurrentThreadAllocatedBytes();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the stage started by {@link InferenceMetrics#start(Stage)} on the same thread
+     *
+     * @param stage stage to record
+     * @param start value returned by {@link InferenceMetrics#start(Stage)}, the stage is not recorded if it is 0
+     */
+    public static void stop(Stage stage, long start) {
+        if (start == 0) {
+            return;
+        }
+        LATENCIES[stage.ordinal()].record(System.nanoTime() - start);
+        if (ALLOCATION_COUNTER != null) {
+            ALLOCATIONS[stage.ordinal()].add(ALLOCATION_COUNTER.getCurrentThreadAllocatedBytes() - ALLOCATION_STARTS.get()[stage.ordinal()]);
+        }
+    }
+
+    /**
+     * @return whether stages are measured
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled whether to measure stages, statistics are kept while measuring is disabled
+     */
+    public static void setEnabled(boolean enabled) {
+        InferenceMetrics.enabled = enabled;
+    }
+
+    /**
+     * @param stage stage to describe
+     * @return statistics of the stage since the last reset
+     */
+    public static StageStatistics statistics(Stage stage) {
+        LatencyHistogram latencies = LATENCIES[stage.ordinal()];
+        long[] percentiles = latencies.percentiles(PERCENTILES);
+        return new StageStatistics(stage.label(), latencies.count(), percentiles[0] / 1e3, percentiles[1] / 1e3, percentiles[2] / 1e3,
+                latencies.max() / 1e3, latencies.mean() / 1e3, ALLOCATION_COUNTER == null ? -1 : ALLOCATIONS[stage.ordinal()].sum());
+    }
+
+    /**
+     * @return statistics of the stages which have run since the last reset
+     */
+    public static List<StageStatistics> statistics() {
+        List<StageStatistics> statistics = new ArrayList<>();
+        for (Stage stage : STAGES) {
+            if (LATENCIES[stage.ordinal()].count() > 0) {
+                statistics.add(statistics(stage));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @return p50 and p99 latencies of the stages which have run, e.g. <i>p50/p99 ms: predict 1.20/3.41, forward 0.95/2.10</i>
+     */
+    public static String statusLine() {
+        if (!enabled) {
+            return "Inference metrics are disabled";
+        }
+        StringBuilder line = new StringBuilder();
+        for (Stage stage : STAGES) {
+            LatencyHistogram latencies = LATENCIES[stage.ordinal()];
+            if (latencies.count() > 0) {
+                long[] percentiles = latencies.percentiles(50, 99);
+                line.append(line.isEmpty() ? "p50/p99 ms: " : ", ").
+                        append(String.format("%s %.2f/%.2f", stage.label(), percentiles[0] / 1e6, percentiles[1] / 1e6));
+            }
+        }
+        return line.isEmpty() ? "No recognitions measured yet" : line.toString();
+    }
+
+    /**
+     * @return table with statistics of all stages, latencies in microseconds
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder(String.format("Inference metrics at %s, Java %s, %d CPU(s), measuring %s%n",
+                Instant.now(), System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(), enabled ? "enabled" : "disabled"));
+        report.append(String.format("%-18s %10s %10s %10s %10s %10s %10s %14s%n",
+                "stage", "count", "p50, us", "p99, us", "p99.9, us", "max, us", "mean, us", "allocated, B"));
+        for (Stage stage : STAGES) {
+            report.append(statistics(stage)).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes the {@link InferenceMetrics#report() report} to a file, e.g. to attach it to a performance ticket
+     *
+     * @param file file to write, its directory is created if needed
+     * @throws IOException if the file cannot be written
+     */
+    public static void dump(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        Files.writeString(file, report());
+        LOG.info("Inference metrics written to " + file.toAbsolutePath());
+    }
+
+    /**
+     * Clears statistics of all stages
+     */
+    public static void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            LATENCIES[i].reset();
+            ALLOCATIONS[i].reset();
+        }
+    }
+
+    /**
+     * Registers the {@link InferenceMetricsMXBean JMX bean} in the platform MBean server unless it is already registered
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Bean(), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Failed to register inference metrics bean", e);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads;
+        }
+        return null;
+    }
+
+    private static final class Bean implements InferenceMetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return InferenceMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            InferenceMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public List<StageStatistics> getStages() {
+            return statistics();
+        }
+
+        @Override
+        public String getStatusLine() {
+            return statusLine();
+        }
+
+        @Override
+        public void reset() {
+            InferenceMetrics.reset();
+        }
+
+        @Override
+        public String dump(String file) throws IOException {
+            Path path = Path.of(file);
+            InferenceMetrics.dump(path);
+            return path.toAbsolutePath().toString();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.knubisoft.metrics;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * JMX view of {@link InferenceMetrics}, registered as <i>com.knubisoft:type=InferenceMetrics</i>
+ */
+public interface InferenceMetricsMXBean {
+
+    /**
+     * @return whether stages are measured
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled whether to measure stages
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return statistics of every stage which has run since the last reset
+     */
+    List<StageStatistics> getStages();
+
+    /**
+     * @return one line summary of the main stages
+     */
+    String getStatusLine();
+
+    /**
+     * Clears all statistics
+     */
+    void reset();
+
+    /**
+     * Writes the {@link InferenceMetrics#report() report} to a file
+     *
+     * @param file path of the file
+     * @return absolute path of the written file
+     * @throws IOException if the file cannot be written
+     */
+    String dump(String file) throws IOException;
+}
@@ -0,0 +1,125 @@
+package com.knubisoft.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds with log-linear buckets, the layout
+ * <a href="http://hdrhistogram.org/">HdrHistogram</a> uses.
+ * <p>
+ * Values below {@link LatencyHistogram#SUB_BUCKETS} have a bucket each. Every following power of two range is split into
+ * <i>SUB_BUCKETS / 2</i> equal buckets, so a recorded value is off by less than <i>2 / SUB_BUCKETS</i> (1.6%) of itself
+ * at any magnitude, and the whole range of <i>long</i> fits into a few thousand counters. Recording is lock free and
+ * does not allocate, percentiles are computed from a copy of the counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one value
+     *
+     * @param nanos latency, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean of recorded values or 0 if there are none
+     */
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Computes percentiles from one copy of the counters, so they are consistent with each other
+     *
+     * @param percentiles percentiles from 0 to 100
+     * @return for every percentile the highest value of the bucket it falls into (not above {@link LatencyHistogram#max()}),
+     * 0 if nothing has been recorded
+     */
+    public long[] percentiles(double... percentiles) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        long max = max();
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    values[p] = Math.min(highestEquivalentValue(i), max);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with the reset may be partially kept
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        // value >>> shift is in [HALF_SUB_BUCKETS, SUB_BUCKETS), so every shift adds HALF_SUB_BUCKETS buckets
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> (SUB_BUCKET_BITS - 1)) - 1;
+        long lowest = (long) (index - (shift << (SUB_BUCKET_BITS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,42 @@
+package com.knubisoft.metrics;
+
+import lombok.Getter;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Statistics of one {@link InferenceMetrics.Stage stage}, a bean so that JMX clients show it as a composite value
+ */
+@Getter
+public class StageStatistics {
+    private final String stage;
+    private final long count;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+    private final double meanMicros;
+    /**
+     * Bytes allocated on the Java heap by threads running the stage, <i>-1</i> if the JVM does not measure it
+     */
+    private final long allocatedBytes;
+
+    @ConstructorProperties({"stage", "count", "p50Micros", "p99Micros", "p999Micros", "maxMicros", "meanMicros", "allocatedBytes"})
+    public StageStatistics(String stage, long count, double p50Micros, double p99Micros, double p999Micros,
+                           double maxMicros, double meanMicros, long allocatedBytes) {
+        this.stage = stage;
+        this.count = count;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+        this.meanMicros = meanMicros;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %14s", stage, count, p50Micros, p99Micros, p999Micros,
+                maxMicros, meanMicros, allocatedBytes < 0 ? "n/a" : String.valueOf(allocatedBytes));
+    }
+}
@@ -0,0 +1,288 @@
+package com.knubisoft.scoring;
+
+import com.knubisoft.cnn.BatchingPredictor;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.utils.ImageProcessorUtil;
+import freemarker.log.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Scores many PNG images offline and writes a CSV file with the predicted class and probabilities of every image.
+ * <p>
+ * Scoring runs as a pipeline of three stages connected with bounded queues, so a slow stage holds back the
+ * previous one instead of letting decoded images pile up in memory:
+ * <ol>
+ *     <li>decoders - a pool of threads reading files with {@link ImageIO} and scaling them with {@link ImageProcessorUtil}</li>
+ *     <li>predictor - the calling thread, collects decoded images into batches and runs one forward pass per batch</li>
+ *     <li>writer - a single thread formatting and writing CSV lines</li>
+ * </ol>
+ * Rows are written in the order batches are completed, not in the order of the input. Files which cannot be decoded
+ * are logged and skipped.
+ */
+public class BulkScorer {
+    private final static Logger LOG = Logger.getLogger(BulkScorer.class.getName());
+    private static final int QUEUED_BATCHES = 4;
+    private static final int PROGRESS_INTERVAL = 10_000;
+    private static final long HAND_OVER_CHECK_MILLIS = 100;
+    private static final Decoded END_OF_IMAGES = new Decoded(null, null);
+    private static final Scored END_OF_BATCHES = new Scored(List.of(), new double[0][]);
+
+    private final ConvolutionalNeuralNetwork network;
+    private final int decoders;
+    private final int batchSize;
+
+    private record Source(String name, Path path) {
+    }
+
+    private record Decoded(String name, LabeledImage image) {
+    }
+
+    private record Scored(List<String> names, double[][] probabilities) {
+    }
+
+    /**
+     * Creates scorer over initialized network
+     *
+     * @param network   initialized CNN used for predictions
+     * @param decoders  number of threads decoding and scaling images
+     * @param batchSize number of images in a forward pass
+     */
+    public BulkScorer(ConvolutionalNeuralNetwork network, int decoders, int batchSize) {
+        this.network = network;
+        this.decoders = decoders;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Scores all PNG images of passed directory (including subdirectories) or listed in passed text file
+     *
+     * @param input directory with images or a text file with one image path per line, relative paths are resolved
+     *              against the directory of the file
+     * @param csv   file to write <i>file,class,p0,...,p9</i> rows to
+     * @return number of scored and failed images and the speed of scoring
+     * @throws IOException          if the input cannot be listed or the CSV file cannot be written
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public ScoringReport score(Path input, Path csv) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Queue<Source> sources = new ConcurrentLinkedQueue<>(listSources(input));
+        LOG.info("Scoring " + sources.size() + " images from " + input + " with " + decoders + " decoders");
+        ImageIO.setUseCache(false);
+
+        BlockingQueue<Decoded> decoded = new ArrayBlockingQueue<>(batchSize * QUEUED_BATCHES);
+        BlockingQueue<Scored> scored = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        LongAdder failed = new LongAdder();
+        ExecutorService decoderPool = Executors.newFixedThreadPool(decoders, daemon("scoring-decoder"));
+        ExecutorService writerThread = Executors.newSingleThreadExecutor(daemon("scoring-writer"));
+        AtomicInteger runningDecoders = new AtomicInteger(decoders);
+        for (int i = 0; i < decoders; i++) {
+            decoderPool.execute(() -> decode(sources, decoded, failed, runningDecoders));
+        }
+        long rows;
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            Future<Long> written = writerThread.submit(() -> write(scored, writer));
+            try {
+                predict(decoded, scored, written);
+                handOver(scored, END_OF_BATCHES, written);
+                rows = written.get();
+            } finally {
+                decoderPool.shutdownNow();
+                // stops the writer if prediction failed, it has nothing to wait for then
+                writerThread.shutdownNow();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write " + csv, e.getCause());
+        }
+
+        ScoringReport report = new ScoringReport(rows, failed.sum(), System.nanoTime() - start);
+        LOG.info(report.toString());
+        return report;
+    }
+
+    /**
+     * First stage: takes files from the shared queue until it is empty, the last finished decoder ends the stream
+     */
+    private static void decode(Queue<Source> sources, BlockingQueue<Decoded> decoded, LongAdder failed, AtomicInteger runningDecoders) {
+        try {
+            Source source;
+            while ((source = sources.poll()) != null) {
+                try {
+                    BufferedImage image = ImageIO.read(source.path().toFile());
+                    if (image == null) {
+                        throw new IOException("Unsupported image format");
+                    }
+                    decoded.put(new Decoded(source.name(), new LabeledImage(ImageProcessorUtil.preprocess(image))));
+                } catch (IOException | RuntimeException e) {
+                    failed.increment();
+                    LOG.warn("Skipping " + source.path() + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (runningDecoders.decrementAndGet() == 0) {
+                endOfImages(decoded);
+            }
+        }
+    }
+
+    private static void endOfImages(BlockingQueue<Decoded> decoded) {
+        try {
+            decoded.put(END_OF_IMAGES);
+        } catch (InterruptedException e) {
+            // Scoring has been aborted, nobody waits for the end of the stream
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Second stage: fills batches up to {@link BulkScorer#batchSize} and passes their probabilities to the writer
+     */
+    private void predict(BlockingQueue<Decoded> decoded, BlockingQueue<Scored> scored, Future<Long> written)
+            throws InterruptedException, ExecutionException {
+        boolean end = false;
+        long predicted = 0;
+        long start = System.nanoTime();
+        while (!end) {
+            List<String> names = new ArrayList<>(batchSize);
+            List<LabeledImage> images = new ArrayList<>(batchSize);
+            while (images.size() < batchSize) {
+                Decoded next = decoded.take();
+                if (next == END_OF_IMAGES) {
+                    end = true;
+                    break;
+                }
+                names.add(next.name());
+                images.add(next.image());
+            }
+            if (images.isEmpty()) {
+                continue;
+            }
+            handOver(scored, new Scored(names, network.predictBatchProbabilities(images)), written);
+            if (predicted / PROGRESS_INTERVAL != (predicted + images.size()) / PROGRESS_INTERVAL) {
+                LOG.info(String.format("Scored %d images, %.1f images/sec",
+                        predicted + images.size(), (predicted + images.size()) / ((System.nanoTime() - start) / 1e9)));
+            }
+            predicted += images.size();
+        }
+    }
+
+    /**
+     * Waits for space in the queue of the writer while the writer is running. A writer which stopped with an error
+     * never takes the batch, so its error is thrown instead of blocking forever
+     *
+     * @throws ExecutionException with the error of the writer
+     */
+    private static void handOver(BlockingQueue<Scored> scored, Scored batch, Future<Long> written)
+            throws InterruptedException, ExecutionException {
+        while (!scored.offer(batch, HAND_OVER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (written.isDone()) {
+                written.get();
+                throw new IllegalStateException("Writer stopped before the end of batches");
+            }
+        }
+    }
+
+    /**
+     * Third stage: writes rows until the end of the stream. After a write error batches are still drained,
+     * so the predictor never blocks on the full queue
+     */
+    private static long write(BlockingQueue<Scored> scored, BufferedWriter writer) throws IOException, InterruptedException {
+        IOException error = null;
+        long rows = 0;
+        for (Scored batch = scored.take(); batch != END_OF_BATCHES; batch = scored.take()) {
+            if (error != null) {
+                continue;
+            }
+            try {
+                if (rows == 0) {
+                    writer.write(header(batch.probabilities()[0].length));
+                }
+                for (int i = 0; i < batch.names().size(); i++) {
+                    writer.write(row(batch.names().get(i), batch.probabilities()[i]));
+                    rows++;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return rows;
+    }
+
+    private static String header(int classes) {
+        StringBuilder header = new StringBuilder("file,class");
+        for (int i = 0; i < classes; i++) {
+            header.append(",p").append(i);
+        }
+        return header.append('\n').toString();
+    }
+
+    private static String row(String name, double[] probabilities) {
+        StringBuilder row = new StringBuilder(quote(name)).append(',').append(BatchingPredictor.argMax(probabilities));
+        for (double probability : probabilities) {
+            row.append(',').append(probability);
+        }
+        return row.append('\n').toString();
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static List<Source> listSources(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> files = Files.walk(input)) {
+                return files.filter(file -> Files.isRegularFile(file) && file.getFileName().toString().toLowerCase().endsWith(".png")).
+                        sorted().
+                        map(file -> new Source(input.relativize(file).toString(), file)).
+                        collect(Collectors.toList());
+            }
+        }
+        Path base = input.toAbsolutePath().getParent();
+        try (Stream<String> lines = Files.lines(input, StandardCharsets.UTF_8)) {
+            return lines.map(String::strip).
+                    filter(line -> !line.isEmpty()).
+                    map(line -> new Source(line, base.resolve(line))).
+                    collect(Collectors.toList());
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
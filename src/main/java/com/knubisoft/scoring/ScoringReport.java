@@ -0,0 +1,26 @@
+package com.knubisoft.scoring;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary of a {@link BulkScorer} run
+ *
+ * @param scored number of images written to the CSV file
+ * @param failed number of files which could not be decoded
+ * @param nanos  wall time of the run
+ */
+public record ScoringReport(long scored, long failed, long nanos) {
+
+    /**
+     * @return number of scored images per second of wall time
+     */
+    public double imagesPerSecond() {
+        return nanos > 0 ? scored / (nanos / 1e9) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Scored %d images (%d failed) in %d ms, %.1f images/sec",
+                scored, failed, TimeUnit.NANOSECONDS.toMillis(nanos), imagesPerSecond());
+    }
+}
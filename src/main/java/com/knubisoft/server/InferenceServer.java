@@ -0,0 +1,253 @@
+package com.knubisoft.server;
+
+import com.knubisoft.cnn.BatchingPredictor;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.ModelVersion;
+import com.knubisoft.utils.ImageProcessorUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import freemarker.log.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Headless HTTP endpoint for digit recognition.
+ * <p>
+ * <code>POST /predict</code> accepts either a PNG image (<i>Content-Type: image/png</i>),
+ * which goes through the {@link ImageProcessorUtil#preprocess(java.awt.Image) preprocessing pipeline},
+ * or exactly 784 raw bytes of an already {@link com.knubisoft.utils.MnistNormalizer framed} 28x28 image (ink intensity in range [0, 255], row by row).
+ * The response is JSON with the predicted class and probabilities of all classes.
+ * <p>
+ * <code>GET /model</code> describes the model serving predictions, <code>POST /model/reload</code> loads the saved model
+ * in background and swaps it in once it is warmed up, <code>POST /model/rollback</code> returns to the previous model.
+ * Predictions are not paused while the model is replaced.
+ * <p>
+ * Requests run on virtual threads when the runtime supports them. At most <i>maxInFlight</i> requests
+ * are admitted at once, the rest are rejected with <i>503</i> so that latency stays bounded under overload.
+ */
+public class InferenceServer implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(InferenceServer.class.getName());
+    private static final int PIXELS = 28 * 28;
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final long MAX_BATCH_WAIT_MILLIS = 2;
+    private static final long PREDICTION_TIMEOUT_SECONDS = 10;
+    private static final long REQUEST_THREAD_KEEP_ALIVE_SECONDS = 60;
+    private final HttpServer server;
+    private final ConvolutionalNeuralNetwork network;
+    private final ExecutorService executor;
+    private final BatchingPredictor predictor;
+    private final Semaphore admission;
+
+    /**
+     * Creates server bound to the loopback interface
+     *
+     * @param network     initialized CNN used for predictions
+     * @param port        port to listen on
+     * @param maxInFlight max number of requests processed at the same time
+     * @throws IOException if the port cannot be bound
+     */
+    public InferenceServer(ConvolutionalNeuralNetwork network, int port, int maxInFlight) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.network = network;
+        executor = newRequestExecutor(maxInFlight);
+        predictor = new BatchingPredictor(network, MAX_BATCH_SIZE, MAX_BATCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        admission = new Semaphore(maxInFlight);
+        server.setExecutor(executor);
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/model", this::handleModel);
+    }
+
+    /**
+     * Starts accepting requests
+     */
+    public void start() {
+        server.start();
+        LOG.info("Inference server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops accepting requests and releases request threads and the batching predictor
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        predictor.close();
+        executor.shutdown();
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"Only POST is supported\"}");
+                return;
+            }
+            if (!admission.tryAcquire()) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 503, "{\"error\":\"Server is overloaded\"}");
+                return;
+            }
+            try {
+                predict(exchange);
+            } finally {
+                admission.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleModel(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if ("GET".equals(method) && "/model".equals(path)) {
+                respond(exchange, 200, toJson(network.getModelVersion()));
+            } else if ("POST".equals(method) && "/model/reload".equals(path)) {
+                respond(exchange, 200, toJson(network.reloadModel().get()));
+            } else if ("POST".equals(method) && "/model/rollback".equals(path)) {
+                respond(exchange, 200, toJson(network.rollbackModel()));
+            } else {
+                respond(exchange, 404, "{\"error\":\"Unknown model operation\"}");
+            }
+        } catch (IllegalStateException e) {
+            respond(exchange, 409, "{\"error\":" + jsonString(String.valueOf(e.getMessage())) + "}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"Interrupted\"}");
+        } catch (ExecutionException e) {
+            LOG.error("Model reload failed", e.getCause());
+            respond(exchange, 500, "{\"error\":" + jsonString("Reload failed: " + e.getCause().getMessage()) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        LabeledImage img = readImage(exchange);
+        if (img == null) {
+            respond(exchange, 400, "{\"error\":\"Expected PNG image or " + PIXELS + " raw pixel bytes\"}");
+            return;
+        }
+        try {
+            double[] probabilities = predictor.submitForProbabilities(img)
+                    .get(PREDICTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            respond(exchange, 200, toJson(probabilities));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"Interrupted\"}");
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.error("Prediction failed", e);
+            respond(exchange, 500, "{\"error\":\"Prediction failed\"}");
+        }
+    }
+
+    private LabeledImage readImage(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("image/png")) {
+            return decodePng(body);
+        }
+        if (body.length != PIXELS) {
+            return null;
+        }
+        float[] pixels = new float[PIXELS];
+        for (int i = 0; i < PIXELS; i++) {
+            pixels[i] = body[i] & 0xFF;
+        }
+        return new LabeledImage(pixels);
+    }
+
+    /**
+     * @return preprocessed image or null if the body is not a readable PNG, a truncated or corrupt one makes
+     * ImageIO throw instead of returning null
+     */
+    private static LabeledImage decodePng(byte[] body) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(body));
+            return image == null ? null : new LabeledImage(ImageProcessorUtil.preprocess(image));
+        } catch (IOException | RuntimeException e) {
+            LOG.info("Rejected unreadable PNG: " + e);
+            return null;
+        }
+    }
+
+    private static String toJson(double[] probabilities) {
+        StringBuilder json = new StringBuilder("{\"class\":").append(BatchingPredictor.argMax(probabilities))
+                .append(",\"probabilities\":[");
+        for (int i = 0; i < probabilities.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(probabilities[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String toJson(ModelVersion version) {
+        if (version == null) {
+            return "{\"version\":null}";
+        }
+        return "{\"version\":" + version.version() + ",\"source\":" + jsonString(version.source()) + ",\"loadedAt\":\"" + version.loadedAt() + "\"}";
+    }
+
+    /**
+     * @return passed value as a quoted JSON string, quotes, backslashes and control characters are escaped
+     */
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Uses a virtual thread per request if the runtime provides them (JDK 21+), otherwise falls back to at most
+     * <i>maxInFlight</i> platform threads without a queue, requests beyond them are rejected like the ones over admission
+     */
+    private static ExecutorService newRequestExecutor(int maxInFlight) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.info("Virtual threads are not available, requests run on at most " + maxInFlight + " platform threads");
+            return new ThreadPoolExecutor(0, maxInFlight, REQUEST_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+}
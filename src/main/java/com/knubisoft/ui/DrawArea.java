@@ -1,5 +1,6 @@
 package com.knubisoft.ui;
 
+import com.knubisoft.utils.StrokeRasterizer;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -9,19 +10,34 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Canvas for getting mouse pointer input
+ * Canvas for getting mouse pointer input.
+ * <p>
+ * Besides painting, the canvas records strokes as point lists, so the drawing can be
+ * {@link DrawArea#rasterize() rasterized} at model resolution without scaling down the full-size image.
+ * Every new segment repaints only the rectangle it covers.
  */
 public class DrawArea extends JComponent {
+    private static final int MODEL_SIZE = 28;
+    private static final int SUPERSAMPLING = 8;
     @Getter
-    @Setter
     private Image image;
     @Setter
     @Getter
     private int strokeWidth = 10;
+    /**
+     * Called on the Event Dispatch Thread after every added stroke
+     */
+    @Setter
+    private Runnable strokeListener = () -> {
+    };
     private Graphics2D g2;
     private int curX, curY, oldX, oldY;
+    private final List<StrokeRasterizer.Stroke> strokes = new ArrayList<>();
+    private final StrokeRasterizer rasterizer = new StrokeRasterizer(MODEL_SIZE, SUPERSAMPLING);
 
     /**
      * Creates area for drawing (canvas) with border and tip
@@ -42,6 +58,9 @@ public class DrawArea extends JComponent {
             public void mousePressed(MouseEvent e) {
                 oldX = e.getX();
                 oldY = e.getY();
+                StrokeRasterizer.Stroke stroke = new StrokeRasterizer.Stroke();
+                stroke.add(oldX, oldY);
+                strokes.add(stroke);
             }
         });
 
@@ -54,9 +73,11 @@ public class DrawArea extends JComponent {
                 if (g2 != null) {
                     g2.setStroke(new BasicStroke(strokeWidth));
                     g2.drawLine(oldX, oldY, curX, curY);
-                    repaint();
+                    strokes.get(strokes.size() - 1).add(curX, curY);
+                    repaintSegment(oldX, oldY, curX, curY);
                     oldX = curX;
                     oldY = curY;
+                    strokeListener.run();
                 }
             }
         });
@@ -79,6 +100,42 @@ public class DrawArea extends JComponent {
         g.drawImage(image, 0, 0, null);
     }
 
+    /**
+     * Draws recorded strokes framed like MNIST digits at model resolution
+     *
+     * @return ink intensities of the <i>28x28</i> image in range [0, 255], row by row
+     */
+    public float[] rasterize() {
+        float[] pixels = new float[MODEL_SIZE * MODEL_SIZE];
+        rasterizer.rasterize(strokes, strokeWidth, pixels);
+        return pixels;
+    }
+
+    /**
+     * @return whether nothing has been drawn yet
+     */
+    public boolean isEmpty() {
+        return strokes.stream().allMatch(stroke -> stroke.size() < 2);
+    }
+
+    /**
+     * Removes all strokes and repaints the empty canvas
+     */
+    public void clearDrawing() {
+        strokes.clear();
+        image = null;
+        repaint();
+    }
+
+    /**
+     * Repaints the rectangle covered by a segment including the width of the pen
+     */
+    private void repaintSegment(int x1, int y1, int x2, int y2) {
+        int margin = strokeWidth + 1;
+        repaint(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin,
+                Math.abs(x2 - x1) + 2 * margin, Math.abs(y2 - y1) + 2 * margin);
+    }
+
     /**
      * Clears canvas
      */
@@ -0,0 +1,128 @@
+package com.knubisoft.ui;
+
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.LabeledImage;
+import freemarker.log.Logger;
+
+import javax.swing.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Recognizes the drawing on a background thread, so the Event Dispatch Thread only rasterizes the strokes
+ * at model resolution and shows results.
+ * <p>
+ * {@link LiveRecognizer#strokeAdded()} restarts a debounce timer, the drawing is recognized once no stroke has been
+ * added for {@link LiveRecognizer#DEBOUNCE_MS} ms. A newer request cancels the one in flight and results of stale
+ * requests are dropped, so only the prediction of the latest drawing reaches the listener.
+ */
+public class LiveRecognizer implements AutoCloseable {
+    private final static Logger LOG = Logger.getLogger(LiveRecognizer.class.getName());
+    private static final int DEBOUNCE_MS = 120;
+    private static final int TOP = 3;
+
+    private final ConvolutionalNeuralNetwork network;
+    private final Supplier<float[]> rasterizer;
+    private final Consumer<Prediction> listener;
+    private final Timer debounce;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "live-recognition");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> inFlight;
+    private volatile long generation;
+
+    /**
+     * Result of a recognition
+     *
+     * @param pixels        the recognized drawing at model resolution
+     * @param probabilities probabilities of every class
+     * @param top           the {@link LiveRecognizer#TOP most probable} classes, starting from the predicted one
+     * @param latencyNanos  time of rasterization and prediction, including waiting for the recognition thread
+     */
+    public record Prediction(float[] pixels, double[] probabilities, int[] top, long latencyNanos) {
+    }
+
+    /**
+     * Creates recognizer, it has to be created and used on the Event Dispatch Thread
+     *
+     * @param network    initialized CNN used for predictions
+     * @param rasterizer rasterizes the drawing at model resolution or returns <i>null</i> if there is nothing drawn,
+     *                   called on the Event Dispatch Thread
+     * @param listener   receives predictions on the Event Dispatch Thread
+     */
+    public LiveRecognizer(ConvolutionalNeuralNetwork network, Supplier<float[]> rasterizer, Consumer<Prediction> listener) {
+        this.network = network;
+        this.rasterizer = rasterizer;
+        this.listener = listener;
+        this.debounce = new Timer(DEBOUNCE_MS, e -> recognizeNow());
+        this.debounce.setRepeats(false);
+    }
+
+    /**
+     * Schedules recognition of the drawing once the user pauses drawing
+     */
+    public void strokeAdded() {
+        debounce.restart();
+    }
+
+    /**
+     * Recognizes the current drawing without waiting, the request in flight is cancelled
+     */
+    public void recognizeNow() {
+        debounce.stop();
+        long start = System.nanoTime();
+        float[] pixels = rasterizer.get();
+        long request = cancel();
+        if (pixels == null) {
+            return;
+        }
+        inFlight = executor.submit(() -> recognize(request, pixels, start));
+    }
+
+    /**
+     * Cancels pending and in-flight requests, their results are never passed to the listener
+     *
+     * @return generation of the next request
+     */
+    public long cancel() {
+        debounce.stop();
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+        return ++generation;
+    }
+
+    /**
+     * Stops the recognition thread
+     */
+    @Override
+    public void close() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void recognize(long request, float[] pixels, long start) {
+        if (request != generation) {
+            return;
+        }
+        try {
+            double[] probabilities = network.predictProbabilities(new LabeledImage(pixels));
+            Prediction prediction = new Prediction(pixels, probabilities, ConvolutionalNeuralNetwork.topK(probabilities, TOP),
+                    System.nanoTime() - start);
+            SwingUtilities.invokeLater(() -> {
+                if (request == generation) {
+                    listener.accept(prediction);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (request == generation) {
+                LOG.error("Live recognition failed", e);
+            }
+        }
+    }
+}
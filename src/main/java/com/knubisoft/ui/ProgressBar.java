@@ -48,6 +48,22 @@ public class ProgressBar {
         });
     }
 
+    /**
+     * Switches progress bar to determinate mode and shows passed progress and message
+     *
+     * @param value   completed amount of work
+     * @param maximum total amount of work
+     * @param msg     String to show in progress bar
+     */
+    public void showProgress(int value, int maximum, String msg) {
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setIndeterminate(false);
+            progressBar.setMaximum(maximum);
+            progressBar.setValue(value);
+            progressBar.setString(msg);
+        });
+    }
+
     /**
      * Changes ProgressBar visibility according to passed value
      * @param isVisible Boolean value to set visibility (true - visible, false - not visible)
@@ -1,8 +1,12 @@
 package com.knubisoft.ui;
 
 import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
-import com.knubisoft.utils.ImageProcessorUtil;
-import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.FeedbackStore;
+import com.knubisoft.cnn.FineTuningOptions;
+import com.knubisoft.cnn.FineTuningReport;
+import com.knubisoft.cnn.TrainingOptions;
+import com.knubisoft.cnn.TrainingProgress;
+import com.knubisoft.metrics.InferenceMetrics;
 import freemarker.log.Logger;
 import lombok.SneakyThrows;
 
@@ -11,8 +15,10 @@ import javax.swing.plaf.FontUIResource;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for creating and providing GUI
@@ -23,6 +29,10 @@ public class UI {
     private final static int HEIGHT = 600;
     private final static int TRAIN_SIZE = 30_000;
     private final static int TEST_SIZE = 10_000;
+    private final static int PREDICTION_CACHE_SIZE = 1_000;
+    private final static int METRICS_REFRESH_MS = 1_000;
+    private final static String METRICS_DIR = "resources";
+    private final static int CLASSES = 10;
     private final ConvolutionalNeuralNetwork convolutionalNeuralNetwork = new ConvolutionalNeuralNetwork();
     private DrawArea drawArea;
     private JFrame mainFrame;
@@ -31,14 +41,27 @@ public class UI {
     private JSpinner trainField;
     private final Font sansSerifBold = new Font("SansSerif", Font.BOLD, 18);
     private JSpinner testField;
+    private JSpinner workersField;
+    private JCheckBox resumeBox;
+    private JCheckBox augmentBox;
+    private JCheckBox liveBox;
+    private LiveRecognizer liveRecognizer;
     private JPanel resultPanel;
+    private FeedbackStore feedbackStore;
 
     @SneakyThrows
     public UI() {
         UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         UIManager.put("Button.font", new FontUIResource(new Font("Dialog", Font.BOLD, 18)));
         UIManager.put("ProgressBar.font", new FontUIResource(new Font("Dialog", Font.BOLD, 18)));
+        InferenceMetrics.setEnabled(true);
         convolutionalNeuralNetwork.init();
+        convolutionalNeuralNetwork.enablePredictionCache(PREDICTION_CACHE_SIZE);
+        try {
+            feedbackStore = FeedbackStore.open(FeedbackStore.DEFAULT_DIR);
+        } catch (IOException e) {
+            LOG.error("Failed to open feedback store, predictions cannot be confirmed or corrected", e);
+        }
     }
 
     /**
@@ -61,7 +84,8 @@ public class UI {
     }
 
     /**
-     * Creates and adds to main frame panel with spinners to specify amount of data for model training
+     * Creates and adds to main frame panel with spinners to specify amount of data and number of workers for model training,
+     * check boxes to resume interrupted training and to augment training data and a button to fine-tune the model on feedback
      */
     private void addTrainPanel() {
         JPanel topPanel = new JPanel(new FlowLayout());
@@ -72,7 +96,15 @@ public class UI {
                 SwingUtilities.invokeLater(() -> bar.showProgressBar("Training may take a while..."));
                 Executors.newCachedThreadPool().submit(() -> {
                     LOG.info("Start CNN training");
-                    convolutionalNeuralNetwork.train((Integer) trainField.getValue(), (Integer) testField.getValue());
+                    convolutionalNeuralNetwork.train(TrainingOptions.builder().
+                            trainDataSize((Integer) trainField.getValue()).
+                            testDataSize((Integer) testField.getValue()).
+                            workers((Integer) workersField.getValue()).
+                            resume(resumeBox.isSelected()).
+                            augmentation(augmentBox.isSelected()).
+                            progressListener(progress -> bar.showProgress(progress.completedIterations(), progress.totalIterations(),
+                                    describe(progress))).
+                            build());
                     LOG.info("End CNN training");
                     bar.setVisible(false);
                 });
@@ -80,6 +112,11 @@ public class UI {
         });
         topPanel.add(train);
 
+        JButton fineTune = new JButton("Fine-tune");
+        fineTune.setToolTipText("Adapt the model to confirmed and corrected drawings in a few seconds");
+        fineTune.addActionListener(e -> fineTune());
+        topPanel.add(fineTune);
+
         JLabel trainLbl = new JLabel("Training data");
         trainLbl.setFont(sansSerifBold);
         topPanel.add(trainLbl);
@@ -96,9 +133,72 @@ public class UI {
         testField.setFont(sansSerifBold);
         topPanel.add(testField);
 
+        JLabel workersLbl = new JLabel("Workers");
+        workersLbl.setFont(sansSerifBold);
+        topPanel.add(workersLbl);
+        SpinnerNumberModel modelWorkers = new SpinnerNumberModel(1, 1, Runtime.getRuntime().availableProcessors(), 1);
+        workersField = new JSpinner(modelWorkers);
+        workersField.setFont(sansSerifBold);
+        topPanel.add(workersField);
+
+        resumeBox = new JCheckBox("Resume");
+        resumeBox.setFont(sansSerifBold);
+        resumeBox.setToolTipText("Continue interrupted training from the latest checkpoint");
+        topPanel.add(resumeBox);
+
+        augmentBox = new JCheckBox("Augment");
+        augmentBox.setFont(sansSerifBold);
+        augmentBox.setToolTipText("Shift, rotate, distort and change stroke width of training digits on the fly");
+        topPanel.add(augmentBox);
+
         mainPanel.add(topPanel, BorderLayout.NORTH);
     }
 
+    /**
+     * Fine-tunes the model on collected feedback in background and shows the result
+     */
+    private void fineTune() {
+        if (feedbackStore == null || feedbackStore.size() == 0) {
+            JOptionPane.showMessageDialog(mainFrame, "Confirm or correct some predictions first");
+            return;
+        }
+        String question = String.format("Fine-tune the model on %d drawing(s), %d of them corrected?",
+                feedbackStore.size(), feedbackStore.corrections());
+        if (JOptionPane.showConfirmDialog(mainFrame, question) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        ProgressBar bar = new ProgressBar(mainFrame);
+        bar.showProgressBar("Fine-tuning...");
+        Executors.newCachedThreadPool().submit(() -> {
+            try {
+                FineTuningReport report = convolutionalNeuralNetwork.fineTune(feedbackStore, FineTuningOptions.builder().build());
+                String message = String.format("%s%nAccuracy on your drawings: %.1f%% -> %.1f%%%nMNIST accuracy: %.2f%% -> %.2f%%",
+                        report.accepted() ? "The fine-tuned model is used now" : "The fine-tuned model lost too much MNIST accuracy and is not used",
+                        report.feedbackBefore() * 100, report.feedbackAfter() * 100, report.accuracyBefore() * 100, report.accuracyAfter() * 100);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame, message));
+            } catch (RuntimeException ex) {
+                LOG.error("Fine-tuning failed", ex);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame, "Fine-tuning failed: " + ex.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE));
+            } finally {
+                bar.setVisible(false);
+            }
+        });
+    }
+
+    /**
+     * Describes training progress for the progress bar
+     *
+     * @param progress TrainingProgress to describe
+     * @return String with epoch, iteration, speed and remaining time
+     */
+    private static String describe(TrainingProgress progress) {
+        String eta = progress.etaMillis() < 0 ? "..." : String.format("%d:%02d",
+                TimeUnit.MILLISECONDS.toMinutes(progress.etaMillis()), TimeUnit.MILLISECONDS.toSeconds(progress.etaMillis()) % 60);
+        return String.format("Epoch %d/%d, iteration %d/%d, %.0f samples/sec, ETA %s",
+                progress.epoch(), progress.totalEpochs(), progress.iteration(), progress.iterationsPerEpoch(), progress.samplesPerSecond(), eta);
+    }
+
     /**
      * Creates and establishes main frame of the app
      *
@@ -128,49 +228,169 @@ public class UI {
      */
     private void addDrawAreaAndPredictionArea() {
         drawArea = new DrawArea();
+        liveRecognizer = new LiveRecognizer(convolutionalNeuralNetwork, () -> drawArea.isEmpty() ? null : drawArea.rasterize(),
+                this::showPrediction);
+        drawArea.setStrokeListener(() -> {
+            if (liveBox.isSelected()) {
+                liveRecognizer.strokeAdded();
+            }
+        });
         drawAndDigitPredictionPanel.add(drawArea);
 
         resultPanel = new JPanel();
-        resultPanel.setLayout(new GridLayout());
+        resultPanel.setLayout(new BorderLayout());
         drawAndDigitPredictionPanel.add(resultPanel);
     }
 
     /**
-     * Creates and adds to the main frame panel with buttons for interacting with CNN
+     * Creates and adds to the main frame panel with buttons for interacting with CNN.
+     * Recognition runs on the {@link LiveRecognizer background thread}, in live mode it starts
+     * by itself once the user pauses drawing
      */
     private void addActionPanel() {
         JButton recognize = new JButton("Recognize digit");
-        recognize.addActionListener(e -> {
-            Image drawImage = drawArea.getImage();
-            BufferedImage sbi = ImageProcessorUtil.toBufferedImage(drawImage);
-            Image scaled = ImageProcessorUtil.scale(sbi);
-            BufferedImage scaledBuffered = ImageProcessorUtil.toBufferedImage(scaled);
-            double[] scaledPixels = ImageProcessorUtil.toVector(scaledBuffered);
-            LabeledImage labeledImage = new LabeledImage(scaledPixels);
-
-            int predict = convolutionalNeuralNetwork.predict(labeledImage);
-            JLabel prediction = new JLabel(String.valueOf(predict));
-            prediction.setForeground(Color.red);
-            prediction.setFont(new Font("SansSerif", Font.BOLD, 256));
-
-            resultPanel.removeAll();
-            resultPanel.add(prediction);
-            resultPanel.updateUI();
-        });
+        recognize.addActionListener(e -> liveRecognizer.recognizeNow());
 
         JButton clear = new JButton("Clear");
         clear.addActionListener(e -> {
-            drawArea.setImage(null);
-            drawArea.repaint();
+            liveRecognizer.cancel();
+            drawArea.clearDrawing();
             drawAndDigitPredictionPanel.updateUI();
 
             resultPanel.removeAll();
             resultPanel.updateUI();
         });
 
-        JPanel buttonsPanel = new JPanel(new GridLayout(1, 2));
+        liveBox = new JCheckBox("Live", true);
+        liveBox.setFont(sansSerifBold);
+        liveBox.setHorizontalAlignment(SwingConstants.CENTER);
+        liveBox.setToolTipText("Recognize digit while drawing");
+
+        JPanel buttonsPanel = new JPanel(new GridLayout(1, 3));
         buttonsPanel.add(recognize);
         buttonsPanel.add(clear);
-        mainPanel.add(buttonsPanel, BorderLayout.SOUTH);
+        buttonsPanel.add(liveBox);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(buttonsPanel, BorderLayout.CENTER);
+        southPanel.add(createMetricsPanel(), BorderLayout.SOUTH);
+        mainPanel.add(southPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Creates status line with {@link InferenceMetrics latencies of recognition stages}, refreshed every second,
+     * and a button saving all statistics to a file
+     *
+     * @return JPanel with the status line
+     */
+    private JPanel createMetricsPanel() {
+        JLabel statusLine = new JLabel(InferenceMetrics.statusLine());
+        statusLine.setForeground(Color.gray);
+        Timer refresh = new Timer(METRICS_REFRESH_MS, e -> statusLine.setText(InferenceMetrics.statusLine()));
+        refresh.start();
+
+        JButton save = new JButton("Save stats");
+        save.setFont(save.getFont().deriveFont(Font.PLAIN, 12f));
+        save.setToolTipText("Write latency and allocation statistics of every stage to a file");
+        save.addActionListener(e -> {
+            Path file = Path.of(METRICS_DIR, "inference-metrics-" + System.currentTimeMillis() + ".txt");
+            try {
+                InferenceMetrics.dump(file);
+                JOptionPane.showMessageDialog(mainFrame, "Statistics saved to " + file.toAbsolutePath());
+            } catch (IOException ex) {
+                LOG.error("Failed to save inference metrics", ex);
+                JOptionPane.showMessageDialog(mainFrame, "Failed to save statistics: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+
+        JPanel metricsPanel = new JPanel(new BorderLayout());
+        metricsPanel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 2));
+        metricsPanel.add(statusLine, BorderLayout.CENTER);
+        metricsPanel.add(save, BorderLayout.EAST);
+        return metricsPanel;
+    }
+
+    /**
+     * Shows predicted digit, the most probable classes with their probabilities and the recognition latency
+     *
+     * @param result prediction of the drawing
+     */
+    private void showPrediction(LiveRecognizer.Prediction result) {
+        JLabel prediction = new JLabel(String.valueOf(result.top()[0]), SwingConstants.CENTER);
+        prediction.setForeground(Color.red);
+        prediction.setFont(new Font("SansSerif", Font.BOLD, 256));
+
+        JPanel details = new JPanel(new GridLayout(0, 1));
+        for (int digit : result.top()) {
+            JLabel probability = new JLabel(String.format("%d: %.1f%%", digit, result.probabilities()[digit] * 100));
+            probability.setFont(sansSerifBold);
+            details.add(probability);
+        }
+        JLabel latency = new JLabel(String.format("Recognized in %.1f ms", result.latencyNanos() / 1e6));
+        latency.setFont(sansSerifBold);
+        latency.setForeground(Color.gray);
+        details.add(latency);
+        if (feedbackStore != null) {
+            details.add(createFeedbackPanel(result));
+        }
+
+        resultPanel.removeAll();
+        resultPanel.add(prediction, BorderLayout.CENTER);
+        resultPanel.add(details, BorderLayout.EAST);
+        resultPanel.revalidate();
+        resultPanel.repaint();
+    }
+
+    /**
+     * Creates buttons to confirm the prediction or to correct it, the drawing is stored with the chosen digit
+     * in the {@link FeedbackStore} for fine-tuning
+     *
+     * @param result prediction of the drawing
+     * @return JPanel with the buttons
+     */
+    private JPanel createFeedbackPanel(LiveRecognizer.Prediction result) {
+        JPanel feedbackPanel = new JPanel(new GridLayout(0, 1));
+        JButton right = new JButton("Right");
+        right.setToolTipText("Save the drawing as " + result.top()[0] + " to fine-tune the model");
+        right.addActionListener(e -> saveFeedback(feedbackPanel, result, result.top()[0]));
+        feedbackPanel.add(right);
+
+        JPanel digits = new JPanel(new GridLayout(1, 0));
+        for (int digit = 0; digit < CLASSES; digit++) {
+            int label = digit;
+            JButton button = new JButton(String.valueOf(digit));
+            button.setMargin(new Insets(2, 2, 2, 2));
+            button.setToolTipText("Save the drawing as " + digit + " to fine-tune the model");
+            button.addActionListener(e -> saveFeedback(feedbackPanel, result, label));
+            digits.add(button);
+        }
+        JLabel wrong = new JLabel("Wrong? It is:");
+        wrong.setFont(sansSerifBold);
+        feedbackPanel.add(wrong);
+        feedbackPanel.add(digits);
+        return feedbackPanel;
+    }
+
+    /**
+     * Appends the recognized drawing with passed label to the {@link FeedbackStore} and replaces the buttons with a confirmation
+     *
+     * @param feedbackPanel panel with the feedback buttons
+     * @param result        prediction of the drawing
+     * @param label         digit chosen by the user
+     */
+    private void saveFeedback(JPanel feedbackPanel, LiveRecognizer.Prediction result, int label) {
+        try {
+            feedbackStore.append(result.pixels(), label, result.top()[0]);
+        } catch (IOException ex) {
+            LOG.error("Failed to save feedback", ex);
+            JOptionPane.showMessageDialog(mainFrame, "Failed to save the drawing: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JLabel saved = new JLabel(String.format("Saved as %d, %d drawing(s) collected", label, feedbackStore.size()));
+        saved.setForeground(Color.gray);
+        feedbackPanel.removeAll();
+        feedbackPanel.add(saved);
+        feedbackPanel.revalidate();
+        feedbackPanel.repaint();
     }
 }
@@ -0,0 +1,171 @@
+package com.knubisoft.utils;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random distortions of <strong>28x28</strong> digit images which make MNIST look more like digits drawn in the app:
+ * thicker or thinner strokes, shifts away from the center, small rotations and
+ * <a href="https://cognitivemedium.com/assets/rmnist/Simard.pdf">elastic distortion</a> (a random displacement field
+ * smoothed with a Gaussian, Simard et al. 2003).
+ * <p>
+ * The stroke width is changed first with a 3x3 cross shaped max (thicker) or min (thinner, blended with the original so thin
+ * strokes do not vanish) filter. Rotation, shift and displacement are then combined into one source coordinate for every
+ * target pixel, which is sampled with bilinear interpolation, so the image is resampled only once.
+ * Values keep their range, pixels moved in from outside the image are 0.
+ */
+public class DigitAugmenter {
+    private static final int SIZE = 28;
+    private static final double MAX_SHIFT = 3;
+    private static final double MAX_ROTATION = Math.toRadians(15);
+    private static final double THICKEN_PROBABILITY = 0.3;
+    private static final double THIN_PROBABILITY = 0.1;
+    private static final double ELASTIC_PROBABILITY = 0.5;
+    private static final double ELASTIC_ALPHA = 34;
+    private static final double ELASTIC_SIGMA = 4;
+    private static final float[] KERNEL = gaussian(ELASTIC_SIGMA);
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Writes a randomly distorted copy of an image
+     *
+     * @param images    array with images, row by row
+     * @param offset    index of the first pixel of the image in <i>images</i>
+     * @param out       array to write the distorted image to
+     * @param outOffset index of the first pixel of the result in <i>out</i>
+     * @param random    source of the distortion parameters, the result depends only on it and the image
+     */
+    public static void augment(float[] images, int offset, float[] out, int outOffset, SplittableRandom random) {
+        Workspace workspace = WORKSPACE.get();
+        float[] source = images;
+        int sourceOffset = offset;
+        double stroke = random.nextDouble();
+        if (stroke < THICKEN_PROBABILITY) {
+            thicken(images, offset, workspace.stroke);
+            source = workspace.stroke;
+            sourceOffset = 0;
+        } else if (stroke < THICKEN_PROBABILITY + THIN_PROBABILITY) {
+            thin(images, offset, workspace.stroke);
+            source = workspace.stroke;
+            sourceOffset = 0;
+        }
+
+        double angle = random.nextDouble(-MAX_ROTATION, MAX_ROTATION);
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double shiftX = random.nextDouble(-MAX_SHIFT, MAX_SHIFT);
+        double shiftY = random.nextDouble(-MAX_SHIFT, MAX_SHIFT);
+        boolean elastic = random.nextDouble() < ELASTIC_PROBABILITY;
+        if (elastic) {
+            displacement(workspace.dx, workspace.tmp, random);
+            displacement(workspace.dy, workspace.tmp, random);
+        }
+
+        double center = (SIZE - 1) / 2d;
+        for (int y = 0, i = 0; y < SIZE; y++) {
+            double relY = y - center - shiftY;
+            for (int x = 0; x < SIZE; x++, i++) {
+                double relX = x - center - shiftX;
+                double sourceX = cos * relX + sin * relY + center;
+                double sourceY = -sin * relX + cos * relY + center;
+                if (elastic) {
+                    sourceX += workspace.dx[i];
+                    sourceY += workspace.dy[i];
+                }
+                out[outOffset + i] = sample(source, sourceOffset, sourceX, sourceY);
+            }
+        }
+    }
+
+    private static float sample(float[] image, int offset, double x, double y) {
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        if (x0 < -1 || y0 < -1 || x0 >= SIZE || y0 >= SIZE) {
+            return 0;
+        }
+        float fx = (float) (x - x0);
+        float fy = (float) (y - y0);
+        float top = (1 - fx) * pixel(image, offset, x0, y0) + fx * pixel(image, offset, x0 + 1, y0);
+        float bottom = (1 - fx) * pixel(image, offset, x0, y0 + 1) + fx * pixel(image, offset, x0 + 1, y0 + 1);
+        return (1 - fy) * top + fy * bottom;
+    }
+
+    private static float pixel(float[] image, int offset, int x, int y) {
+        return x < 0 || y < 0 || x >= SIZE || y >= SIZE ? 0 : image[offset + y * SIZE + x];
+    }
+
+    private static void thicken(float[] image, int offset, float[] out) {
+        for (int y = 0, i = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++, i++) {
+                float max = Math.max(pixel(image, offset, x, y),
+                        Math.max(Math.max(pixel(image, offset, x - 1, y), pixel(image, offset, x + 1, y)),
+                                Math.max(pixel(image, offset, x, y - 1), pixel(image, offset, x, y + 1))));
+                out[i] = max;
+            }
+        }
+    }
+
+    private static void thin(float[] image, int offset, float[] out) {
+        for (int y = 0, i = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++, i++) {
+                float value = pixel(image, offset, x, y);
+                float min = Math.min(value,
+                        Math.min(Math.min(pixel(image, offset, x - 1, y), pixel(image, offset, x + 1, y)),
+                                Math.min(pixel(image, offset, x, y - 1), pixel(image, offset, x, y + 1))));
+                out[i] = (value + min) / 2;
+            }
+        }
+    }
+
+    /**
+     * Fills field with uniform noise, smooths it with separable Gaussian (zero outside the image) and scales it
+     */
+    private static void displacement(float[] field, float[] tmp, SplittableRandom random) {
+        for (int i = 0; i < field.length; i++) {
+            field[i] = (float) random.nextDouble(-1, 1);
+        }
+        int radius = KERNEL.length / 2;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                float sum = 0;
+                for (int k = Math.max(0, x - radius); k <= Math.min(SIZE - 1, x + radius); k++) {
+                    sum += KERNEL[k - x + radius] * field[y * SIZE + k];
+                }
+                tmp[y * SIZE + x] = sum;
+            }
+        }
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                float sum = 0;
+                for (int k = Math.max(0, y - radius); k <= Math.min(SIZE - 1, y + radius); k++) {
+                    sum += KERNEL[k - y + radius] * tmp[k * SIZE + x];
+                }
+                field[y * SIZE + x] = (float) (sum * ELASTIC_ALPHA);
+            }
+        }
+    }
+
+    private static float[] gaussian(double sigma) {
+        int radius = (int) Math.ceil(3 * sigma);
+        float[] kernel = new float[radius * 2 + 1];
+        double total = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            double weight = Math.exp(-(i - radius) * (i - radius) / (2 * sigma * sigma));
+            kernel[i] = (float) weight;
+            total += weight;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= (float) total;
+        }
+        return kernel;
+    }
+
+    /**
+     * Per thread buffers reused between calls
+     */
+    private static final class Workspace {
+        private final float[] stroke = new float[SIZE * SIZE];
+        private final float[] dx = new float[SIZE * SIZE];
+        private final float[] dy = new float[SIZE * SIZE];
+        private final float[] tmp = new float[SIZE * SIZE];
+    }
+}
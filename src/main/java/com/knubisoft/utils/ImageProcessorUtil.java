@@ -1,15 +1,30 @@
 package com.knubisoft.utils;
 
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
 import com.mortennobel.imagescaling.ResampleFilters;
 import com.mortennobel.imagescaling.ResampleOp;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 /**
- * Provides operations for image processing for CNN
+ * Provides operations for image processing for CNN.
+ * <p>
+ * {@link ImageProcessorUtil#preprocess(Image, float[])} reuses per thread buffers between calls.
+ * {@link ImageProcessorUtil#scale(BufferedImage)} is not allocation free: {@link ResampleOp} rebuilds its Lanczos
+ * filter tables and output image on every call, so it is kept off the serving path
  */
 public class ImageProcessorUtil {
+    private static final int SIZE = 28;
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
     /**
      * Converts a given Image into a BufferedImage
      *
@@ -28,44 +43,181 @@ public class ImageProcessorUtil {
     }
 
     /**
-     * Scales image to appropriate size <strong>(28x28)</strong> for compatibility with neural network trained on MNIST dataset
+     * Scales image to appropriate size <strong>(28x28)</strong> for compatibility with neural network trained on MNIST dataset.
+     * The whole image is resampled without framing the digit, {@link ImageProcessorUtil#preprocess(Image)} is what the model expects.
+     * The resampler is reused per thread, but it allocates its filter tables and the result on every call
      *
      * @param img BufferedImage to be scaled
      * @return scaled Image to <strong>28x28</strong> size which is suitable to trained neural network
      * @see com.mortennobel.imagescaling.ResampleOp
      */
     public static Image scale(BufferedImage img) {
-        ResampleOp resize = new ResampleOp(28, 28);
-        resize.setFilter(ResampleFilters.getLanczos3Filter());
-        return resize.filter(img, null);
+        return WORKSPACE.get().resampleOp.filter(img, null);
+    }
+
+    /**
+     * Runs the whole preprocessing pipeline for CNN:
+     * {@link ImageProcessorUtil#toBufferedImage(Image) conversion} and {@link MnistNormalizer#normalize(BufferedImage, float[])
+     * framing of the digit like MNIST digits}, which resamples only the digit of the source image, not the empty background
+     *
+     * @param img Image of any size with a dark digit on a light background
+     * @return one dimensional array of <i>28 * 28</i> ink intensities in range [0, 255]
+     */
+    public static float[] preprocess(Image img) {
+        float[] out = new float[SIZE * SIZE];
+        preprocess(img, out);
+        return out;
+    }
+
+    /**
+     * Fused variant of {@link ImageProcessorUtil#preprocess(Image)} which writes result into passed array.
+     * Intermediate buffers are cached per thread and reused between calls.
+     * Every step is measured by {@link InferenceMetrics} as a separate stage.
+     *
+     * @param img Image of any size with a dark digit on a light background
+     * @param out array of at least 784 elements to write ink intensities to
+     */
+    public static void preprocess(Image img, float[] out) {
+        long start = InferenceMetrics.start(Stage.TO_BUFFERED_IMAGE);
+        BufferedImage buffered = WORKSPACE.get().toBufferedImage(img);
+        InferenceMetrics.stop(Stage.TO_BUFFERED_IMAGE, start);
+        MnistNormalizer.normalize(buffered, out);
     }
 
     /**
-     * Converts given BufferedImage to one dimensional array of doubles.
-     * This array represents gray (one channel for color) image.
+     * Converts given BufferedImage to one dimensional array of floats.
+     * This array represents ink of a gray (one channel for color) image, row by row.
      * <p>
-     * Each pixel of provided image is converted to Color,
-     * then its values of red, green and blue channels (RGB model)
-     * are used to compute value for one channel color (which is gray).
-     * To compute this value arithmetical mean is used.
+     * Red, green and blue channels (RGB model) of every pixel are read from the raster data,
+     * their arithmetical mean is the gray value and the ink intensity is <i>255 - gray</i>,
+     * so a dark digit on a light background becomes bright on a dark one like MNIST digits.
      * <p>
      * Values in returned array are in range [0, 255]
      * because it's the <strong>max</strong> and <strong>min</strong> values for color channel in RGB model.
      *
      * @param img BufferedImage to be converted into a <i>vector</i> (one dimensional array)
-     * @return one dimensional array of doubles which represents converted gray image
+     * @return one dimensional array of floats which represents ink intensities of the image
      */
-    public static double[] toVector(BufferedImage img) {
+    public static float[] toVector(BufferedImage img) {
+        float[] imgGray = new float[img.getWidth() * img.getHeight()];
+        toVector(img, imgGray);
+        return imgGray;
+    }
+
+    /**
+     * Variant of {@link ImageProcessorUtil#toVector(BufferedImage)} which writes result into passed array
+     *
+     * @param img BufferedImage to be converted into a <i>vector</i> (one dimensional array)
+     * @param out array of at least <i>width * height</i> elements to write ink intensities to
+     */
+    public static void toVector(BufferedImage img, float[] out) {
+        int[] sums = WORKSPACE.get().sums(img.getWidth() * img.getHeight());
+        sumChannels(img, sums);
+        for (int i = 0; i < sums.length; i++) {
+            out[i] = (float) (255 - sums[i] / 3d);
+        }
+    }
+
+    /**
+     * Writes sum of red, green and blue channels of every pixel (row by row) to passed array.
+     * Rasters of common interleaved layouts are read directly, others through a reused row buffer.
+     */
+    static void sumChannels(BufferedImage img, int[] sums) {
         int width = img.getWidth();
         int height = img.getHeight();
-        double[] imgGray = new double[width * height];
-        int index = 0;
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                Color color = new Color(img.getRGB(j, i), true);
-                imgGray[index++] = 255 - (color.getRed() + color.getGreen() + color.getBlue()) / 3d;
+        WritableRaster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        boolean plain = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+        switch (plain ? img.getType() : BufferedImage.TYPE_CUSTOM) {
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel model && model.getScanlineStride() == width) {
+                    sumPacked(((DataBufferInt) buffer).getData(), sums);
+                    return;
+                }
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR -> {
+                if (raster.getSampleModel() instanceof PixelInterleavedSampleModel model
+                        && model.getScanlineStride() == width * model.getPixelStride()) {
+                    sumInterleaved(((DataBufferByte) buffer).getData(), model.getPixelStride(), sums);
+                    return;
+                }
+            }
+            default -> {
             }
         }
-        return imgGray;
+        int[] row = WORKSPACE.get().row(width);
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            sumPacked(row, y * width, width, sums);
+        }
+    }
+
+    private static void sumPacked(int[] argb, int[] sums) {
+        sumPacked(argb, 0, sums.length, sums);
+    }
+
+    private static void sumPacked(int[] argb, int offset, int length, int[] sums) {
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[i];
+            sums[offset + i] = ((pixel >> 16) & 0xFF) + ((pixel >> 8) & 0xFF) + (pixel & 0xFF);
+        }
+    }
+
+    /**
+     * Sums channels of ABGR or BGR interleaved bytes, the last three bytes of a pixel are blue, green and red
+     */
+    private static void sumInterleaved(byte[] data, int pixelStride, int[] sums) {
+        int index = pixelStride - 3;
+        for (int i = 0; i < sums.length; i++, index += pixelStride) {
+            sums[i] = (data[index] & 0xFF) + (data[index + 1] & 0xFF) + (data[index + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Per thread buffers and resampler reused by the preprocessing pipeline
+     */
+    private static final class Workspace {
+        private final ResampleOp resampleOp = createResampleOp();
+        private BufferedImage argb;
+        private int[] sums = new int[0];
+        private int[] row = new int[0];
+
+        private BufferedImage toBufferedImage(Image img) {
+            if (img instanceof BufferedImage bufferedImage) {
+                return bufferedImage;
+            }
+            int width = img.getWidth(null);
+            int height = img.getHeight(null);
+            if (argb == null || argb.getWidth() != width || argb.getHeight() != height) {
+                argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            Graphics2D graphics = argb.createGraphics();
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.drawImage(img, 0, 0, null);
+            graphics.dispose();
+            return argb;
+        }
+
+        private int[] sums(int length) {
+            if (sums.length != length) {
+                sums = new int[length];
+            }
+            return sums;
+        }
+
+        private int[] row(int length) {
+            if (row.length < length) {
+                row = new int[length];
+            }
+            return row;
+        }
+
+        private static ResampleOp createResampleOp() {
+            ResampleOp resize = new ResampleOp(SIZE, SIZE);
+            resize.setFilter(ResampleFilters.getLanczos3Filter());
+            resize.setNumberOfThreads(1);
+            return resize;
+        }
     }
 }
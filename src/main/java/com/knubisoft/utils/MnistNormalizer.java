@@ -0,0 +1,257 @@
+package com.knubisoft.utils;
+
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Prepares images the way <a href="http://yann.lecun.com/exdb/mnist/">MNIST</a> digits were prepared:
+ * the digit is cropped to its ink bounding box, scaled with preserved aspect ratio to fit a <strong>20x20</strong> box
+ * and placed into the <strong>28x28</strong> image so that its center of mass is in the center.
+ * The ink is stretched so the darkest pixel has the full intensity, like the pen strokes of MNIST digits.
+ * <p>
+ * Unlike {@link ImageProcessorUtil#scale(BufferedImage)}, which resamples the whole canvas, only the bounding box is
+ * resampled, straight from the source image, so the digit keeps the resolution it was drawn at.
+ * Scaling is separable (rows, then columns) with a tent filter which is widened when downscaling,
+ * its weights for every pair of source and target sizes are computed once and cached.
+ * Result values are ink intensities in range [0, 255].
+ */
+public class MnistNormalizer {
+    private static final int SIZE = 28;
+    private static final int BOX = 20;
+    /**
+     * Min ink intensity of a pixel which belongs to the digit, lighter pixels are treated as background noise
+     */
+    private static final int INK_THRESHOLD = 16;
+    private static final Map<Long, Weights> WEIGHTS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Normalizes image of a dark digit on a light background
+     *
+     * @param img Image of any size
+     * @return one dimensional array of <i>28 * 28</i> ink intensities
+     */
+    public static float[] normalize(Image img) {
+        float[] out = new float[SIZE * SIZE];
+        normalize(ImageProcessorUtil.toBufferedImage(img), out);
+        return out;
+    }
+
+    /**
+     * Variant of {@link MnistNormalizer#normalize(Image)} which writes result into passed array
+     *
+     * @param img BufferedImage of any size with a dark digit on a light background
+     * @param out array of at least 784 elements to write ink intensities to
+     */
+    public static void normalize(BufferedImage img, float[] out) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        Workspace workspace = WORKSPACE.get();
+        long start = InferenceMetrics.start(Stage.TO_VECTOR);
+        int[] sums = workspace.sums(width * height);
+        ImageProcessorUtil.sumChannels(img, sums);
+        float[] ink = workspace.ink(width * height);
+        for (int i = 0; i < ink.length; i++) {
+            ink[i] = 255 - sums[i] / 3f;
+        }
+        InferenceMetrics.stop(Stage.TO_VECTOR, start);
+        start = InferenceMetrics.start(Stage.NORMALIZE);
+        normalize(ink, width, height, out);
+        InferenceMetrics.stop(Stage.NORMALIZE, start);
+    }
+
+    /**
+     * Normalizes several images in parallel
+     *
+     * @param images Images of any size with dark digits on a light background
+     * @return <i>28 * 28</i> ink intensities of every image in the same order
+     */
+    public static float[][] normalizeAll(List<? extends Image> images) {
+        float[][] out = new float[images.size()][];
+        IntStream.range(0, out.length).parallel().forEach(i -> out[i] = normalize(images.get(i)));
+        return out;
+    }
+
+    /**
+     * Normalizes ink intensities of an image
+     *
+     * @param ink    ink intensities in range [0, 255], row by row
+     * @param width  width of the image
+     * @param height height of the image
+     * @param out    array of at least 784 elements to write ink intensities to
+     */
+    public static void normalize(float[] ink, int width, int height, float[] out) {
+        Arrays.fill(out, 0, SIZE * SIZE, 0);
+        int minX = width;
+        int maxX = -1;
+        int minY = height;
+        int maxY = -1;
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (ink[i] >= INK_THRESHOLD) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0) {
+            return;
+        }
+
+        int cropWidth = maxX - minX + 1;
+        int cropHeight = maxY - minY + 1;
+        double scale = (double) BOX / Math.max(cropWidth, cropHeight);
+        int boxWidth = Math.max(1, (int) Math.round(cropWidth * scale));
+        int boxHeight = Math.max(1, (int) Math.round(cropHeight * scale));
+        Weights columns = weights(cropWidth, boxWidth);
+        Weights rows = weights(cropHeight, boxHeight);
+
+        Workspace workspace = WORKSPACE.get();
+        float[] horizontal = workspace.horizontal(cropHeight * boxWidth);
+        for (int y = 0; y < cropHeight; y++) {
+            int row = (minY + y) * width + minX;
+            for (int x = 0; x < boxWidth; x++) {
+                horizontal[y * boxWidth + x] = columns.apply(ink, row, 1, x);
+            }
+        }
+        float[] box = workspace.box(boxHeight * boxWidth);
+        double mass = 0;
+        double massX = 0;
+        double massY = 0;
+        float peak = 0;
+        for (int y = 0; y < boxHeight; y++) {
+            for (int x = 0; x < boxWidth; x++) {
+                float value = Math.max(0, rows.apply(horizontal, x, boxWidth, y));
+                box[y * boxWidth + x] = value;
+                mass += value;
+                massX += value * x;
+                massY += value * y;
+                peak = Math.max(peak, value);
+            }
+        }
+        if (mass == 0) {
+            return;
+        }
+        float stretch = 255 / peak;
+
+        double center = (SIZE - 1) / 2d;
+        int offsetX = (int) Math.round(center - massX / mass);
+        int offsetY = (int) Math.round(center - massY / mass);
+        for (int y = 0; y < boxHeight; y++) {
+            int targetY = y + offsetY;
+            if (targetY < 0 || targetY >= SIZE) {
+                continue;
+            }
+            for (int x = 0; x < boxWidth; x++) {
+                int targetX = x + offsetX;
+                if (targetX >= 0 && targetX < SIZE) {
+                    out[targetY * SIZE + targetX] = Math.min(255, box[y * boxWidth + x] * stretch);
+                }
+            }
+        }
+    }
+
+    private static Weights weights(int source, int target) {
+        return WEIGHTS.computeIfAbsent((long) source << 32 | target, key -> new Weights(source, target));
+    }
+
+    /**
+     * Filter taps of every target pixel along one axis: the first source pixel and the weights of consecutive pixels
+     */
+    private static final class Weights {
+        private final int[] first;
+        private final int taps;
+        private final float[] weights;
+
+        private Weights(int source, int target) {
+            double ratio = (double) source / target;
+            double radius = Math.max(1, ratio);
+            int maxTaps = (int) Math.ceil(radius) * 2 + 1;
+            first = new int[target];
+            weights = new float[target * maxTaps];
+            taps = maxTaps;
+            for (int i = 0; i < target; i++) {
+                double center = (i + 0.5) * ratio - 0.5;
+                int from = Math.max(0, (int) Math.ceil(center - radius));
+                int to = Math.min(source - 1, (int) Math.floor(center + radius));
+                first[i] = from;
+                double total = 0;
+                for (int j = from; j <= to && j - from < maxTaps; j++) {
+                    double weight = Math.max(0, 1 - Math.abs(j - center) / radius);
+                    weights[i * maxTaps + j - from] = (float) weight;
+                    total += weight;
+                }
+                for (int k = 0; k < maxTaps && total > 0; k++) {
+                    weights[i * maxTaps + k] /= (float) total;
+                }
+                if (total == 0) {
+                    // target pixel falls between source pixels, take the nearest one
+                    first[i] = Math.min(source - 1, Math.max(0, (int) Math.round(center)));
+                    weights[i * maxTaps] = 1;
+                }
+            }
+        }
+
+        /**
+         * Computes target pixel from source pixels <i>data[offset + (first + k) * stride]</i>
+         */
+        private float apply(float[] data, int offset, int stride, int target) {
+            float sum = 0;
+            int base = target * taps;
+            int index = offset + first[target] * stride;
+            int limit = Math.min(taps, (data.length - index + stride - 1) / stride);
+            for (int k = 0; k < limit; k++, index += stride) {
+                sum += weights[base + k] * data[index];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Per thread buffers reused between calls
+     */
+    private static final class Workspace {
+        private int[] sums = new int[0];
+        private float[] ink = new float[0];
+        private float[] horizontal = new float[0];
+        private float[] box = new float[BOX * BOX];
+
+        private int[] sums(int length) {
+            if (sums.length != length) {
+                sums = new int[length];
+            }
+            return sums;
+        }
+
+        private float[] ink(int length) {
+            if (ink.length != length) {
+                ink = new float[length];
+            }
+            return ink;
+        }
+
+        private float[] horizontal(int length) {
+            if (horizontal.length < length) {
+                horizontal = new float[length];
+            }
+            return horizontal;
+        }
+
+        private float[] box(int length) {
+            if (box.length < length) {
+                box = new float[length];
+            }
+            return box;
+        }
+    }
+}
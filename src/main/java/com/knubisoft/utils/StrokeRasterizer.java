@@ -0,0 +1,142 @@
+package com.knubisoft.utils;
+
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws strokes straight into a small grayscale buffer instead of reading an image of the whole canvas.
+ * <p>
+ * The bounding box of the strokes is mapped onto a <i>size * supersampling</i> square with preserved aspect ratio,
+ * strokes are drawn there with antialiasing and the drawing is {@link MnistNormalizer#normalize(float[], int, int, float[])
+ * framed like MNIST digits}, the same way {@link ImageProcessorUtil#preprocess(Image)} frames an image of the canvas.
+ * Only the drawn digit is rendered, so it is framed at <i>supersampling</i> times the model resolution whatever the
+ * size of the canvas. Result values are ink intensities in range [0, 255] like {@link ImageProcessorUtil#preprocess(Image)} returns.
+ * <p>
+ * The rasterizer reuses its buffers, so an instance must not be shared between threads.
+ */
+public class StrokeRasterizer {
+    private final int size;
+    private final int supersampling;
+    private final BufferedImage buffer;
+    private final byte[] data;
+    private final float[] ink;
+
+    /**
+     * Compact list of stroke points stored as <i>x, y</i> pairs in one growable array
+     */
+    public static final class Stroke {
+        private int[] points = new int[32];
+        private int size;
+
+        /**
+         * Appends point to the stroke
+         *
+         * @param x horizontal coordinate on the canvas
+         * @param y vertical coordinate on the canvas
+         */
+        public void add(int x, int y) {
+            if (size * 2 == points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+            points[size * 2] = x;
+            points[size * 2 + 1] = y;
+            size++;
+        }
+
+        /**
+         * @return number of points
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param index index of a point
+         * @return horizontal coordinate of the point
+         */
+        public int x(int index) {
+            return points[index * 2];
+        }
+
+        /**
+         * @param index index of a point
+         * @return vertical coordinate of the point
+         */
+        public int y(int index) {
+            return points[index * 2 + 1];
+        }
+    }
+
+    /**
+     * Creates rasterizer producing <i>size * size</i> pixels
+     *
+     * @param size          side of the result in pixels
+     * @param supersampling number of samples along each side of a result pixel
+     */
+    public StrokeRasterizer(int size, int supersampling) {
+        this.size = size;
+        this.supersampling = supersampling;
+        this.buffer = new BufferedImage(size * supersampling, size * supersampling, BufferedImage.TYPE_BYTE_GRAY);
+        this.data = ((DataBufferByte) buffer.getRaster().getDataBuffer()).getData();
+        this.ink = new float[data.length];
+    }
+
+    /**
+     * Draws strokes and writes ink intensities of the framed digit row by row to passed array
+     *
+     * @param strokes     strokes in canvas coordinates, consecutive points of a stroke are joined with lines
+     * @param strokeWidth width of the pen on the canvas
+     * @param out         array of at least <i>size * size</i> elements, all zeros if nothing is drawn
+     */
+    public void rasterize(List<Stroke> strokes, float strokeWidth, float[] out) {
+        long start = InferenceMetrics.start(Stage.RASTERIZE);
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Stroke stroke : strokes) {
+            for (int i = 0; i < stroke.size() && stroke.size() > 1; i++) {
+                minX = Math.min(minX, stroke.x(i));
+                minY = Math.min(minY, stroke.y(i));
+                maxX = Math.max(maxX, stroke.x(i));
+                maxY = Math.max(maxY, stroke.y(i));
+            }
+        }
+        if (minX > maxX) {
+            Arrays.fill(out, 0, size * size, 0);
+            InferenceMetrics.stop(Stage.RASTERIZE, start);
+            return;
+        }
+
+        int side = size * supersampling;
+        // the pen reaches half of its width beyond the points, one more pixel keeps antialiased edges
+        double margin = strokeWidth / 2 + 1;
+        double extent = Math.max(maxX - minX, maxY - minY) + 2 * margin;
+        double scale = side / extent;
+        Graphics2D g = buffer.createGraphics();
+        g.setColor(Color.black);
+        g.fillRect(0, 0, side, side);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.white);
+        g.scale(scale, scale);
+        g.translate((extent - (maxX - minX)) / 2 - minX, (extent - (maxY - minY)) / 2 - minY);
+        g.setStroke(new BasicStroke(strokeWidth));
+        for (Stroke stroke : strokes) {
+            for (int i = 1; i < stroke.size(); i++) {
+                g.drawLine(stroke.x(i - 1), stroke.y(i - 1), stroke.x(i), stroke.y(i));
+            }
+        }
+        g.dispose();
+
+        for (int i = 0; i < data.length; i++) {
+            ink[i] = data[i] & 0xFF;
+        }
+        MnistNormalizer.normalize(ink, side, side, out);
+        InferenceMetrics.stop(Stage.RASTERIZE, start);
+    }
+}
@@ -0,0 +1,55 @@
+import com.knubisoft.cnn.AsyncAccuracyCalculator;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.Hyperparameters;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.deeplearning4j.earlystopping.saver.InMemoryModelSaver;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncAccuracyCalculatorTest {
+    private static final int SIZE = 28;
+
+    @Test
+    public void returnsScoresOfCompletedEvaluations() throws Exception {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(
+                new Hyperparameters(0.01, 0.9, 10, 4, 4, 8, 8), DataType.FLOAT));
+        network.init();
+        List<AsyncAccuracyCalculator.Result> results = new CopyOnWriteArrayList<>();
+        try (AsyncAccuracyCalculator calculator = new AsyncAccuracyCalculator(new ListDataSetIterator<>(examples(), 10), 20, 10, 1,
+                new InMemoryModelSaver<>(), results::add)) {
+            // the first epoch waits for its evaluation, so the trainer never gets a placeholder score
+            double first = calculator.calculateScore(network);
+            assertEquals(results.get(0).score(), first);
+            for (int epoch = 1; epoch < 4; epoch++) {
+                double score = calculator.calculateScore(network);
+                assertTrue(score >= 0 && score <= 1, "Not a score of a completed evaluation: " + score);
+            }
+            assertNotNull(calculator.modelSaver().getBestModel());
+            assertTrue(calculator.getBestScore() >= 0 && calculator.getBestScore() <= 1);
+        }
+    }
+
+    private static List<DataSet> examples() {
+        List<DataSet> examples = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            INDArray features = Nd4j.zeros(DataType.FLOAT, 1, SIZE * SIZE);
+            features.putScalar(0, (i % 10) * SIZE + 14, 1);
+            INDArray labels = Nd4j.zeros(DataType.FLOAT, 1, 10);
+            labels.putScalar(0, i % 10, 1);
+            examples.add(new DataSet(features, labels));
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,107 @@
+import com.knubisoft.cnn.AugmentingDataSetIterator;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AugmentingDataSetIteratorTest {
+    private static final int SIZE = 28;
+    private static final int EXAMPLES = 40;
+
+    @Test
+    public void augmentsDeterministicallyAndKeepsLabels() throws Exception {
+        List<DataSet> source = strokes();
+        List<float[]> firstEpoch;
+        List<float[]> secondEpoch;
+        try (AugmentingDataSetIterator iterator = new AugmentingDataSetIterator(new ListDataSetIterator<>(source, 8), 3, 2, 123)) {
+            firstEpoch = readEpoch(iterator, source);
+            iterator.reset();
+            secondEpoch = readEpoch(iterator, source);
+        }
+        try (AugmentingDataSetIterator sameSeed = new AugmentingDataSetIterator(new ListDataSetIterator<>(source, 8), 1, 4, 123)) {
+            List<float[]> again = readEpoch(sameSeed, source);
+            for (int i = 0; i < firstEpoch.size(); i++) {
+                assertArrayEquals(firstEpoch.get(i), again.get(i), "Augmentation must depend only on the seed");
+            }
+        }
+
+        for (int i = 0; i < EXAMPLES; i++) {
+            float[] augmented = firstEpoch.get(i);
+            assertFalse(Arrays.equals(source.get(i).getFeatures().toFloatVector(), augmented), "Every example must be distorted");
+            assertFalse(Arrays.equals(augmented, secondEpoch.get(i)), "Every epoch must get new distortions");
+            double ink = 0;
+            for (float pixel : augmented) {
+                assertTrue(pixel >= 0 && pixel <= 1.0001, "Pixel out of range: " + pixel);
+                ink += pixel;
+            }
+            assertTrue(ink > 0, "Digits must not be moved out of the image");
+        }
+    }
+
+    @Test
+    public void assemblesBatchesOfAnySize() throws Exception {
+        List<DataSet> source = strokes();
+        List<float[]> expected;
+        try (AugmentingDataSetIterator iterator = new AugmentingDataSetIterator(new ListDataSetIterator<>(source, 8), 2, 2, 7)) {
+            expected = readEpoch(iterator, source);
+        }
+        try (AugmentingDataSetIterator iterator = new AugmentingDataSetIterator(new ListDataSetIterator<>(source, 8), 2, 2, 7)) {
+            List<float[]> examples = new ArrayList<>();
+            for (int num : new int[]{3, 13, 8, 100}) {
+                DataSet batch = iterator.next(num);
+                assertEquals(Math.min(num, EXAMPLES - examples.size()), batch.numExamples());
+                for (int i = 0; i < batch.numExamples(); i++) {
+                    assertEquals((examples.size() + i) % 10, batch.getLabels().getRow(i).argMax().getInt(0));
+                }
+                examples.addAll(Arrays.asList(batch.getFeatures().toFloatMatrix()));
+            }
+            assertFalse(iterator.hasNext());
+            for (int i = 0; i < EXAMPLES; i++) {
+                assertArrayEquals(expected.get(i), examples.get(i), "Distortions must not depend on the requested sizes");
+            }
+        }
+    }
+
+    private static List<float[]> readEpoch(AugmentingDataSetIterator iterator, List<DataSet> source) {
+        List<float[]> examples = new ArrayList<>();
+        int example = 0;
+        while (iterator.hasNext()) {
+            DataSet batch = iterator.next();
+            for (int i = 0; i < batch.numExamples(); i++, example++) {
+                assertEquals(example % 10, batch.getLabels().getRow(i).argMax().getInt(0), "Labels must keep the source order");
+            }
+            examples.addAll(Arrays.asList(batch.getFeatures().toFloatMatrix()));
+        }
+        assertEquals(EXAMPLES, example);
+        return examples;
+    }
+
+    /**
+     * Every image has a vertical stroke at a position given by its label
+     */
+    private static List<DataSet> strokes() {
+        List<DataSet> examples = new ArrayList<>();
+        for (int i = 0; i < EXAMPLES; i++) {
+            int label = i % 10;
+            INDArray features = Nd4j.zeros(1, SIZE * SIZE);
+            for (int y = 6; y < 22; y++) {
+                features.putScalar(0, y * SIZE + 9 + label, 1);
+                features.putScalar(0, y * SIZE + 10 + label, 0.5);
+            }
+            INDArray labels = Nd4j.zeros(1, 10);
+            labels.putScalar(0, label, 1);
+            examples.add(new DataSet(features, labels));
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,45 @@
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.scoring.BulkScorer;
+import com.knubisoft.scoring.ScoringReport;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BulkScorerTest {
+
+    @Test
+    @SneakyThrows
+    public void scoresListedImages(@TempDir Path dir) {
+        try (ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork()) {
+            cnn.init();
+            List<String> files = new ArrayList<>();
+            for (int digit = 0; digit < 10; digit++) {
+                files.add(Path.of("src/test/resources/" + digit + ".png").toAbsolutePath().toString());
+            }
+            files.add("missing.png");
+            Path list = Files.write(dir.resolve("images.txt"), files);
+            Path csv = dir.resolve("scores.csv");
+
+            ScoringReport report = new BulkScorer(cnn, 3, 4).score(list, csv);
+
+            assertEquals(10, report.scored());
+            assertEquals(1, report.failed());
+            List<String> lines = Files.readAllLines(csv);
+            assertEquals("file,class,p0,p1,p2,p3,p4,p5,p6,p7,p8,p9", lines.get(0));
+            assertEquals(11, lines.size());
+            for (String line : lines.subList(1, lines.size())) {
+                String[] columns = line.split(",");
+                String expected = Path.of(columns[0]).getFileName().toString().split(".png")[0];
+                assertEquals(expected, columns[1], "Failed to recognize digit in bulk scoring!");
+                assertEquals(12, columns.length);
+            }
+        }
+    }
+}
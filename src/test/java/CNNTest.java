@@ -1,17 +1,39 @@
+import com.knubisoft.cnn.BatchingPredictor;
 import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
 import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.PredictionCache;
+import com.knubisoft.cnn.ReplicaPool;
 import com.knubisoft.utils.ImageProcessorUtil;
 import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CNNTest {
     private static final ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork();
@@ -21,6 +43,11 @@ public class CNNTest {
         cnn.init();
     }
 
+    @AfterAll
+    public static void closeCNN() {
+        cnn.close();
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
             "src/test/resources/1.png",
@@ -41,12 +68,208 @@ public class CNNTest {
         assertEquals(expected, predicted, "Failed to recognize digit from test images!");
     }
 
+    @Test
+    public void correctBatchPredictionsCNN() {
+        List<LabeledImage> images = new ArrayList<>();
+        for (int digit = 0; digit < 10; digit++) {
+            images.add(prepareLabeledImage(new File("src/test/resources/" + digit + ".png")));
+        }
+        int[] predicted = cnn.predictBatch(images);
+        for (int digit = 0; digit < 10; digit++) {
+            assertEquals(digit, predicted[digit], "Failed to recognize digit from test images in batch!");
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void correctBatchingPredictorCNN() {
+        try (BatchingPredictor predictor = new BatchingPredictor(cnn, 4, 20, TimeUnit.MILLISECONDS)) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int digit = 0; digit < 10; digit++) {
+                futures.add(predictor.submit(prepareLabeledImage(new File("src/test/resources/" + digit + ".png"))));
+            }
+            for (int digit = 0; digit < 10; digit++) {
+                assertEquals(digit, futures.get(digit).get(10, TimeUnit.SECONDS), "Failed to recognize digit submitted to batching predictor!");
+            }
+        }
+    }
+
+    @Test
+    public void cachedPredictionsCNN() {
+        try (ConvolutionalNeuralNetwork cachedCnn = new ConvolutionalNeuralNetwork()) {
+            cachedCnn.init();
+            PredictionCache cache = cachedCnn.enablePredictionCache(5);
+            List<LabeledImage> images = new ArrayList<>();
+            for (int digit = 0; digit < 10; digit++) {
+                images.add(prepareLabeledImage(new File("src/test/resources/" + digit + ".png")));
+            }
+            for (int digit = 0; digit < 10; digit++) {
+                assertEquals(digit, cachedCnn.predict(images.get(digit)), "Failed to recognize digit with prediction cache!");
+            }
+            for (int digit = 5; digit < 10; digit++) {
+                assertArrayEquals(cnn.predictProbabilities(images.get(digit)), cachedCnn.predictProbabilities(images.get(digit)), 1e-6);
+                assertEquals(digit, cachedCnn.predictTopK(images.get(digit), 3)[0], "Top class differs from the predicted one!");
+            }
+            assertEquals(10, cache.getHits());
+            assertEquals(10, cache.getMisses());
+            assertEquals(5, cache.getEvictions());
+            assertEquals(5, cache.size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentPredictionsCNN() {
+        ConvolutionalNeuralNetwork singleThreaded = new ConvolutionalNeuralNetwork(1);
+        singleThreaded.init();
+        ConvolutionalNeuralNetwork concurrent = new ConvolutionalNeuralNetwork(4);
+        concurrent.init();
+        List<LabeledImage> images = new ArrayList<>();
+        double[][] expected = new double[10][];
+        for (int digit = 0; digit < 10; digit++) {
+            images.add(prepareLabeledImage(new File("src/test/resources/" + digit + ".png")));
+            expected[digit] = singleThreaded.predictProbabilities(images.get(digit));
+        }
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int client = 0; client < 8; client++) {
+                futures.add(clients.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        int digit = i % 10;
+                        assertArrayEquals(expected[digit], concurrent.predictProbabilities(images.get(digit)),
+                                "Concurrent prediction differs from the single threaded one!");
+                        assertEquals(digit, concurrent.predict(images.get(digit)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            clients.shutdownNow();
+            singleThreaded.close();
+            concurrent.close();
+        }
+    }
+
+    @Test
+    public void doublePrecisionMatchesFloatCNN() {
+        try (ConvolutionalNeuralNetwork doubleCnn = new ConvolutionalNeuralNetwork(1, DataType.DOUBLE)) {
+            doubleCnn.init();
+            for (int digit = 0; digit < 10; digit++) {
+                LabeledImage image = prepareLabeledImage(new File("src/test/resources/" + digit + ".png"));
+                assertArrayEquals(cnn.predictProbabilities(image), doubleCnn.predictProbabilities(image), 1e-4);
+                assertEquals(digit, doubleCnn.predict(image));
+            }
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void closeStopsReplicaThreads() {
+        LabeledImage image = prepareLabeledImage(new File("src/test/resources/4.png"));
+        List<Thread> running = replicaThreads();
+        ConvolutionalNeuralNetwork closed = new ConvolutionalNeuralNetwork(2);
+        closed.init();
+        List<Thread> started = replicaThreads().stream().filter(thread -> !running.contains(thread)).toList();
+        closed.close();
+
+        for (Thread thread : started) {
+            thread.join(10_000);
+        }
+        assertEquals(2, started.size());
+        assertTrue(started.stream().noneMatch(Thread::isAlive), "Replica threads are running after close!");
+        assertThrows(IllegalStateException.class, () -> closed.predict(image));
+        assertEquals(4, cnn.predict(image));
+    }
+
+    @Test
+    @SneakyThrows
+    public void closedBatchingPredictorCompletesEveryPrediction() {
+        LabeledImage image = prepareLabeledImage(new File("src/test/resources/5.png"));
+        ExecutorService submitters = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 20; round++) {
+                BatchingPredictor predictor = new BatchingPredictor(cnn, 8, 1, TimeUnit.MILLISECONDS);
+                List<Future<CompletableFuture<double[]>>> submitted = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    submitted.add(submitters.submit(() -> predictor.submitForProbabilities(image)));
+                }
+                predictor.close();
+                for (Future<CompletableFuture<double[]>> future : submitted) {
+                    try {
+                        future.get().get(10, TimeUnit.SECONDS);
+                    } catch (ExecutionException e) {
+                        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+                    }
+                }
+            }
+        } finally {
+            submitters.shutdown();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void batchingPredictorRejectsImageOfWrongSize() {
+        LabeledImage image = prepareLabeledImage(new File("src/test/resources/5.png"));
+        try (BatchingPredictor predictor = new BatchingPredictor(cnn, 4, 50, TimeUnit.MILLISECONDS)) {
+            CompletableFuture<Integer> wrongSize = predictor.submit(new LabeledImage(new float[27 * 27]));
+            CompletableFuture<Integer> correct = predictor.submit(image);
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> wrongSize.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+            assertEquals(5, correct.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void batchingPredictorSurvivesErrorInBatch() {
+        LabeledImage image = prepareLabeledImage(new File("src/test/resources/5.png"));
+        ConvolutionalNeuralNetwork failing = new ConvolutionalNeuralNetwork() {
+            private boolean failed;
+
+            @Override
+            public double[][] predictBatchProbabilities(List<LabeledImage> imgs) {
+                if (!failed) {
+                    failed = true;
+                    throw new AssertionError("Forward pass failed");
+                }
+                return cnn.predictBatchProbabilities(imgs);
+            }
+        };
+        try (BatchingPredictor predictor = new BatchingPredictor(failing, 4, 1, TimeUnit.MILLISECONDS)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> predictor.submit(image).get(10, TimeUnit.SECONDS));
+            assertInstanceOf(AssertionError.class, e.getCause());
+            assertEquals(5, predictor.submit(image).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void replicaPoolKeepsServingAfterError() {
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(new File("resources/model.bin"));
+        INDArray failingInput = (INDArray) Proxy.newProxyInstance(INDArray.class.getClassLoader(), new Class<?>[]{INDArray.class},
+                (proxy, method, args) -> {
+                    throw new AssertionError("Broken input");
+                });
+        try (ReplicaPool pool = new ReplicaPool(network, 1, Nd4j.zeros(1, 28 * 28))) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> pool.output(failingInput));
+            assertInstanceOf(AssertionError.class, e.getCause());
+            assertEquals(1, pool.output(Nd4j.zeros(1, 28 * 28)).rows());
+        }
+    }
+
     @SneakyThrows
     private LabeledImage prepareLabeledImage(File imageFile) {
-        BufferedImage image = ImageIO.read(imageFile);
-        Image scaled = ImageProcessorUtil.scale(image);
-        BufferedImage scaledBuffered = ImageProcessorUtil.toBufferedImage(scaled);
-        double[] scaledPixels = ImageProcessorUtil.toVector(scaledBuffered);
-        return new LabeledImage(scaledPixels);
+        return new LabeledImage(ImageProcessorUtil.preprocess(ImageIO.read(imageFile)));
+    }
+
+    private static List<Thread> replicaThreads() {
+        return Thread.getAllStackTraces().keySet().stream().
+                filter(thread -> thread.getName().startsWith("inference-replica-")).
+                toList();
     }
 }
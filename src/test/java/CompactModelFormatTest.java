@@ -0,0 +1,58 @@
+import com.knubisoft.cnn.CompactModelFormat;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.Hyperparameters;
+import com.knubisoft.cnn.JavaInferenceEngine;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompactModelFormatTest {
+    private static final File MODEL_FILE = new File("resources/model.bin");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void compactModelRestoresSameParameters() throws IOException {
+        MultiLayerNetwork original = ModelSerializer.restoreMultiLayerNetwork(MODEL_FILE);
+        File compactFile = tempDir.resolve("model.cnn").toFile();
+        CompactModelFormat.write(original, compactFile);
+
+        MultiLayerNetwork restored = CompactModelFormat.read(compactFile, original.getLayerWiseConfigurations());
+        assertTrue(compactFile.length() < MODEL_FILE.length());
+
+        assertEquals(original.params(), restored.params());
+        INDArray input = Nd4j.rand(4, 28 * 28);
+        assertEquals(original.output(input), restored.output(input));
+
+        float[] pixels = input.getRow(0).toFloatVector();
+        assertEquals(original.predict(input)[0], JavaInferenceEngine.loadCompact(compactFile).predict(pixels));
+
+        assertFalse(CompactModelFormat.isExportOf(compactFile, MODEL_FILE));
+        CompactModelFormat.write(original, compactFile, MODEL_FILE);
+        assertTrue(CompactModelFormat.isExportOf(compactFile, MODEL_FILE));
+        File replaced = tempDir.resolve("model.bin").toFile();
+        Files.copy(MODEL_FILE.toPath(), replaced.toPath());
+        assertTrue(replaced.setLastModified(MODEL_FILE.lastModified() + 1000));
+        assertFalse(CompactModelFormat.isExportOf(compactFile, replaced));
+        assertEquals(original.params(), CompactModelFormat.read(compactFile, original.getLayerWiseConfigurations()).params());
+
+        MultiLayerConfiguration narrower = ConvolutionalNeuralNetwork.buildCNNConf(new Hyperparameters(0.01, 0.9, 20, 6, 8, 16, 12), DataType.FLOAT);
+        assertThrows(IOException.class, () -> CompactModelFormat.read(compactFile, narrower));
+    }
+}
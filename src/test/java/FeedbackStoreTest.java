@@ -0,0 +1,109 @@
+import com.knubisoft.cnn.FeedbackStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FeedbackStoreTest {
+    private static final int PIXELS = 28 * 28;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void storesCompactSamplesAcrossReopening() throws IOException {
+        Random random = new Random(7);
+        float[][] digits = new float[20][];
+        try (FeedbackStore store = FeedbackStore.open(dir)) {
+            for (int i = 0; i < digits.length; i++) {
+                digits[i] = stroke(random);
+                assertEquals(i, store.append(digits[i], i % 10, i % 3 == 0 ? (i + 1) % 10 : i % 10));
+            }
+        }
+        // a digit is a few hundred bytes, less than half of its raw pixels
+        assertTrue(Files.size(dir.resolve("feedback.log")) < digits.length * PIXELS / 2);
+
+        try (FeedbackStore store = FeedbackStore.open(dir)) {
+            assertEquals(digits.length, store.size());
+            assertEquals(7, store.corrections());
+            assertArrayEquals(new int[]{2, 2, 2, 2, 2, 2, 2, 2, 2, 2}, store.labelCounts());
+            FeedbackStore.Sample sample = store.read(3);
+            assertEquals(3, sample.label());
+            assertTrue(sample.isCorrection());
+            assertArrayEquals(rounded(digits[3]), sample.pixels());
+
+            List<FeedbackStore.Sample> latest = store.latest(5);
+            assertEquals(5, latest.size());
+            assertEquals(9, latest.get(4).label());
+            assertFalse(latest.get(4).isCorrection());
+            assertArrayEquals(rounded(digits[19]), latest.get(4).pixels());
+            assertThrows(IllegalArgumentException.class, () -> store.append(new float[PIXELS], 10, 1));
+        }
+    }
+
+    @Test
+    public void recoversFromTornAppend() throws IOException {
+        Random random = new Random(11);
+        float[] last = stroke(random);
+        try (FeedbackStore store = FeedbackStore.open(dir)) {
+            store.append(stroke(random), 1, 7);
+            store.append(last, 4, 4);
+        }
+        Path log = dir.resolve("feedback.log");
+        long size = Files.size(log);
+        // a record was half written to the log and never reached the index
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{16, 3, 0, 0, 120, 1, 5}));
+        }
+
+        try (FeedbackStore store = FeedbackStore.open(dir)) {
+            assertEquals(2, store.size());
+            assertEquals(size, Files.size(log));
+            store.append(last, 9, 4);
+        }
+        Files.delete(dir.resolve("feedback.idx"));
+
+        try (FeedbackStore store = FeedbackStore.open(dir)) {
+            assertEquals(3, store.size());
+            assertArrayEquals(new int[]{0, 1, 0, 0, 1, 0, 0, 0, 0, 1}, store.labelCounts());
+            assertArrayEquals(rounded(last), store.read(2).pixels());
+            assertEquals(2, store.corrections());
+        }
+    }
+
+    /**
+     * Random antialiased line, blank elsewhere like a drawn digit
+     */
+    private static float[] stroke(Random random) {
+        float[] pixels = new float[PIXELS];
+        int x = 4 + random.nextInt(20);
+        for (int y = 4; y < 24; y++) {
+            x = Math.min(Math.max(x + random.nextInt(3) - 1, 1), 26);
+            pixels[y * 28 + x - 1] = random.nextFloat() * 120;
+            pixels[y * 28 + x] = 255;
+            pixels[y * 28 + x + 1] = random.nextFloat() * 120;
+        }
+        return pixels;
+    }
+
+    private static float[] rounded(float[] pixels) {
+        float[] rounded = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            rounded[i] = Math.round(pixels[i]);
+        }
+        return rounded;
+    }
+}
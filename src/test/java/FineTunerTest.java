@@ -0,0 +1,107 @@
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.FeedbackStore;
+import com.knubisoft.cnn.FineTuner;
+import com.knubisoft.cnn.FineTuningOptions;
+import com.knubisoft.cnn.FineTuningReport;
+import com.knubisoft.cnn.Hyperparameters;
+import com.knubisoft.cnn.ModelInput;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FineTunerTest {
+    private static final int SIZE = 28;
+    private static final Hyperparameters SMALL = new Hyperparameters(0.01, 0.9, 20, 6, 8, 16, 12);
+
+    @Test
+    public void learnsFeedbackWithoutChangingOriginalNetwork() {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(SMALL, DataType.FLOAT));
+        network.init();
+        INDArray params = network.params().dup();
+        List<FeedbackStore.Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            samples.add(new FeedbackStore.Sample(digit(i % 10), i % 10, -1, i));
+        }
+        FineTuningOptions options = FineTuningOptions.builder().
+                epochs(10).
+                learningRate(0.01).
+                batchSize(20).
+                maxAccuracyDrop(1).
+                seed(5).
+                build();
+
+        FineTuningReport report = new FineTuner(options, new ListDataSetIterator<>(blocks(100), 20), new ListDataSetIterator<>(blocks(50), 10))
+                .run(network, samples);
+
+        assertEquals(40, report.samples());
+        assertEquals(0, report.corrections());
+        assertEquals(100, report.replaySamples());
+        assertTrue(report.accepted());
+        assertTrue(report.feedbackAfter() > report.feedbackBefore(), report.toString());
+        assertTrue(report.accuracyAfter() > report.accuracyBefore(), report.toString());
+        // feedback is the same digits as the test data, prepared the way they are served
+        assertEquals(report.accuracyAfter(), report.feedbackAfter(), 1e-9);
+        assertNotSame(network, report.network());
+        assertEquals(params, network.params());
+    }
+
+    @Test
+    public void rejectsModelWhichLostAccuracy() {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(SMALL, DataType.FLOAT));
+        network.init();
+        List<FeedbackStore.Sample> samples = List.of(new FeedbackStore.Sample(digit(3), 3, 5, 0));
+        FineTuningOptions options = FineTuningOptions.builder().
+                epochs(1).
+                maxAccuracyDrop(-1).
+                build();
+
+        FineTuningReport report = new FineTuner(options, new ListDataSetIterator<>(blocks(20), 20), new ListDataSetIterator<>(blocks(20), 10))
+                .run(network, samples);
+
+        assertFalse(report.accepted());
+        assertEquals(1, report.corrections());
+        assertEquals(20, report.replaySamples());
+    }
+
+    /**
+     * Image of a square outline with a bright block inside at a position given by its label, framed like MNIST digits:
+     * the outline fills the 20x20 box in the middle
+     */
+    private static float[] digit(int label) {
+        float[] pixels = new float[SIZE * SIZE];
+        for (int i = 4; i < 24; i++) {
+            pixels[4 * SIZE + i] = 255;
+            pixels[23 * SIZE + i] = 255;
+            pixels[i * SIZE + 4] = 255;
+            pixels[i * SIZE + 23] = 255;
+        }
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 3; x++) {
+                pixels[(label / 5 * 8 + 7 + y) * SIZE + label % 5 * 3 + 6 + x] = 255;
+            }
+        }
+        return pixels;
+    }
+
+    private static List<DataSet> blocks(int count) {
+        List<DataSet> examples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            INDArray labels = Nd4j.zeros(1, 10);
+            labels.putScalar(0, i % 10, 1);
+            examples.add(new DataSet(Nd4j.create(ModelInput.prepare(digit(i % 10)), new long[]{1, SIZE * SIZE}, 'c'), labels));
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,85 @@
+import com.knubisoft.cnn.HyperparameterSearch;
+import com.knubisoft.cnn.SearchOptions;
+import com.knubisoft.cnn.SearchReport;
+import com.knubisoft.cnn.SuccessiveHalving;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HyperparameterSearchTest {
+    private static final int SIZE = 28;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void prunesTrialsBehindAtRungs() {
+        SuccessiveHalving halving = new SuccessiveHalving(1, 3);
+        assertTrue(halving.report(1, 0.5), "The first trial at a rung must continue");
+        assertFalse(halving.report(1, 0.4));
+        assertTrue(halving.report(1, 0.6));
+        assertTrue(halving.report(2, 0.1), "Epochs between rungs must not prune");
+        assertTrue(halving.report(3, 0.7));
+        assertFalse(halving.report(3, 0.6));
+    }
+
+    @Test
+    public void findsBestConfigurationAndSavesIt() throws Exception {
+        SearchOptions options = SearchOptions.builder().
+                learningRates(List.of(0.01, 0.05)).
+                momentums(List.of(0.9)).
+                batchSizes(List.of(20)).
+                conv1Channels(List.of(4, 8)).
+                conv2Channels(List.of(8)).
+                dense1Units(List.of(16, 32)).
+                dense2Units(List.of(16)).
+                trials(4).
+                parallelTrials(2).
+                maxEpochs(3).
+                outputDir(dir).
+                build();
+
+        SearchReport report = new HyperparameterSearch(options, (train, batchSize) ->
+                new ListDataSetIterator<>(blocks(train ? 200 : 50), batchSize)).run();
+
+        assertEquals(4, report.trials().size());
+        assertNotNull(report.best());
+        assertTrue(report.trainedEpochs() <= report.budgetEpochs());
+        assertEquals(4, Files.readAllLines(dir.resolve("trials.jsonl")).size());
+        assertTrue(Files.exists(dir.resolve("best-model.bin")));
+        assertEquals(report.best().toJson(), Files.readString(dir.resolve("best-hyperparameters.json")));
+    }
+
+    /**
+     * Every image has a bright square at a position given by its label
+     */
+    private static List<DataSet> blocks(int count) {
+        List<DataSet> examples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int label = i % 10;
+            INDArray features = Nd4j.zeros(1, SIZE * SIZE);
+            for (int y = 0; y < 6; y++) {
+                for (int x = 0; x < 6; x++) {
+                    features.putScalar(0, (label / 5 * 12 + 4 + y) * SIZE + label % 5 * 5 + 1 + x, 1);
+                }
+            }
+            INDArray labels = Nd4j.zeros(1, 10);
+            labels.putScalar(0, label, 1);
+            examples.add(new DataSet(features, labels));
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,112 @@
+import com.knubisoft.cnn.IdxDataSetIterator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class IdxDataSetIteratorTest {
+    private static final int EXAMPLES = 50;
+    private static final int SIZE = 28;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void iteratesShuffledExamplesFromGzippedFiles() throws IOException {
+        writeMnist("t10k");
+        List<Integer> firstEpoch;
+        try (IdxDataSetIterator iterator = IdxDataSetIterator.mnist(dir, false, 16, 40, 123)) {
+            firstEpoch = readEpoch(iterator);
+            assertEquals(40, firstEpoch.size());
+            assertEquals(40, new HashSet<>(firstEpoch).size());
+
+            iterator.reset();
+            assertEquals(new HashSet<>(firstEpoch), new HashSet<>(readEpoch(iterator)));
+        }
+        try (IdxDataSetIterator sameSeed = IdxDataSetIterator.mnist(dir, false, 16, 40, 123)) {
+            assertEquals(firstEpoch, readEpoch(sameSeed));
+        }
+    }
+
+    @Test
+    public void mixesBatchesOfAnySizeAndResetsWhilePrefetching() throws IOException {
+        writeMnist("train");
+        try (IdxDataSetIterator iterator = IdxDataSetIterator.mnist(dir, true, 16, EXAMPLES, 7)) {
+            // every reset stops the prefetch thread while it fills or hands over slots, none of them may get lost
+            for (int i = 0; i < 100; i++) {
+                iterator.next();
+                iterator.reset();
+            }
+            List<Integer> examples = new ArrayList<>();
+            DataSet first = iterator.next(5);
+            assertEquals(5, first.numExamples());
+            examples.addAll(examplesOf(first));
+            examples.addAll(examplesOf(iterator.next()));
+            examples.addAll(readEpoch(iterator));
+            assertEquals(EXAMPLES, examples.size());
+            assertEquals(EXAMPLES, new HashSet<>(examples).size());
+
+            iterator.reset();
+            assertEquals(EXAMPLES, iterator.next(EXAMPLES + 10).numExamples());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    /**
+     * Every example is encoded in its first pixel, its label is the example index modulo 10
+     */
+    private static List<Integer> readEpoch(IdxDataSetIterator iterator) {
+        List<Integer> examples = new ArrayList<>();
+        while (iterator.hasNext()) {
+            examples.addAll(examplesOf(iterator.next()));
+        }
+        assertFalse(iterator.hasNext());
+        return examples;
+    }
+
+    private static List<Integer> examplesOf(DataSet batch) {
+        List<Integer> examples = new ArrayList<>();
+        for (int i = 0; i < batch.numExamples(); i++) {
+            int example = Math.round(batch.getFeatures().getFloat(i, 0) * 255);
+            assertEquals(1, batch.getLabels().getFloat(i, example % 10));
+            assertEquals(1, batch.getLabels().getRow(i).sumNumber().intValue());
+            examples.add(example);
+        }
+        return examples;
+    }
+
+    private void writeMnist(String prefix) throws IOException {
+        try (DataOutputStream images = gzip(prefix + "-images-idx3-ubyte.gz");
+             DataOutputStream labels = gzip(prefix + "-labels-idx1-ubyte.gz")) {
+            images.writeInt(2051);
+            images.writeInt(EXAMPLES);
+            images.writeInt(SIZE);
+            images.writeInt(SIZE);
+            labels.writeInt(2049);
+            labels.writeInt(EXAMPLES);
+            for (int i = 0; i < EXAMPLES; i++) {
+                byte[] pixels = new byte[SIZE * SIZE];
+                pixels[0] = (byte) i;
+                images.write(pixels);
+                labels.writeByte(i % 10);
+            }
+        }
+    }
+
+    private DataOutputStream gzip(String name) throws IOException {
+        OutputStream out = Files.newOutputStream(dir.resolve(name));
+        return new DataOutputStream(new GZIPOutputStream(out));
+    }
+}
@@ -0,0 +1,72 @@
+import com.knubisoft.utils.ImageProcessorUtil;
+import com.knubisoft.utils.MnistNormalizer;
+import com.mortennobel.imagescaling.ResampleFilters;
+import com.mortennobel.imagescaling.ResampleOp;
+import lombok.SneakyThrows;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ImageProcessorUtilTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "src/test/resources/0.png",
+            "src/test/resources/3.png",
+            "src/test/resources/7.png",
+            "src/test/resources/8.png"})
+    @SneakyThrows
+    public void fusedPreprocessingMatchesColorBasedConversion(String filePath) {
+        BufferedImage image = ImageIO.read(new File(filePath));
+        assertArrayEquals(referenceToVector(referenceScale(image)),
+                ImageProcessorUtil.toVector(ImageProcessorUtil.toBufferedImage(ImageProcessorUtil.scale(image))));
+
+        float[] expected = new float[28 * 28];
+        MnistNormalizer.normalize(referenceInk(image), image.getWidth(), image.getHeight(), expected);
+        assertArrayEquals(expected, ImageProcessorUtil.preprocess(image));
+
+        float[] floats = new float[expected.length];
+        for (int i = 0; i < 2; i++) {
+            ImageProcessorUtil.preprocess(image, floats);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j], floats[j], "Pixel " + j + " differs");
+            }
+        }
+    }
+
+    private static BufferedImage referenceScale(BufferedImage img) {
+        ResampleOp resize = new ResampleOp(28, 28);
+        resize.setFilter(ResampleFilters.getLanczos3Filter());
+        return resize.filter(img, null);
+    }
+
+    private static float[] referenceInk(BufferedImage img) {
+        float[] ink = new float[img.getWidth() * img.getHeight()];
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                Color color = new Color(img.getRGB(x, y), true);
+                ink[y * img.getWidth() + x] = 255 - (color.getRed() + color.getGreen() + color.getBlue()) / 3f;
+            }
+        }
+        return ink;
+    }
+
+    private static float[] referenceToVector(BufferedImage img) {
+        float[] imgGray = new float[img.getWidth() * img.getHeight()];
+        int index = 0;
+        for (int i = 0; i < img.getWidth(); i++) {
+            for (int j = 0; j < img.getHeight(); j++) {
+                Color color = new Color(img.getRGB(j, i), true);
+                imgGray[index++] = (float) (255 - (color.getRed() + color.getGreen() + color.getBlue()) / 3d);
+            }
+        }
+        return imgGray;
+    }
+}
@@ -0,0 +1,93 @@
+import com.knubisoft.metrics.InferenceMetrics;
+import com.knubisoft.metrics.InferenceMetrics.Stage;
+import com.knubisoft.metrics.LatencyHistogram;
+import com.knubisoft.metrics.StageStatistics;
+import com.knubisoft.utils.ImageProcessorUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InferenceMetricsTest {
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    public void disableMetrics() {
+        InferenceMetrics.setEnabled(false);
+        InferenceMetrics.reset();
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new Random(123).longs(100_000, 1, 50_000_000).sorted().toArray();
+        for (int i = values.length - 1; i >= 0; i--) {
+            histogram.record(values[i]);
+        }
+        double[] percentiles = {0, 50, 99, 99.9, 100};
+        long[] actual = histogram.percentiles(percentiles);
+        for (int i = 0; i < percentiles.length; i++) {
+            long expected = values[Math.max(0, (int) Math.ceil(percentiles[i] / 100 * values.length) - 1)];
+            assertTrue(actual[i] >= expected && actual[i] <= expected * 1.016,
+                    "p" + percentiles[i] + " is " + actual[i] + ", expected " + expected);
+        }
+        assertEquals(values[values.length - 1], histogram.max());
+        assertEquals(values.length, histogram.count());
+    }
+
+    @Test
+    public void measuresStagesOnlyWhenEnabled() throws Exception {
+        BufferedImage image = ImageIO.read(new File("src/test/resources/3.png"));
+        ImageProcessorUtil.preprocess(image);
+        assertTrue(InferenceMetrics.statistics().isEmpty(), "Disabled metrics must not record stages");
+
+        InferenceMetrics.setEnabled(true);
+        for (int i = 0; i < 5; i++) {
+            ImageProcessorUtil.preprocess(image);
+        }
+        for (Stage stage : new Stage[]{Stage.TO_BUFFERED_IMAGE, Stage.TO_VECTOR, Stage.NORMALIZE}) {
+            StageStatistics statistics = InferenceMetrics.statistics(stage);
+            assertEquals(5, statistics.getCount(), stage.label());
+            assertTrue(statistics.getP50Micros() <= statistics.getP99Micros() && statistics.getP99Micros() <= statistics.getMaxMicros());
+        }
+        assertEquals(0, InferenceMetrics.statistics(Stage.FORWARD_PASS).getCount());
+        assertTrue(InferenceMetrics.statusLine().contains("normalize"));
+    }
+
+    @Test
+    public void exposesStatisticsOverJmx() throws Exception {
+        InferenceMetrics.registerMBean();
+        InferenceMetrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(InferenceMetrics.OBJECT_NAME);
+
+        server.setAttribute(name, new Attribute("Enabled", true));
+        assertTrue(InferenceMetrics.isEnabled());
+        ImageProcessorUtil.preprocess(ImageIO.read(new File("src/test/resources/5.png")));
+        CompositeData[] stages = (CompositeData[]) server.getAttribute(name, "Stages");
+        assertEquals(3, stages.length);
+        assertEquals("toBufferedImage", stages[0].get("stage"));
+        assertEquals(1L, stages[0].get("count"));
+
+        Path file = dir.resolve("metrics.txt");
+        server.invoke(name, "dump", new Object[]{file.toString()}, new String[]{String.class.getName()});
+        String report = Files.readString(file);
+        assertTrue(report.contains("toVector") && report.contains("p99.9"), report);
+    }
+}
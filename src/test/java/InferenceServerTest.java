@@ -0,0 +1,133 @@
+import com.knubisoft.cnn.CompactModelFormat;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.server.InferenceServer;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InferenceServerTest {
+    private static final ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork();
+    private static final HttpClient client = HttpClient.newHttpClient();
+    private static InferenceServer server;
+    private static int port;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        cnn.init();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new InferenceServer(cnn, port, 4);
+        server.start();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        server.close();
+        cnn.close();
+    }
+
+    @Test
+    public void predictsPng() throws IOException, InterruptedException {
+        HttpResponse<String> response = postPng(Files.readAllBytes(Path.of("src/test/resources/3.png")));
+
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().startsWith("{\"class\":3,"), response.body());
+    }
+
+    @Test
+    public void rejectsTruncatedPng() throws IOException, InterruptedException {
+        byte[] png = Files.readAllBytes(Path.of("src/test/resources/3.png"));
+
+        HttpResponse<String> response = postPng(Arrays.copyOf(png, png.length / 2));
+
+        assertEquals(400, response.statusCode());
+        assertTrue(response.body().startsWith("{\"error\":"), response.body());
+    }
+
+    @Test
+    public void describesFailedModelOperation() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/model/rollback")).
+                POST(HttpRequest.BodyPublishers.noBody()).
+                build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(409, response.statusCode());
+        assertEquals("{\"error\":\"There is no previous model version\"}", response.body());
+    }
+
+    /**
+     * Serves the compact model with the Java engine in another JVM whose classpath has no native ND4J backend,
+     * so any use of ND4J there fails
+     */
+    @Test
+    public void servesJavaEngineWithoutNd4j(@TempDir Path dir) throws IOException, InterruptedException {
+        Files.createDirectories(dir.resolve("resources"));
+        CompactModelFormat.write(ModelSerializer.restoreMultiLayerNetwork(new File("resources/model.bin")),
+                dir.resolve("resources/model.cnn").toFile());
+        String classpath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator)).
+                filter(entry -> !entry.contains("nd4j-native") && !entry.contains("openblas")).
+                map(entry -> new File(entry).getAbsolutePath()).
+                collect(Collectors.joining(File.pathSeparator));
+        Process process = new ProcessBuilder(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Djava.awt.headless=true", "-cp", classpath, JavaEngineServer.class.getName(),
+                new File("src/test/resources/3.png").getAbsolutePath())).
+                directory(dir.toFile()).
+                redirectErrorStream(true).
+                start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+        assertEquals(0, process.waitFor(), output);
+        assertTrue(output.contains("{\"class\":3,"), output);
+    }
+
+    public static class JavaEngineServer {
+        public static void main(String[] args) throws IOException, InterruptedException {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            HttpResponse<String> response;
+            try (ConvolutionalNeuralNetwork javaCnn = new ConvolutionalNeuralNetwork(1);
+                 InferenceServer javaServer = new InferenceServer(javaCnn, port, 4)) {
+                javaCnn.initJava();
+                javaServer.start();
+                response = postPng(port, Files.readAllBytes(Path.of(args[0])));
+            }
+            System.out.println(response.body());
+            System.exit(response.statusCode() == 200 ? 0 : 1);
+        }
+    }
+
+    private static HttpResponse<String> postPng(byte[] png) throws IOException, InterruptedException {
+        return postPng(port, png);
+    }
+
+    private static HttpResponse<String> postPng(int port, byte[] png) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/predict")).
+                header("Content-Type", "image/png").
+                POST(HttpRequest.BodyPublishers.ofByteArray(png)).
+                build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
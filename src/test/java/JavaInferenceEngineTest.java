@@ -0,0 +1,78 @@
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.JavaInferenceEngine;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.ModelInput;
+import com.knubisoft.utils.ImageProcessorUtil;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JavaInferenceEngineTest {
+    private static final double TOLERANCE = 1e-3;
+    private static final ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork();
+    private static JavaInferenceEngine engine;
+
+    @BeforeAll
+    public static void init() {
+        cnn.init();
+        engine = JavaInferenceEngine.load(new File("resources/model.bin"));
+    }
+
+    @AfterAll
+    public static void close() {
+        cnn.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"})
+    @SneakyThrows
+    public void matchesNetworkOnTestImages(String digit) {
+        float[] pixels = ImageProcessorUtil.preprocess(ImageIO.read(new File("src/test/resources/" + digit + ".png")));
+        assertMatchesNetwork(pixels);
+        assertEquals(Integer.parseInt(digit), engine.predict(new LabeledImage(pixels)));
+    }
+
+    @Test
+    public void matchesNetworkOnRandomImages() {
+        Random random = new Random(123);
+        for (int n = 0; n < 20; n++) {
+            float[] pixels = new float[28 * 28];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextDouble() < 0.2 ? random.nextInt(256) / 255f : 0;
+            }
+            assertMatchesNetwork(pixels);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void servesPredictionsWithJavaEngine() {
+        try (ConvolutionalNeuralNetwork javaCnn = new ConvolutionalNeuralNetwork(1)) {
+            javaCnn.initJava();
+            for (int digit = 0; digit < 10; digit++) {
+                LabeledImage image = new LabeledImage(ImageProcessorUtil.preprocess(ImageIO.read(new File("src/test/resources/" + digit + ".png"))));
+                assertArrayEquals(cnn.predictProbabilities(image), javaCnn.predictProbabilities(image), TOLERANCE);
+                assertEquals(digit, javaCnn.predict(image));
+            }
+        }
+    }
+
+    private static void assertMatchesNetwork(float[] pixels) {
+        double[] expected = cnn.predictProbabilities(new LabeledImage(pixels));
+        float[] actual = new float[engine.classes()];
+        engine.output(ModelInput.prepare(pixels), actual);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], TOLERANCE, "Probability of class " + i + " differs");
+        }
+    }
+}
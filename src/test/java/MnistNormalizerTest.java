@@ -0,0 +1,74 @@
+import com.knubisoft.utils.MnistNormalizer;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MnistNormalizerTest {
+
+    @Test
+    public void offCenterDigitIsScaledToBoxAndCentered() {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, 300, 200);
+        g.setColor(Color.black);
+        g.fillRect(10, 20, 40, 80);
+        g.dispose();
+
+        float[] pixels = MnistNormalizer.normalize(image);
+
+        int minX = 28, maxX = -1, minY = 28, maxY = -1;
+        double mass = 0, massX = 0, massY = 0;
+        for (int y = 0; y < 28; y++) {
+            for (int x = 0; x < 28; x++) {
+                double value = pixels[y * 28 + x];
+                if (value > 0) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+                mass += value;
+                massX += value * x;
+                massY += value * y;
+            }
+        }
+        assertEquals(10, maxX - minX + 1, "Width keeps the aspect ratio");
+        assertEquals(20, maxY - minY + 1, "Longer side fits the 20x20 box");
+        assertEquals(13.5, massX / mass, 0.5);
+        assertEquals(13.5, massY / mass, 0.5);
+        assertEquals(255, pixels[14 * 28 + 14], 1e-3);
+    }
+
+    @Test
+    public void blankImageHasNoInk() {
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, 100, 100);
+        g.dispose();
+        assertArrayEquals(new float[28 * 28], MnistNormalizer.normalize(image));
+    }
+
+    @Test
+    @SneakyThrows
+    public void parallelNormalizationMatchesSequential() {
+        List<BufferedImage> images = new ArrayList<>();
+        for (int digit = 0; digit < 10; digit++) {
+            images.add(ImageIO.read(new File("src/test/resources/" + digit + ".png")));
+        }
+        float[][] parallel = MnistNormalizer.normalizeAll(images);
+        for (int digit = 0; digit < 10; digit++) {
+            assertArrayEquals(MnistNormalizer.normalize(images.get(digit)), parallel[digit]);
+        }
+    }
+}
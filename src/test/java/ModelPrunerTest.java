@@ -0,0 +1,140 @@
+import com.knubisoft.cnn.CompactModelFormat;
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.Hyperparameters;
+import com.knubisoft.cnn.ModelPruner;
+import com.knubisoft.cnn.PruningOptions;
+import com.knubisoft.cnn.PruningReport;
+import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ModelPrunerTest {
+    private static final int SIZE = 28;
+    private static final Hyperparameters SMALL = new Hyperparameters(0.01, 0.9, 20, 6, 8, 16, 12);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void removesMutedUnitsWithoutChangingOutput() {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(SMALL, DataType.FLOAT));
+        network.init();
+        // zero weights mute a unit, with fraction 1/8 exactly these units are the lowest ranked ones
+        muteConvFilter(network, "0", 1);
+        muteConvFilter(network, "2", 5);
+        muteDenseUnit(network, "4", 3);
+        muteDenseUnit(network, "4", 10);
+        muteDenseUnit(network, "5", 0);
+        muteDenseUnit(network, "5", 7);
+        PruningOptions options = PruningOptions.builder().
+                criterion(ModelPruner.Criterion.MAGNITUDE).
+                fraction(0.125).
+                build();
+
+        MultiLayerNetwork pruned = new ModelPruner(options, null, null).removeUnits(network);
+
+        assertEquals(new Hyperparameters(0.01, 0.9, 20, 5, 7, 14, 10), SMALL.withWidthsOf(shapes(pruned)));
+        INDArray input = Nd4j.rand(DataType.FLOAT, 8, SIZE * SIZE);
+        assertTrue(network.output(input).equalsWithEps(pruned.output(input), 1e-5), "Muted units must not change the output");
+    }
+
+    @Test
+    public void prunesAndFineTunesNarrowerModel() throws Exception {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(SMALL, DataType.FLOAT));
+        network.init();
+        PruningOptions options = PruningOptions.builder().
+                fraction(0.5).
+                fineTuneEpochs(1).
+                maxSteps(2).
+                minAccuracy(0).
+                latencyRuns(10).
+                build();
+
+        PruningReport report = new ModelPruner(options, new ListDataSetIterator<>(blocks(200), 20), new ListDataSetIterator<>(blocks(50), 20)).run(network);
+
+        assertEquals(PruningReport.Status.MAX_STEPS, report.status());
+        assertEquals(3, report.steps().size());
+        assertTrue(report.isPruned());
+        assertEquals(new Hyperparameters(0.01, 0.9, 20, 2, 2, 4, 3), SMALL.withWidthsOf(shapes(report.network())));
+        assertTrue(report.last().parameters() < report.first().parameters());
+
+        File compactFile = dir.resolve("model.cnn").toFile();
+        CompactModelFormat.write(report.network(), compactFile);
+        Hyperparameters widths = Hyperparameters.DEFAULT.withWidthsOf(CompactModelFormat.readShapes(compactFile));
+        MultiLayerNetwork restored = CompactModelFormat.read(compactFile, ConvolutionalNeuralNetwork.buildCNNConf(widths, DataType.FLOAT));
+        INDArray input = Nd4j.rand(DataType.FLOAT, 4, SIZE * SIZE);
+        assertEquals(report.network().output(input), restored.output(input));
+    }
+
+    @Test
+    public void rejectsStepBelowAccuracyFloor() {
+        MultiLayerNetwork network = new MultiLayerNetwork(ConvolutionalNeuralNetwork.buildCNNConf(SMALL, DataType.FLOAT));
+        network.init();
+        PruningOptions options = PruningOptions.builder().
+                fineTuneEpochs(1).
+                minAccuracy(1.01).
+                latencyRuns(10).
+                build();
+
+        PruningReport report = new ModelPruner(options, new ListDataSetIterator<>(blocks(100), 20), new ListDataSetIterator<>(blocks(50), 20)).run(network);
+
+        assertEquals(PruningReport.Status.ACCURACY_FLOOR, report.status());
+        assertFalse(report.isPruned());
+        assertFalse(report.steps().get(1).accepted());
+        assertSame(network, report.network());
+    }
+
+    private static void muteConvFilter(MultiLayerNetwork network, String layer, int filter) {
+        network.getParam(layer + "_W").get(NDArrayIndex.point(filter), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all()).assign(0);
+        network.getParam(layer + "_b").putScalar(filter, 0);
+    }
+
+    private static void muteDenseUnit(MultiLayerNetwork network, String layer, int unit) {
+        network.getParam(layer + "_W").getColumn(unit).assign(0);
+        network.getParam(layer + "_b").putScalar(unit, 0);
+    }
+
+    private static Map<String, long[]> shapes(MultiLayerNetwork network) {
+        Map<String, long[]> shapes = new LinkedHashMap<>();
+        network.paramTable().forEach((name, param) -> shapes.put(name, param.shape()));
+        return shapes;
+    }
+
+    /**
+     * Every image has a bright square at a position given by its label
+     */
+    private static List<DataSet> blocks(int count) {
+        List<DataSet> examples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int label = i % 10;
+            INDArray features = Nd4j.zeros(1, SIZE * SIZE);
+            for (int y = 0; y < 6; y++) {
+                for (int x = 0; x < 6; x++) {
+                    features.putScalar(0, (label / 5 * 12 + 4 + y) * SIZE + label % 5 * 5 + 1 + x, 1);
+                }
+            }
+            INDArray labels = Nd4j.zeros(1, 10);
+            labels.putScalar(0, label, 1);
+            examples.add(new DataSet(features, labels));
+        }
+        return examples;
+    }
+}
@@ -0,0 +1,93 @@
+import com.knubisoft.cnn.ModelRegistry;
+import com.knubisoft.cnn.ModelVersion;
+import lombok.SneakyThrows;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ModelRegistryTest {
+
+    @Test
+    @SneakyThrows
+    public void promotesLoadsAndRollsBack() {
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(new File("resources/model.bin"));
+        try (ModelRegistry registry = new ModelRegistry(Nd4j.zeros(1, 28 * 28))) {
+            ModelVersion first = registry.promote(network, "model.bin");
+            ModelVersion second = registry.loadAsync(network::clone, "clone").get(30, TimeUnit.SECONDS);
+
+            assertEquals(2, second.version());
+            assertSame(second, registry.current());
+
+            MultiLayerNetwork broken = network.clone();
+            broken.setParams(Nd4j.valueArrayOf(broken.params().shape(), Double.NaN));
+            assertThrows(IllegalStateException.class, () -> registry.promote(broken, "broken"));
+            assertSame(second, registry.current(), "Broken model must not be promoted");
+
+            assertSame(first, registry.rollback());
+            assertSame(first, registry.current());
+            assertThrows(IllegalStateException.class, registry::rollback);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void listenersSeeVersionsInSwapOrder() {
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(new File("resources/model.bin"));
+        AtomicReference<ModelVersion> applied = new AtomicReference<>();
+        AtomicInteger overtaken = new AtomicInteger();
+        ExecutorService swappers = Executors.newFixedThreadPool(4);
+        try (ModelRegistry registry = new ModelRegistry(Nd4j.zeros(1, 28 * 28))) {
+            registry.promote(network, "model.bin");
+            registry.addListener(version -> {
+                // a slow listener, like one building replicas of the model, must not be overtaken by a later swap
+                sleep(2);
+                if (registry.current() != version) {
+                    overtaken.incrementAndGet();
+                }
+                applied.set(version);
+            });
+            List<Future<?>> swaps = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                int swap = i;
+                swaps.add(swappers.submit(() -> {
+                    if (swap % 3 != 2) {
+                        registry.promote(network, "swap " + swap);
+                        return;
+                    }
+                    try {
+                        registry.rollback();
+                    } catch (IllegalStateException e) {
+                        // another rollback took the last previous version
+                    }
+                }));
+            }
+            for (Future<?> swap : swaps) {
+                swap.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(0, overtaken.get(), "Versions swapped while a listener was applying the previous one");
+            assertSame(registry.current(), applied.get());
+        } finally {
+            swappers.shutdownNow();
+        }
+    }
+
+    @SneakyThrows
+    private static void sleep(long millis) {
+        Thread.sleep(millis);
+    }
+}
@@ -0,0 +1,93 @@
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.JavaInferenceEngine;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.cnn.ModelInput;
+import com.knubisoft.cnn.QuantizedInferenceEngine;
+import com.knubisoft.utils.ImageProcessorUtil;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class QuantizedInferenceEngineTest {
+    private static final double TOLERANCE = 0.05;
+    private static final List<float[]> pixels = new ArrayList<>();
+    private static final List<float[]> images = new ArrayList<>();
+    private static JavaInferenceEngine floatEngine;
+    private static QuantizedInferenceEngine quantizedEngine;
+
+    @BeforeAll
+    @SneakyThrows
+    public static void init() {
+        for (int digit = 0; digit < 10; digit++) {
+            float[] preprocessed = new float[28 * 28];
+            ImageProcessorUtil.preprocess(ImageIO.read(new File("src/test/resources/" + digit + ".png")), preprocessed);
+            pixels.add(preprocessed);
+            // calibrated on the scale the served input has
+            images.add(ModelInput.prepare(preprocessed));
+        }
+        floatEngine = JavaInferenceEngine.load(new File("resources/model.bin"));
+        quantizedEngine = QuantizedInferenceEngine.quantize(floatEngine, images);
+    }
+
+    @Test
+    public void matchesFloatModelOnTestImages() {
+        for (int digit = 0; digit < images.size(); digit++) {
+            float[] expected = new float[floatEngine.classes()];
+            float[] actual = new float[quantizedEngine.classes()];
+            floatEngine.output(images.get(digit), expected);
+            quantizedEngine.output(images.get(digit), actual);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], TOLERANCE, "Probability of class " + i + " differs for digit " + digit);
+            }
+            assertEquals(digit, quantizedEngine.predict(images.get(digit)));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void writtenModelPredictsTheSame(@TempDir Path dir) {
+        File file = dir.resolve("model.q8").toFile();
+        quantizedEngine.write(file);
+        QuantizedInferenceEngine read = QuantizedInferenceEngine.read(file);
+        assertEquals(quantizedEngine.sizeBytes(), read.sizeBytes());
+        for (float[] image : images) {
+            float[] expected = new float[quantizedEngine.classes()];
+            float[] actual = new float[read.classes()];
+            quantizedEngine.output(image, expected);
+            read.output(image, actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void servesPredictionsWithQuantizedModel() {
+        try (ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork(1)) {
+            cnn.serve(quantizedEngine);
+            List<LabeledImage> batch = new ArrayList<>();
+            for (int digit = 0; digit < pixels.size(); digit++) {
+                LabeledImage image = new LabeledImage(pixels.get(digit));
+                float[] expected = new float[quantizedEngine.classes()];
+                quantizedEngine.output(images.get(digit), expected);
+                double[] actual = cnn.predictProbabilities(image);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], actual[i], 1e-6);
+                }
+                assertEquals(digit, cnn.predict(image));
+                batch.add(image);
+            }
+            assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, cnn.predictBatch(batch));
+            assertThrows(IllegalStateException.class, cnn::reloadModel);
+        }
+    }
+}
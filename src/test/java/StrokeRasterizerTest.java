@@ -0,0 +1,67 @@
+import com.knubisoft.cnn.ConvolutionalNeuralNetwork;
+import com.knubisoft.cnn.LabeledImage;
+import com.knubisoft.utils.ImageProcessorUtil;
+import com.knubisoft.utils.StrokeRasterizer;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StrokeRasterizerTest {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 520;
+    private static final int STROKE_WIDTH = 10;
+
+    @Test
+    public void rasterizedStrokesMatchFramedCanvas() {
+        List<StrokeRasterizer.Stroke> strokes = List.of(
+                stroke(180, 120, 260, 100, 360, 100, 420, 110, 400, 200, 360, 300, 320, 400, 300, 450),
+                stroke(250, 270, 450, 270));
+        float[] expected = ImageProcessorUtil.preprocess(paint(strokes));
+        float[] actual = new float[28 * 28];
+        new StrokeRasterizer(28, 8).rasterize(strokes, STROKE_WIDTH, actual);
+
+        double difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference += Math.abs(expected[i] - actual[i]);
+        }
+        assertTrue(difference / expected.length < 2, "Mean difference is " + difference / expected.length);
+
+        try (ConvolutionalNeuralNetwork cnn = new ConvolutionalNeuralNetwork()) {
+            cnn.init();
+            assertEquals(cnn.predict(new LabeledImage(expected)), cnn.predict(new LabeledImage(actual)));
+        }
+    }
+
+    private static StrokeRasterizer.Stroke stroke(int... points) {
+        StrokeRasterizer.Stroke stroke = new StrokeRasterizer.Stroke();
+        for (int i = 0; i < points.length; i += 2) {
+            stroke.add(points[i], points[i + 1]);
+        }
+        return stroke;
+    }
+
+    /**
+     * Paints strokes the same way DrawArea paints them on its full-size image
+     */
+    private static BufferedImage paint(List<StrokeRasterizer.Stroke> strokes) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(Color.white);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setPaint(Color.black);
+        g.setStroke(new BasicStroke(STROKE_WIDTH));
+        for (StrokeRasterizer.Stroke stroke : strokes) {
+            for (int i = 1; i < stroke.size(); i++) {
+                g.drawLine(stroke.x(i - 1), stroke.y(i - 1), stroke.x(i), stroke.y(i));
+            }
+        }
+        g.dispose();
+        return image;
+    }
+}